@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Walks a ladder of quality presets in response to uplink congestion. Congestion signals (a weak
+ * network report, a sent frame rate well below the preset, or a send queue that keeps growing or
+ * runs deep) move one rung down once they have lasted {@link #DOWN_HOLD_MS}; a weak network
+ * report moves down at once. The sent bitrate is no signal: a VBR encoder undershoots its target
+ * on static scenes without any congestion. Quality only moves back up one rung after
+ * {@link #UP_HOLD_MS} without any congestion, and never sooner than {@link #MIN_STEP_INTERVAL_MS}
+ * after the previous step, so the stream does not oscillate around the uplink's capacity.
+ * <p/>
+ * Not thread safe; report every signal from the same thread, e.g. the RTMP handler's.
+ */
+public class AdaptiveBitrateController {
+    // CONSTANTS.
+    public static final long DOWN_HOLD_MS = 2000;
+    public static final long UP_HOLD_MS = 15000;
+    public static final long MIN_STEP_INTERVAL_MS = 4000;
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 30;
+    public static final int DEFAULT_TARGET_FPS = 30;
+    // The send queue counts as growing when its shallowest depth rises from one window to the next.
+    static final long QUEUE_WINDOW_MS = 1000;
+    // A preset counts as unsustainable when less than this share of the target fps gets out.
+    private static final double UNDERSHOOT_RATIO = 0.7;
+
+    // Member variables.
+    private final List<Preset> ladder;
+    private final Listener listener;
+    private int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+    private int targetFps = DEFAULT_TARGET_FPS;
+    private int rung;
+    private boolean fpsLow;
+    private boolean queueDeep;
+    private boolean queueGrowing;
+    private long queueWindowStartMs = -1;
+    private int queueWindowMinDepth = Integer.MAX_VALUE;
+    private int previousQueueWindowMinDepth = -1;
+    private long congestedSinceMs = -1;
+    private long stableSinceMs;
+    private long lastStepMs;
+
+    // Statistics.
+    private int stepsDown;
+    private int stepsUp;
+
+    /**
+     * @param ladder   - Presets ordered from best to worst quality.
+     * @param listener - Applies the chosen preset to the encoder.
+     */
+    public AdaptiveBitrateController(List<Preset> ladder, Listener listener) {
+        if (ladder.isEmpty()) {
+            throw new IllegalArgumentException("ladder must not be empty");
+        }
+        this.ladder = Collections.unmodifiableList(ladder);
+        this.listener = listener;
+        long now = SystemClock.elapsedRealtime();
+        stableSinceMs = now;
+        lastStepMs = now;
+    }
+
+    public AdaptiveBitrateController(Listener listener, Preset... ladder) {
+        this(Arrays.asList(ladder), listener);
+    }
+
+    /**
+     * Sets the send queue depth, in packets, above which the uplink counts as congested.
+     */
+    public void setMaxQueueDepth(int packets) {
+        maxQueueDepth = packets;
+    }
+
+    /**
+     * Sets the frame rate the encoder is configured for. Every rung keeps it; the controller
+     * only compares the sent frame rate with it.
+     */
+    public void setTargetFps(int fps) {
+        targetFps = fps;
+    }
+
+    /**
+     * Starts over from the best preset, e.g. when a new stream starts. Does not notify the
+     * listener.
+     */
+    public void reset() {
+        reset(ladder.get(0));
+    }
+
+    /**
+     * Starts over from the given preset, e.g. one picked by a bandwidth probe. Does not notify
+     * the listener.
+     *
+     * @param start - Preset from the ladder; the best preset if it is not on the ladder.
+     */
+    public void reset(Preset start) {
+        reset(start, SystemClock.elapsedRealtime());
+    }
+
+    void reset(Preset start, long nowMs) {
+        rung = Math.max(0, ladder.indexOf(start));
+        fpsLow = false;
+        queueDeep = false;
+        resetQueueGrowth();
+        congestedSinceMs = -1;
+        stableSinceMs = nowMs;
+        lastStepMs = nowMs;
+    }
+
+    public Preset getPreset() {
+        return ladder.get(rung);
+    }
+
+    public List<Preset> getLadder() {
+        return ladder;
+    }
+
+    /**
+     * The publisher reported that the network cannot keep up.
+     */
+    public void onNetworkWeak() {
+        onNetworkWeak(SystemClock.elapsedRealtime());
+    }
+
+    void onNetworkWeak(long nowMs) {
+        if (congestedSinceMs < 0) {
+            congestedSinceMs = nowMs;
+        }
+        stepDown(nowMs);
+    }
+
+    /**
+     * The publisher reported that the network recovered.
+     */
+    public void onNetworkResume() {
+        evaluate(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param fps - Video frame rate actually sent.
+     */
+    public void onVideoFps(double fps) {
+        onVideoFps(fps, SystemClock.elapsedRealtime());
+    }
+
+    void onVideoFps(double fps, long nowMs) {
+        fpsLow = fps > 0 && fps < targetFps * UNDERSHOOT_RATIO;
+        evaluate(nowMs);
+    }
+
+    /**
+     * Report the depth several times per {@link #QUEUE_WINDOW_MS}, e.g. every half second, so
+     * that growth can be told from the burst every key frame adds.
+     *
+     * @param packets - Number of packets waiting to be sent.
+     */
+    public void onSendQueueDepth(int packets) {
+        onSendQueueDepth(packets, SystemClock.elapsedRealtime());
+    }
+
+    void onSendQueueDepth(int packets, long nowMs) {
+        queueDeep = packets > maxQueueDepth;
+        if (queueWindowStartMs < 0) {
+            queueWindowStartMs = nowMs;
+        }
+        queueWindowMinDepth = Math.min(queueWindowMinDepth, packets);
+        if (nowMs - queueWindowStartMs >= QUEUE_WINDOW_MS) {
+            // The uplink sends less than is encoded when even the shallowest depth keeps rising.
+            queueGrowing = previousQueueWindowMinDepth >= 0
+                    && queueWindowMinDepth > previousQueueWindowMinDepth;
+            previousQueueWindowMinDepth = queueWindowMinDepth;
+            queueWindowMinDepth = Integer.MAX_VALUE;
+            queueWindowStartMs = nowMs;
+        }
+        evaluate(nowMs);
+    }
+
+    private void resetQueueGrowth() {
+        queueGrowing = false;
+        queueWindowStartMs = -1;
+        queueWindowMinDepth = Integer.MAX_VALUE;
+        previousQueueWindowMinDepth = -1;
+    }
+
+    private void evaluate(long now) {
+        if (fpsLow || queueDeep || queueGrowing) {
+            if (congestedSinceMs < 0) {
+                congestedSinceMs = now;
+            }
+            if (now - congestedSinceMs >= DOWN_HOLD_MS) {
+                stepDown(now);
+            }
+        } else {
+            if (congestedSinceMs >= 0) {
+                congestedSinceMs = -1;
+                stableSinceMs = now;
+            }
+            if (now - stableSinceMs >= UP_HOLD_MS) {
+                stepUp(now);
+            }
+        }
+    }
+
+    private void stepDown(long now) {
+        if (rung == ladder.size() - 1 || now - lastStepMs < MIN_STEP_INTERVAL_MS) {
+            return;
+        }
+        stepsDown++;
+        step(rung + 1, now);
+        // Give the new preset a full hold period before judging it.
+        congestedSinceMs = -1;
+        fpsLow = false;
+        resetQueueGrowth();
+    }
+
+    private void stepUp(long now) {
+        if (rung == 0 || now - lastStepMs < MIN_STEP_INTERVAL_MS) {
+            return;
+        }
+        stepsUp++;
+        step(rung - 1, now);
+    }
+
+    private void step(int newRung, long now) {
+        Preset from = ladder.get(rung);
+        rung = newRung;
+        lastStepMs = now;
+        stableSinceMs = now;
+        Log.i(MainActivity.APP_NAME, "Adaptive bitrate: " + from + " -> " + getPreset());
+        listener.onPresetChanged(from, getPreset());
+    }
+
+    public int getStepsDown() {
+        return stepsDown;
+    }
+
+    public int getStepsUp() {
+        return stepsUp;
+    }
+
+    /**
+     * One rung of the quality ladder. The frame rate is the same on every rung, see
+     * {@link #setTargetFps(int)}.
+     */
+    public static class Preset {
+        public final int width;
+        public final int height;
+        public final int bitrate;
+
+        /**
+         * @param width   - Output width in pixels.
+         * @param height  - Output height in pixels.
+         * @param bitrate - Video bitrate in bits per second.
+         */
+        public Preset(int width, int height, int bitrate) {
+            this.width = width;
+            this.height = height;
+            this.bitrate = bitrate;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " " + bitrate / 1000 + "kbps";
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that reported the signal.
+         *
+         * @param from - Preset that was in effect.
+         * @param to   - Preset to switch the encoder to.
+         */
+        void onPresetChanged(Preset from, Preset to);
+    }
+}
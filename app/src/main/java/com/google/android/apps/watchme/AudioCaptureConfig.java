@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.media.AudioFormat;
+
+/**
+ * How audio is recorded for one streaming session. Whatever the capture format, the audio handed
+ * downstream is 16-bit PCM with {@link #channelCount} channels, interleaved unless
+ * {@link #planar} is set.
+ */
+public class AudioCaptureConfig {
+    // CONSTANTS.
+    public static final AudioCaptureConfig MONO =
+            new AudioCaptureConfig(1, AudioFormat.ENCODING_PCM_16BIT, 1, false);
+    public static final AudioCaptureConfig STEREO =
+            new AudioCaptureConfig(2, AudioFormat.ENCODING_PCM_16BIT, 1, false);
+    public static final int BYTES_PER_OUTPUT_SAMPLE = 2;
+
+    /** 1 for mono or 2 for stereo; AudioRecord offers no other layouts for the microphone. */
+    public final int channelCount;
+    /** AudioFormat.ENCODING_PCM_16BIT, or ENCODING_PCM_FLOAT from Marshmallow on. */
+    public final int sampleFormat;
+    /** AudioRecord's internal buffer as a multiple of the minimum; reads stay minimum-sized. */
+    public final int bufferMultiplier;
+    /** Whether encoder frames are split into one plane per channel. */
+    public final boolean planar;
+
+    /**
+     * @param channelCount     - 1 or 2.
+     * @param sampleFormat     - AudioFormat.ENCODING_PCM_16BIT or AudioFormat.ENCODING_PCM_FLOAT.
+     * @param bufferMultiplier - At least 1.
+     * @param planar           - Whether the encoder takes one plane per channel.
+     */
+    public AudioCaptureConfig(int channelCount, int sampleFormat, int bufferMultiplier,
+                              boolean planar) {
+        if (channelCount != 1 && channelCount != 2) {
+            throw new IllegalArgumentException("channelCount must be 1 or 2: " + channelCount);
+        }
+        if (sampleFormat != AudioFormat.ENCODING_PCM_16BIT
+                && sampleFormat != AudioFormat.ENCODING_PCM_FLOAT) {
+            throw new IllegalArgumentException("Unsupported sample format: " + sampleFormat);
+        }
+        if (bufferMultiplier < 1) {
+            throw new IllegalArgumentException("bufferMultiplier must be >= 1: "
+                    + bufferMultiplier);
+        }
+        this.channelCount = channelCount;
+        this.sampleFormat = sampleFormat;
+        this.bufferMultiplier = bufferMultiplier;
+        this.planar = planar;
+    }
+
+    /**
+     * Returns the AudioRecord channel mask.
+     */
+    public int getChannelMask() {
+        return channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    /**
+     * Returns the size of one captured sample of one channel.
+     */
+    public int getBytesPerCapturedSample() {
+        return sampleFormat == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+    }
+
+    @Override
+    public String toString() {
+        return channelCount + "ch " + (sampleFormat == AudioFormat.ENCODING_PCM_FLOAT
+                ? "float" : "16-bit") + " x" + bufferMultiplier + (planar ? " planar" : "");
+    }
+}
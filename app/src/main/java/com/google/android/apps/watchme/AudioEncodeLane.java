@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * Encodes audio on the calling thread through the encoder it shares with the video lane. With a
+ * {@link SilenceDetector} set, frames in sustained silence are replaced by digital silence, which
+ * the encoder compresses to a few bytes, so background noise is not sent at full bitrate. This
+ * saves bandwidth only: silent frames still go through the encoder, as libffmpeg stamps audio
+ * from the number of samples it has been given, and a skipped frame would pull the audio after
+ * it ahead of the video.
+ */
+public class AudioEncodeLane {
+    // Member variables.
+    private final FfmpegEncoder encoder;
+    private final short[] samples;
+    private final short[] silence;
+    // Short views of the pooled buffers frames arrive in, made once per buffer.
+    private final IdentityHashMap<ByteBuffer, ShortBuffer> views =
+            new IdentityHashMap<ByteBuffer, ShortBuffer>();
+    private SilenceDetector silenceDetector;
+
+    /**
+     * @param encoder      - Encoder shared with the video lane.
+     * @param frameSamples - Largest number of mono samples passed to {@link #encode}.
+     */
+    public AudioEncodeLane(FfmpegEncoder encoder, int frameSamples) {
+        this.encoder = encoder;
+        samples = new short[frameSamples];
+        silence = new short[frameSamples];
+    }
+
+    /**
+     * Enables discontinuous transmission. Must be called before the first frame is encoded.
+     *
+     * @param detector - Detector deciding which frames are silent, or null to encode everything.
+     */
+    public void setSilenceDetector(SilenceDetector detector) {
+        silenceDetector = detector;
+    }
+
+    public SilenceDetector getSilenceDetector() {
+        return silenceDetector;
+    }
+
+    /**
+     * Encodes one chunk of audio.
+     *
+     * @param audio_data     - Direct buffer of native-order 16-bit mono PCM, from position 0.
+     * @param length         - Number of valid samples in audio_data.
+     * @param timestampNanos - Capture time of the first sample.
+     */
+    public void encode(ByteBuffer audio_data, int length, long timestampNanos) {
+        length = Math.min(length, samples.length);
+        if (silenceDetector != null
+                && silenceDetector.process(audio_data, length, timestampNanos)) {
+            encoder.encodeAudioFrame(silence, length);
+            return;
+        }
+        // libffmpeg only takes a Java array. A bulk get is a single memory copy of one frame.
+        ShortBuffer view = viewOf(audio_data);
+        view.clear();
+        view.get(samples, 0, length);
+        encoder.encodeAudioFrame(samples, length);
+    }
+
+    private ShortBuffer viewOf(ByteBuffer buffer) {
+        ShortBuffer view = views.get(buffer);
+        if (view == null) {
+            ByteBuffer whole = buffer.duplicate();
+            whole.clear();
+            view = whole.order(buffer.order()).asShortBuffer();
+            views.put(buffer, view);
+        }
+        return view;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Regroups audio chunks of whatever size AudioRecord delivers into frames of exactly the codec
+ * frame size, so each JNI call hands the encoder one whole frame and the native side has nothing
+ * to re-buffer. A chunk that is already exactly one frame, e.g. from
+ * {@link AudioFrameGrabber#setReadSamples(int)}, is passed through without being copied. For
+ * planar encoders the channels are split while copying, so deinterleaving
+ * costs no extra pass.
+ */
+public class AudioFrameAccumulator {
+    // CONSTANTS.
+    public static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    // Member variables.
+    private final int frameSamples;
+    private final int sampleRate;
+    private final int channels;
+    private final boolean planar;
+    private final FrameListener listener;
+    private ByteBuffer frame;
+    private int frameFill;
+    private long frameTimestampNanos;
+    private long expectedTimestampNanos;
+
+    // Statistics.
+    private volatile long chunksIn;
+    private volatile long framesOut;
+    private volatile long passthroughFrames;
+    private volatile long discontinuities;
+
+    public AudioFrameAccumulator(int frameSamples, int sampleRate, FrameListener listener) {
+        this(frameSamples, sampleRate, 1, false, listener);
+    }
+
+    /**
+     * @param frameSamples - Samples per channel per codec frame, e.g. {@link #AAC_FRAME_SAMPLES}.
+     * @param sampleRate   - Sample rate of the incoming audio.
+     * @param channels     - Number of interleaved channels in the incoming audio.
+     * @param planar       - Whether frames hold one plane per channel instead of interleaved
+     *                     samples.
+     * @param listener     - Receives every complete frame.
+     */
+    public AudioFrameAccumulator(int frameSamples, int sampleRate, int channels, boolean planar,
+                                 FrameListener listener) {
+        this.frameSamples = frameSamples;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.planar = planar && channels > 1;
+        this.listener = listener;
+        frame = BufferPool.DIRECT_BUFFERS.acquire(frameSamples * channels * BYTES_PER_SAMPLE);
+    }
+
+    /**
+     * Adds a chunk of audio and emits every frame it completes. The chunk's position and limit
+     * are changed, and the chunk itself may be passed to the listener.
+     *
+     * @param audio          - Native-order interleaved 16-bit PCM.
+     * @param samples        - Number of samples per channel in audio.
+     * @param timestampNanos - Capture time of the first sample.
+     */
+    public void add(ByteBuffer audio, int samples, long timestampNanos) {
+        chunksIn++;
+        if (frameFill > 0 && Math.abs(timestampNanos - expectedTimestampNanos)
+                > samplesToNanos(frameSamples) / 2) {
+            // Audio went missing upstream; the partial frame no longer lines up with its
+            // timestamp, so start over from this chunk.
+            discontinuities++;
+            frameFill = 0;
+        }
+        expectedTimestampNanos = timestampNanos + samplesToNanos(samples);
+
+        if (frameFill == 0 && samples == frameSamples && !planar) {
+            // Already a whole frame; hand the capture buffer straight to the encoder.
+            audio.clear();
+            listener.onFrame(audio, frameSamples, timestampNanos);
+            framesOut++;
+            passthroughFrames++;
+            return;
+        }
+
+        int consumed = 0;
+        while (consumed < samples) {
+            if (frameFill == 0) {
+                frameTimestampNanos = timestampNanos + samplesToNanos(consumed);
+            }
+            int count = Math.min(samples - consumed, frameSamples - frameFill);
+            if (planar) {
+                deinterleave(audio, consumed, count);
+            } else {
+                int stride = channels * BYTES_PER_SAMPLE;
+                audio.limit((consumed + count) * stride);
+                audio.position(consumed * stride);
+                frame.position(frameFill * stride);
+                frame.put(audio);
+            }
+            consumed += count;
+            frameFill += count;
+            if (frameFill == frameSamples) {
+                frame.clear();
+                listener.onFrame(frame, frameSamples, frameTimestampNanos);
+                framesOut++;
+                frameFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Copies count samples per channel from audio into the frame's channel planes.
+     */
+    private void deinterleave(ByteBuffer audio, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int src = (offset + i) * channels;
+            for (int c = 0; c < channels; c++) {
+                frame.putShort((c * frameSamples + frameFill + i) * BYTES_PER_SAMPLE,
+                        audio.getShort((src + c) * BYTES_PER_SAMPLE));
+            }
+        }
+    }
+
+    /**
+     * Returns the frame buffer to the pool. Samples not yet forming a whole frame are dropped.
+     */
+    public void release() {
+        if (frame != null) {
+            BufferPool.DIRECT_BUFFERS.release(frame);
+            frame = null;
+        }
+    }
+
+    private long samplesToNanos(long samples) {
+        return samples * 1000000000L / sampleRate;
+    }
+
+    /**
+     * Returns the number of chunks received, i.e. the JNI calls the encoder would have taken
+     * without this stage.
+     */
+    public long getChunksIn() {
+        return chunksIn;
+    }
+
+    /**
+     * Returns the number of whole frames handed on, i.e. the JNI calls actually made.
+     */
+    public long getFramesOut() {
+        return framesOut;
+    }
+
+    /**
+     * Returns the number of frames handed on without being copied.
+     */
+    public long getPassthroughFrames() {
+        return passthroughFrames;
+    }
+
+    public long getDiscontinuities() {
+        return discontinuities;
+    }
+
+    public interface FrameListener {
+        /**
+         * @param frame          - Exactly one codec frame starting at position 0, only valid
+         *                       during the call.
+         * @param samples        - Number of samples per channel in frame.
+         * @param timestampNanos - Capture time of the frame's first sample.
+         */
+        void onFrame(ByteBuffer frame, int samples, long timestampNanos);
+    }
+}
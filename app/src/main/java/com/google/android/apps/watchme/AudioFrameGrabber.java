@@ -15,34 +15,172 @@
 package com.google.android.apps.watchme;
 
 import android.media.AudioFormat;
+import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTrack;
 import android.media.MediaRecorder;
+import android.os.Process;
 import android.util.Log;
 
+import com.google.android.apps.watchme.util.BufferPool;
+import com.google.android.apps.watchme.util.SpscQueue;
+import com.google.android.apps.watchme.util.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
  *         <p/>
  *         AudioFrameGrabber class which records audio.
  */
 public class AudioFrameGrabber {
+    // CONSTANTS.
+    public static final int DEFAULT_RING_SIZE = 8;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
     private Thread thread;
-    private boolean cancel = false;
+    private Thread encodeThread;
+    private volatile boolean cancel = false;
     private int frequency;
+    private AudioCaptureConfig config = AudioCaptureConfig.MONO;
+    private AudioCaptureConfig activeConfig;
+    private int captureFrequency;
+    private boolean nativeRateCapture = true;
+    private AudioResampler resampler;
+    private ByteBuffer resampled;
+    private int bufferSize;
+    private int readSize;
+    private int readSamples;
     private FrameCallback frameCallback;
+    private int ringSize = DEFAULT_RING_SIZE;
+    private SpscQueue<Chunk> filled;
+    private SpscQueue<Chunk> free;
+    // Owned by the record thread: reads it cannot queue, and the chunk it held when it stopped.
+    private Chunk overflow;
+    private Chunk held;
+
+    // Statistics.
+    private volatile long overruns;
+    private volatile long underruns;
 
     public void setFrameCallback(FrameCallback callback) {
         frameCallback = callback;
     }
 
+    /**
+     * Sets how many chunks the record thread may get ahead of the encode thread. Takes effect on
+     * the next {@link #start(int)}.
+     *
+     * @param size - Number of preallocated chunks, at least 2.
+     */
+    public void setRingSize(int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException("size must be >= 2: " + size);
+        }
+        ringSize = size;
+    }
+
+    /**
+     * Sets the channel layout, sample format and buffering used from the next
+     * {@link #start(int)}.
+     *
+     * @param config - Capture settings for the session.
+     */
+    public void setCaptureConfig(AudioCaptureConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Reads exactly this many samples per channel into each chunk instead of AudioRecord's minimum
+     * buffer size. Matching the codec frame size lets chunks go to the encoder as they are, with
+     * no regrouping copy. When capturing at a different native rate, reads are sized so each chunk
+     * resamples to this many samples instead. Takes effect on the next {@link #start(int)}.
+     *
+     * @param samples - Samples per channel per chunk, or 0 for the minimum buffer size.
+     */
+    public void setReadSamples(int samples) {
+        readSamples = samples;
+    }
+
+    /**
+     * Sets whether to record at the device's native rate and resample to the requested one, which
+     * keeps AudioFlinger from resampling on the capture path. Takes effect on the next
+     * {@link #start(int)}.
+     *
+     * @param enabled - Whether to capture at the native rate.
+     */
+    public void setNativeRateCapture(boolean enabled) {
+        nativeRateCapture = enabled;
+    }
+
+    /**
+     * Returns the device's native audio rate if the microphone can be recorded at it, otherwise
+     * the given fallback.
+     *
+     * @param config   - Capture settings the rate must work with.
+     * @param fallback - Rate to use when the native rate is unknown or unsupported.
+     */
+    public static int getNativeSampleRate(AudioCaptureConfig config, int fallback) {
+        int rate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        if (rate <= 0 || AudioRecord.getMinBufferSize(rate, config.getChannelMask(),
+                config.sampleFormat) <= 0) {
+            return fallback;
+        }
+        return rate;
+    }
+
     /**
      * Starts recording.
      *
-     * @param frequency - Recording frequency.
+     * @param frequency - Frequency of the audio handed to the frame callback.
      */
     public void start(int frequency) {
         Log.d(MainActivity.APP_NAME, "start");
 
         this.frequency = frequency;
+        activeConfig = config;
+        if (activeConfig.sampleFormat == AudioFormat.ENCODING_PCM_FLOAT
+                && !Utils.hasMarshmallow()) {
+            Log.w(MainActivity.APP_NAME, "Float capture needs Marshmallow; recording 16-bit");
+            activeConfig = new AudioCaptureConfig(config.channelCount,
+                    AudioFormat.ENCODING_PCM_16BIT, config.bufferMultiplier, config.planar);
+        }
+        captureFrequency = nativeRateCapture
+                ? getNativeSampleRate(activeConfig, frequency) : frequency;
+        bufferSize = AudioRecord.getMinBufferSize(captureFrequency,
+                activeConfig.getChannelMask(), activeConfig.sampleFormat);
+        resampler = captureFrequency != frequency
+                ? new AudioResampler(captureFrequency, frequency, activeConfig.channelCount)
+                : null;
+        if (readSamples <= 0) {
+            readSize = bufferSize;
+        } else {
+            // Resampled reads vary by a sample around the input that makes one frame.
+            int samples = resampler != null
+                    ? (int) resampler.getInputSamplesFor(readSamples) + 1 : readSamples;
+            readSize = samples * activeConfig.getBytesPerCapturedSample()
+                    * activeConfig.channelCount;
+        }
+        Log.i(MainActivity.APP_NAME, "AudioRecord rate: " + captureFrequency + ", buffer size: "
+                + bufferSize + ", read size: " + readSize + ", config: " + activeConfig);
+        if (resampler != null) {
+            resampled = BufferPool.DIRECT_BUFFERS.acquire(
+                    resampler.getMaxOutputSamples(bytesToSamples(readSize))
+                            * activeConfig.channelCount
+                            * AudioCaptureConfig.BYTES_PER_OUTPUT_SAMPLE);
+        }
+
+        filled = new SpscQueue<Chunk>(ringSize);
+        free = new SpscQueue<Chunk>(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            free.offer(new Chunk(BufferPool.DIRECT_BUFFERS.acquire(readSize)));
+        }
+        overflow = new Chunk(BufferPool.DIRECT_BUFFERS.acquire(readSize));
+        held = null;
+        overruns = 0;
+        underruns = 0;
 
         cancel = false;
         thread = new Thread(new Runnable() {
@@ -50,7 +188,14 @@ public class AudioFrameGrabber {
             public void run() {
                 recordThread();
             }
-        });
+        }, "AudioRecord");
+        encodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeThread();
+            }
+        }, "AudioEncode");
+        encodeThread.start();
         thread.start();
     }
 
@@ -59,35 +204,139 @@ public class AudioFrameGrabber {
      */
     public void recordThread() {
         Log.d(MainActivity.APP_NAME, "recordThread");
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 
-        int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
-        //
-        int channelConfiguration = AudioFormat.CHANNEL_CONFIGURATION_MONO;
-        int bufferSize = AudioRecord.getMinBufferSize(frequency, channelConfiguration, audioEncoding);
-        Log.i(MainActivity.APP_NAME, "AudioRecord buffer size: " + bufferSize);
-
-        // 16 bit PCM stereo recording was chosen as example.
-        AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, frequency, channelConfiguration,
-                audioEncoding, bufferSize);
+        // Reads stay small for latency; the multiplier only deepens AudioRecord's buffer, which
+        // must still hold at least two reads.
+        AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, captureFrequency,
+                activeConfig.getChannelMask(), activeConfig.sampleFormat,
+                Math.max(bufferSize * activeConfig.bufferMultiplier, readSize * 2));
         recorder.startRecording();
 
-        // Make bufferSize be in samples instead of bytes.
-        bufferSize /= 2;
-        short[] buffer = new short[bufferSize];
+        // Timestamps follow the sample count, anchored to the clock when the first chunk arrives.
+        long startNanos = 0;
+        long samplesRead = 0;
+        // Input samples handed to the encode thread, and the frames they resample to.
+        long samplesQueued = 0;
+        long framesPlanned = 0;
+        // Only ever taken from free and given to filled, so each queue keeps a single producer
+        // and a single consumer. A chunk whose read failed is kept and read into again.
+        Chunk chunk = null;
         while (!cancel) {
-            int bufferReadResult = recorder.read(buffer, 0, bufferSize);
+            if (chunk == null) {
+                chunk = free.poll();
+            }
+            // With the encoder a whole ring behind, the read goes to the overflow chunk and is
+            // dropped rather than let AudioRecord overrun.
+            Chunk target = chunk != null ? chunk : overflow;
+            // Read straight into off-heap memory that the encoder can use in place.
+            target.data.clear();
+            int requestSize = readSize;
+            if (resampler != null && readSamples > 0) {
+                // Read up to the input that completes the next whole resampled frame.
+                long needed;
+                while ((needed = resampler.getInputSamplesFor(framesPlanned * readSamples))
+                        <= samplesQueued) {
+                    framesPlanned++;
+                }
+                requestSize = (int) (needed - samplesQueued)
+                        * activeConfig.getBytesPerCapturedSample() * activeConfig.channelCount;
+            }
+            int bufferReadResult = recorder.read(target.data, requestSize);
             // Utils.Debug("bufferReadResult: " + bufferReadResult);
             if (bufferReadResult > 0) {
-                frameCallback.handleFrame(buffer, bufferReadResult);
+                // Make the length be in samples per channel instead of bytes.
+                int samples = bytesToSamples(bufferReadResult);
+                if (samplesRead == 0) {
+                    startNanos = Utils.elapsedRealtimeNanos() - samplesToNanos(samples);
+                }
+                target.samples = samples;
+                target.timestampNanos = startNanos + samplesToNanos(samplesRead);
+                samplesRead += samples;
+                if (target == overflow) {
+                    overruns++;
+                } else {
+                    samplesQueued += samples;
+                    filled.offer(chunk);
+                    chunk = null;
+                    LockSupport.unpark(encodeThread);
+                }
             } else if (bufferReadResult < 0) {
                 Log.w(MainActivity.APP_NAME, "Error calling recorder.read: " + bufferReadResult);
             }
         }
+        held = chunk;
         recorder.stop();
+        recorder.release();
 
         Log.d(MainActivity.APP_NAME, "exit recordThread");
     }
 
+    /**
+     * Hands recorded chunks to the frame callback.
+     */
+    private void encodeThread() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        long chunkNanos = samplesToNanos(bytesToSamples(readSize));
+        boolean floatCapture = activeConfig.sampleFormat == AudioFormat.ENCODING_PCM_FLOAT;
+        long waitStartNanos = 0;
+        while (true) {
+            Chunk chunk = filled.poll();
+            if (chunk == null) {
+                if (cancel && !thread.isAlive()) {
+                    break;
+                }
+                if (waitStartNanos == 0) {
+                    waitStartNanos = System.nanoTime();
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            // Waiting noticeably longer than a chunk means capture could not keep the encoder fed.
+            if (waitStartNanos != 0 && System.nanoTime() - waitStartNanos > chunkNanos * 3 / 2) {
+                underruns++;
+            }
+            waitStartNanos = 0;
+            if (floatCapture) {
+                toPcm16(chunk.data, chunk.samples * activeConfig.channelCount);
+            }
+            if (resampler != null) {
+                int samples = resampler.process(chunk.data, chunk.samples, chunk.timestampNanos,
+                        resampled);
+                frameCallback.handleFrame(resampled, samples,
+                        resampler.getOutputTimestampNanos());
+            } else {
+                frameCallback.handleFrame(chunk.data, chunk.samples, chunk.timestampNanos);
+            }
+            free.offer(chunk);
+        }
+    }
+
+    /**
+     * Converts float samples to 16-bit in place in a single forward pass; every 16-bit sample
+     * lands at or before the float it came from, so nothing is overwritten before it is read.
+     */
+    private static void toPcm16(ByteBuffer audio, int count) {
+        for (int i = 0; i < count; i++) {
+            float value = audio.getFloat(i * 4);
+            int sample = Math.round(value * Short.MAX_VALUE);
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            audio.putShort(i * 2, (short) sample);
+        }
+    }
+
+    private int bytesToSamples(int bytes) {
+        return bytes / (activeConfig.getBytesPerCapturedSample() * activeConfig.channelCount);
+    }
+
+    private long samplesToNanos(long samples) {
+        return samples * 1000000000L / captureFrequency;
+    }
+
     /**
      * Stops recording.
      */
@@ -97,12 +346,67 @@ public class AudioFrameGrabber {
         cancel = true;
         try {
             thread.join();
+            LockSupport.unpark(encodeThread);
+            encodeThread.join();
         } catch (InterruptedException e) {
             Log.e(MainActivity.APP_NAME, "", e);
         }
+        Chunk chunk;
+        while ((chunk = filled.poll()) != null) {
+            BufferPool.DIRECT_BUFFERS.release(chunk.data);
+        }
+        while ((chunk = free.poll()) != null) {
+            BufferPool.DIRECT_BUFFERS.release(chunk.data);
+        }
+        if (held != null) {
+            BufferPool.DIRECT_BUFFERS.release(held.data);
+            held = null;
+        }
+        BufferPool.DIRECT_BUFFERS.release(overflow.data);
+        overflow = null;
+        Log.i(MainActivity.APP_NAME, "Audio overruns: " + overruns + ", underruns: " + underruns);
+        if (resampler != null) {
+            Log.i(MainActivity.APP_NAME, "Resampled " + captureFrequency + " Hz to " + frequency
+                    + " Hz at " + resampler.getSamplesPerSecond() + " samples/s");
+            BufferPool.DIRECT_BUFFERS.release(resampled);
+            resampled = null;
+            resampler = null;
+        }
+    }
+
+    /**
+     * Returns how often the record thread had to drop a read because the encode thread was a
+     * whole ring behind.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Returns how often the encode thread waited more than one and a half chunks for audio.
+     */
+    public long getUnderruns() {
+        return underruns;
     }
 
     public interface FrameCallback {
-        void handleFrame(short[] audio_data, int length);
+        /**
+         * Called on the audio encode thread.
+         *
+         * @param audio_data     - Native-order interleaved 16-bit PCM, only valid during the call.
+         * @param length         - Number of samples per channel in audio_data.
+         * @param timestampNanos - Capture time of the first sample, derived from the sample count.
+         */
+        void handleFrame(ByteBuffer audio_data, int length, long timestampNanos);
+    }
+
+    private static class Chunk {
+        final ByteBuffer data;
+        int samples;
+        long timestampNanos;
+
+        Chunk(ByteBuffer data) {
+            this.data = data;
+        }
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the peak and RMS level of 16-bit PCM in place. Levels are fractions of full scale, from
+ * 0 to 1. Not thread safe; use one analyzer per audio thread.
+ */
+public class AudioLevelAnalyzer {
+    // CONSTANTS.
+    private static final double FULL_SCALE = 32768.0;
+
+    // Member variables.
+    private double peak;
+    private double rms;
+
+    /**
+     * Analyzes a block of samples. Positions and limits are left untouched.
+     *
+     * @param audio   - Native-order 16-bit PCM starting at index 0.
+     * @param samples - Number of samples to analyze.
+     */
+    public void analyze(ByteBuffer audio, int samples) {
+        int max = 0;
+        long sumOfSquares = 0;
+        for (int i = 0; i < samples; i++) {
+            int sample = audio.getShort(i * 2);
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > max) {
+                max = magnitude;
+            }
+            sumOfSquares += sample * sample;
+        }
+        peak = max / FULL_SCALE;
+        rms = samples > 0 ? Math.sqrt((double) sumOfSquares / samples) / FULL_SCALE : 0;
+    }
+
+    /**
+     * Returns the peak level of the last analyzed block.
+     */
+    public double getPeak() {
+        return peak;
+    }
+
+    /**
+     * Returns the RMS level of the last analyzed block.
+     */
+    public double getRms() {
+        return rms;
+    }
+
+    /**
+     * Converts a level to dBFS, clamped at -120 dB for silence.
+     */
+    public static double toDbfs(double level) {
+        return level > 1e-6 ? 20 * Math.log10(level) : -120;
+    }
+}
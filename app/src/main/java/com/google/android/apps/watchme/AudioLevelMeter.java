@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peak/RMS meter for the live microphone signal. The audio thread feeds every chunk through
+ * {@link #process}; at most every {@link #PUBLISH_INTERVAL_MS} the levels of the elapsed window
+ * are packed into a single volatile long, so readers get a consistent snapshot without locks and
+ * without ever touching the audio thread.
+ * <p/>
+ * Snapshot layout: bits 48-63 hold the peak and bits 32-47 the RMS, both as fractions of full
+ * scale times 65535; bits 0-31 hold the capture time of the window's end in milliseconds.
+ */
+public class AudioLevelMeter {
+    // CONSTANTS.
+    public static final long PUBLISH_INTERVAL_MS = 50;
+    private static final long PUBLISH_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(PUBLISH_INTERVAL_MS);
+    private static final int LEVEL_SCALE = 0xFFFF;
+
+    // Member variables, only used on the audio thread.
+    private final AudioLevelAnalyzer analyzer = new AudioLevelAnalyzer();
+    private long windowStartNanos = -1;
+    private double windowPeak;
+    private double windowSumOfSquares;
+    private long windowSamples;
+
+    // Published snapshot.
+    private volatile long snapshot;
+
+    /**
+     * Adds a chunk of audio to the current window. Called on the audio thread.
+     *
+     * @param audio          - Native-order 16-bit PCM starting at index 0.
+     * @param samples        - Number of samples in audio, counting every channel.
+     * @param timestampNanos - Capture time of the chunk.
+     */
+    public void process(ByteBuffer audio, int samples, long timestampNanos) {
+        analyzer.analyze(audio, samples);
+        if (windowStartNanos < 0) {
+            windowStartNanos = timestampNanos;
+        }
+        windowPeak = Math.max(windowPeak, analyzer.getPeak());
+        double rms = analyzer.getRms();
+        windowSumOfSquares += rms * rms * samples;
+        windowSamples += samples;
+
+        if (timestampNanos - windowStartNanos >= PUBLISH_INTERVAL_NANOS) {
+            double windowRms = Math.sqrt(windowSumOfSquares / windowSamples);
+            snapshot = pack(windowPeak, windowRms, TimeUnit.NANOSECONDS.toMillis(timestampNanos));
+            windowStartNanos = timestampNanos;
+            windowPeak = 0;
+            windowSumOfSquares = 0;
+            windowSamples = 0;
+        }
+    }
+
+    private static long pack(double peak, double rms, long timeMs) {
+        long packedPeak = Math.min(LEVEL_SCALE, Math.round(peak * LEVEL_SCALE));
+        long packedRms = Math.min(LEVEL_SCALE, Math.round(rms * LEVEL_SCALE));
+        return packedPeak << 48 | packedRms << 32 | (timeMs & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the latest snapshot; decode it with {@link #peakOf}, {@link #rmsOf} and
+     * {@link #timeMsOf} so all three values come from the same window.
+     */
+    public long getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the peak level of a snapshot as a fraction of full scale.
+     */
+    public static double peakOf(long snapshot) {
+        return (double) (snapshot >>> 48) / LEVEL_SCALE;
+    }
+
+    /**
+     * Returns the RMS level of a snapshot as a fraction of full scale.
+     */
+    public static double rmsOf(long snapshot) {
+        return (double) ((snapshot >>> 32) & LEVEL_SCALE) / LEVEL_SCALE;
+    }
+
+    /**
+     * Returns the low 32 bits of the snapshot's capture time in milliseconds, for telling whether
+     * the meter is still being fed.
+     */
+    public static long timeMsOf(long snapshot) {
+        return snapshot & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Clears the window and the snapshot once capture has stopped, so readers do not keep showing
+     * stale levels. Must not race with {@link #process}.
+     */
+    public void reset() {
+        windowStartNanos = -1;
+        windowPeak = 0;
+        windowSumOfSquares = 0;
+        windowSamples = 0;
+        snapshot = 0;
+    }
+}
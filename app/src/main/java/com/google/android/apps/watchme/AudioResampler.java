@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming polyphase resampler for interleaved 16-bit PCM. The rate ratio is reduced to L/M and a
+ * windowed-sinc low-pass filter is split into L phases, so each output sample costs
+ * {@link #TAPS_PER_PHASE} multiply-adds whatever the ratio. Filter history carries over between
+ * calls, so chunks of any size can be fed in without clicks at their boundaries.
+ * <p/>
+ * Apart from growing its work buffer for a larger chunk than it has seen before, the resampler
+ * does not allocate. Not thread safe.
+ */
+public class AudioResampler {
+    // CONSTANTS.
+    public static final int TAPS_PER_PHASE = 24;
+    private static final double CUTOFF = 0.90;
+
+    // Member variables.
+    private final int inputRate;
+    private final int outputRate;
+    private final int channels;
+    private final int interpolation;
+    private final int decimation;
+    private final float[][] coefficients;
+    private final double delaySamples;
+    private float[] work;
+    private int position;
+    private int phase;
+    private long outputTimestampNanos;
+
+    // Statistics.
+    private volatile long samplesIn;
+    private volatile long processNanos;
+
+    public AudioResampler(int inputRate, int outputRate) {
+        this(inputRate, outputRate, 1);
+    }
+
+    /**
+     * @param inputRate  - Sample rate of the audio fed in.
+     * @param outputRate - Sample rate to produce.
+     * @param channels   - Number of interleaved channels.
+     */
+    public AudioResampler(int inputRate, int outputRate, int channels) {
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+        int divisor = gcd(inputRate, outputRate);
+        interpolation = outputRate / divisor;
+        decimation = inputRate / divisor;
+        coefficients = designFilter(interpolation, decimation);
+        delaySamples = (interpolation * TAPS_PER_PHASE - 1) / (2.0 * interpolation);
+        work = new float[(TAPS_PER_PHASE - 1) * channels];
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Designs a Blackman-windowed sinc low-pass at the lower of the two Nyquist rates, working at
+     * L times the input rate, and splits it into L phases.
+     */
+    private static float[][] designFilter(int interpolation, int decimation) {
+        int length = interpolation * TAPS_PER_PHASE;
+        double cutoff = CUTOFF * 0.5 / Math.max(interpolation, decimation);
+        double center = (length - 1) / 2.0;
+        float[][] phases = new float[interpolation][TAPS_PER_PHASE];
+        for (int n = 0; n < length; n++) {
+            double x = n - center;
+            double sinc = x == 0 ? 2 * cutoff
+                    : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+            // Each phase sees only every L-th tap, so scale by L to keep unity gain.
+            phases[n % interpolation][n / interpolation] = (float) (sinc * window * interpolation);
+        }
+        return phases;
+    }
+
+    /**
+     * Returns the most samples per channel {@link #process} can produce from the given input.
+     */
+    public int getMaxOutputSamples(int inputSamples) {
+        return (int) ((long) inputSamples * interpolation / decimation) + 1;
+    }
+
+    /**
+     * Returns how many input samples per channel a fresh resampler has to be fed, in total, to
+     * produce the given number of output samples. Sizing each chunk so the total reaches this for
+     * the next multiple of a frame makes every chunk resample to exactly one frame. Exact when
+     * the output rate is at most the input rate; when upsampling a chunk may be a sample off.
+     */
+    public long getInputSamplesFor(long outputSamples) {
+        return outputSamples > 0 ? (outputSamples - 1) * decimation / interpolation + 1 : 0;
+    }
+
+    /**
+     * Resamples one chunk.
+     *
+     * @param input          - Native-order interleaved 16-bit PCM starting at index 0.
+     * @param inputSamples   - Number of samples per channel in input.
+     * @param timestampNanos - Capture time of the first input sample.
+     * @param output         - Receives the resampled PCM from index 0; must hold at least
+     *                       {@link #getMaxOutputSamples(int)} samples per channel.
+     * @return the number of samples per channel written to output.
+     */
+    public int process(ByteBuffer input, int inputSamples, long timestampNanos,
+                       ByteBuffer output) {
+        long startNanos = System.nanoTime();
+        int history = (TAPS_PER_PHASE - 1) * channels;
+        int inputValues = inputSamples * channels;
+        if (work.length < history + inputValues) {
+            float[] grown = new float[history + inputValues];
+            System.arraycopy(work, 0, grown, 0, history);
+            work = grown;
+        }
+        for (int i = 0; i < inputValues; i++) {
+            work[history + i] = input.getShort(i * 2);
+        }
+
+        outputTimestampNanos = timestampNanos + (long) (((position
+                + (double) phase / interpolation) - delaySamples) * 1e9 / inputRate);
+        int produced = 0;
+        while (position < inputSamples) {
+            float[] taps = coefficients[phase];
+            for (int c = 0; c < channels; c++) {
+                int newest = history + position * channels + c;
+                float sum = 0;
+                for (int j = 0; j < TAPS_PER_PHASE; j++) {
+                    sum += taps[j] * work[newest - j * channels];
+                }
+                int sample = Math.round(sum);
+                if (sample > Short.MAX_VALUE) {
+                    sample = Short.MAX_VALUE;
+                } else if (sample < Short.MIN_VALUE) {
+                    sample = Short.MIN_VALUE;
+                }
+                output.putShort((produced * channels + c) * 2, (short) sample);
+            }
+            produced++;
+            phase += decimation;
+            position += phase / interpolation;
+            phase %= interpolation;
+        }
+        position -= inputSamples;
+        System.arraycopy(work, inputValues, work, 0, history);
+
+        samplesIn += inputSamples;
+        processNanos += System.nanoTime() - startNanos;
+        return produced;
+    }
+
+    /**
+     * Returns the capture time of the first sample produced by the last {@link #process} call,
+     * corrected for the filter delay.
+     */
+    public long getOutputTimestampNanos() {
+        return outputTimestampNanos;
+    }
+
+    /**
+     * Forgets the filter history, e.g. after a gap in the input.
+     */
+    public void reset() {
+        for (int i = 0; i < (TAPS_PER_PHASE - 1) * channels; i++) {
+            work[i] = 0;
+        }
+        position = 0;
+        phase = 0;
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * Returns the measured throughput in input samples per second of processing time.
+     */
+    public long getSamplesPerSecond() {
+        long nanos = processNanos;
+        return nanos > 0 ? samplesIn * 1000000000L / nanos : 0;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how far the audio timeline, which follows the sample count, has drifted from the video
+ * timeline, which follows the system clock. For each stream it averages the gap between the time a
+ * frame arrived and its timestamp; the drift is the difference between the two averages, reported
+ * once per second.
+ */
+public class AvSyncMonitor {
+    // CONSTANTS.
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Member variables.
+    private final Window video = new Window();
+    private final Window audio = new Window();
+    private volatile long driftUs;
+
+    /**
+     * Called from the camera thread for every captured frame.
+     */
+    public void onVideoFrame(long timestampNanos, long arrivalNanos) {
+        video.add(arrivalNanos - timestampNanos, arrivalNanos);
+    }
+
+    /**
+     * Called from the audio thread for every captured chunk. Also publishes the drift.
+     */
+    public void onAudioFrame(long timestampNanos, long arrivalNanos) {
+        if (audio.add(arrivalNanos - timestampNanos, arrivalNanos) && video.averageNanos != 0) {
+            driftUs = TimeUnit.NANOSECONDS.toMicros(audio.averageNanos - video.averageNanos);
+            Log.v(MainActivity.APP_NAME, "A/V drift: " + driftUs + " us");
+        }
+    }
+
+    /**
+     * Returns the last measured drift in microseconds. Positive values mean audio timestamps are
+     * behind video timestamps.
+     */
+    public long getDriftUs() {
+        return driftUs;
+    }
+
+    // Accumulates offsets on a single thread and publishes their average once per window.
+    private static class Window {
+        volatile long averageNanos;
+        private long sumNanos;
+        private int count;
+        private long startNanos;
+
+        boolean add(long offsetNanos, long nowNanos) {
+            if (count == 0) {
+                startNanos = nowNanos;
+            }
+            sumNanos += offsetNanos;
+            count++;
+            if (nowNanos - startNanos < WINDOW_NANOS) {
+                return false;
+            }
+            averageNanos = sumNanos / count;
+            sumNanos = 0;
+            count = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+/**
+ * How a stream uses YouTube's backup ingestion address.
+ */
+public enum BackupIngestMode {
+    /** Ignore the backup address. */
+    PRIMARY_ONLY,
+    /** Stream to the primary and the backup ingest at the same time. */
+    SIMULTANEOUS,
+    /** Stream to one ingest, switching to the other when the current one fails or falls behind. */
+    FAILOVER
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.Utils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the uplink before a stream starts by pushing a synthetic payload to the ingest, and
+ * picks the starting rung of a quality ladder from it. For testing without an ingest, the bench
+ * module's runStandIn task serves a local stand-in server; the estimate then reflects the link to
+ * that machine. Estimates are cached per network for a configurable time, so restarting a stream
+ * does not probe again.
+ * {@link #estimate(String)} blocks on network I/O; never call it on the main thread.
+ */
+public class BandwidthProber {
+    // CONSTANTS.
+    public static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(30);
+    public static final int PROBE_BYTES = 512 * 1024;
+    // Fewer bytes than this say more about the server cutting the burst off than the uplink.
+    public static final int MIN_PROBE_BYTES = 64 * 1024;
+    // Share of the estimate the video may use, leaving room for audio, RTMP overhead and jitter.
+    public static final double HEADROOM = 0.7;
+    private static final String PREFERENCE_PREFIX = "uplinkBps:";
+
+    // Member variables.
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final String networkKey;
+    private long ttlMs = DEFAULT_TTL_MS;
+
+    public BandwidthProber(Context context) {
+        this.context = context;
+        preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        networkKey = Utils.getNetworkKey(context);
+    }
+
+    /**
+     * Sets how long an estimate stays valid for the network it was made on.
+     */
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Returns the cached uplink estimate for the current network, in bits per second, or 0 if
+     * there is none or it expired. Cheap enough for the main thread.
+     */
+    public int getCachedBitsPerSecond() {
+        if (networkKey == null) {
+            return 0;
+        }
+        String value = preferences.getString(PREFERENCE_PREFIX + networkKey, null);
+        if (value == null) {
+            return 0;
+        }
+        int separator = value.indexOf('|');
+        if (separator < 0) {
+            return 0;
+        }
+        try {
+            long savedMs = Long.parseLong(value.substring(separator + 1));
+            if (System.currentTimeMillis() - savedMs > ttlMs) {
+                return 0;
+            }
+            return Integer.parseInt(value.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the uplink estimate for the current network in bits per second, probing the given
+     * URL unless a cached estimate is still valid. Returns 0 if the probe failed.
+     *
+     * @param url - RTMP URL of the ingest or of a local stand-in server.
+     */
+    public int estimate(String url) {
+        int cached = getCachedBitsPerSecond();
+        if (cached > 0) {
+            return cached;
+        }
+        IngestProber.Result result = new IngestProber(context).probe(url, PROBE_BYTES);
+        if (result == null || result.bytesSent < MIN_PROBE_BYTES) {
+            return 0;
+        }
+        int bitsPerSecond = (int) Math.min(Integer.MAX_VALUE, result.bytesPerSecond * 8);
+        Log.i(MainActivity.APP_NAME, "Uplink estimate: " + bitsPerSecond / 1000 + " kbps");
+        if (networkKey != null) {
+            preferences.edit().putString(PREFERENCE_PREFIX + networkKey,
+                    bitsPerSecond + "|" + System.currentTimeMillis()).apply();
+        }
+        return bitsPerSecond;
+    }
+
+    /**
+     * Returns the best preset whose bitrate fits the estimate with {@link #HEADROOM}, or the
+     * worst one if none fits.
+     *
+     * @param ladder        - Presets ordered from best to worst quality.
+     * @param bitsPerSecond - Uplink estimate; 0 for unknown, which picks the best preset.
+     */
+    public static AdaptiveBitrateController.Preset choosePreset(
+            List<AdaptiveBitrateController.Preset> ladder, int bitsPerSecond) {
+        if (bitsPerSecond <= 0) {
+            return ladder.get(0);
+        }
+        double budget = bitsPerSecond * HEADROOM;
+        for (AdaptiveBitrateController.Preset preset : ladder) {
+            if (preset.bitrate <= budget) {
+                return preset;
+            }
+        }
+        return ladder.get(ladder.size() - 1);
+    }
+}
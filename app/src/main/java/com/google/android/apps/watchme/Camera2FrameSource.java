@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+
+import com.google.android.apps.watchme.util.BufferPool;
+import com.google.android.apps.watchme.util.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame source built on Camera2 and an {@link ImageReader} in YUV_420_888. Several images may be in
+ * flight at once. Planes are packed into an NV21 heap array straight from their direct buffers, and
+ * an {@link ArrayFrameCallback} keeps that array, so a frame is copied once on its way to the
+ * encoder. A plain {@link FrameCallback} gets a view of the array and copies the frame again.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2FrameSource implements FrameSource {
+    // CONSTANTS.
+    public static final int DEFAULT_MAX_IMAGES = 4;
+    private static final int DEFAULT_WIDTH = 1280;
+    private static final int DEFAULT_HEIGHT = 720;
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+
+    // Member variables.
+    private final CameraManager cameraManager;
+    private final String cameraId;
+    private final int maxImages;
+    private FrameCallback frameCallback;
+    private HandlerThread thread;
+    private Handler handler;
+    private ImageReader imageReader;
+    private CameraDevice cameraDevice;
+    private CameraCaptureSession session;
+    private Size size;
+    // Exactly one frame long. Swapped for another array by an ArrayFrameCallback.
+    private byte[] nv21;
+    private ByteBuffer nv21View;
+    // Set by stop(), so a camera that opens afterwards is closed at once.
+    private volatile boolean stopped;
+    // Counted down once the camera is closed, or will never open.
+    private CountDownLatch cameraClosed;
+    // Added to sensor timestamps to bring them onto Utils.elapsedRealtimeNanos.
+    private long clockOffsetNanos;
+
+    /**
+     * @param context   - Context used to reach the camera service.
+     * @param cameraId  - Camera2 id of the camera to be recorded.
+     * @param maxImages - Number of images that may be in flight at once.
+     */
+    public Camera2FrameSource(Context context, String cameraId, int maxImages) {
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.cameraId = cameraId;
+        this.maxImages = maxImages;
+    }
+
+    @Override
+    public void setFrameCallback(FrameCallback callback) {
+        frameCallback = callback;
+    }
+
+    @Override
+    public boolean start() {
+        CameraCharacteristics characteristics;
+        try {
+            characteristics = cameraManager.getCameraCharacteristics(cameraId);
+        } catch (CameraAccessException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't query camera " + cameraId, e);
+            return false;
+        }
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        size = chooseSize(map.getOutputSizes(ImageFormat.YUV_420_888));
+        nv21 = BufferPool.BYTE_ARRAYS.acquire(getFrameSize());
+        clockOffsetNanos = isRealtimeTimestamp(characteristics)
+                ? 0 : Utils.elapsedRealtimeNanos() - System.nanoTime();
+
+        stopped = false;
+        cameraClosed = new CountDownLatch(1);
+        thread = new HandlerThread("Camera2FrameSource");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, maxImages);
+        imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image = reader.acquireNextImage();
+                if (image == null) {
+                    return;
+                }
+                try {
+                    handleImage(image);
+                } finally {
+                    image.close();
+                }
+            }
+        }, handler);
+
+        try {
+            cameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    if (stopped) {
+                        camera.close();
+                        return;
+                    }
+                    cameraDevice = camera;
+                    createSession();
+                }
+
+                @Override
+                public void onClosed(CameraDevice camera) {
+                    cameraClosed.countDown();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    camera.close();
+                    cameraDevice = null;
+                }
+
+                @Override
+                public void onError(CameraDevice camera, int error) {
+                    Log.e(MainActivity.APP_NAME, "Camera " + cameraId + " error " + error);
+                    camera.close();
+                    cameraDevice = null;
+                }
+            }, handler);
+        } catch (CameraAccessException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't open camera " + cameraId, e);
+            cameraClosed.countDown();
+            stop();
+            return false;
+        }
+        return true;
+    }
+
+    private void createSession() {
+        try {
+            cameraDevice.createCaptureSession(Collections.singletonList(imageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession captureSession) {
+                            session = captureSession;
+                            startRepeating();
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession captureSession) {
+                            Log.e(MainActivity.APP_NAME, "Capture session configuration failed");
+                        }
+                    }, handler);
+        } catch (CameraAccessException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't create capture session", e);
+        }
+    }
+
+    private void startRepeating() {
+        try {
+            CaptureRequest.Builder request =
+                    cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            request.addTarget(imageReader.getSurface());
+            session.setRepeatingRequest(request.build(), null, handler);
+        } catch (CameraAccessException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't start capture", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            // Tear down on the camera thread, so no callback runs against a closed reader.
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeCamera();
+                }
+            });
+            // Keep the thread alive until the camera is closed, as a camera still opening is
+            // only handed over, and closed, on it.
+            try {
+                if (!cameraClosed.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(MainActivity.APP_NAME, "Camera " + cameraId + " didn't close in time");
+                }
+            } catch (InterruptedException e) {
+                Log.e(MainActivity.APP_NAME, "", e);
+            }
+            thread.quitSafely();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Log.e(MainActivity.APP_NAME, "", e);
+            }
+            thread = null;
+            handler = null;
+        }
+        if (nv21 != null) {
+            BufferPool.BYTE_ARRAYS.release(nv21);
+            nv21 = null;
+            nv21View = null;
+        }
+    }
+
+    // Runs on the camera thread.
+    private void closeCamera() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return size.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return size.getHeight();
+    }
+
+    @Override
+    public int getFrameSize() {
+        return size.getWidth() * size.getHeight() * 3 / 2;
+    }
+
+    private void handleImage(Image image) {
+        if (frameCallback == null) {
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+
+        int length = copyPlane(planes[0].getBuffer(), planes[0].getRowStride(), width, height);
+        length = copyChroma(planes[1], planes[2], width / 2, height / 2, length);
+        long timestampNanos = image.getTimestamp() + clockOffsetNanos;
+        if (frameCallback instanceof ArrayFrameCallback) {
+            nv21 = ((ArrayFrameCallback) frameCallback).handleFrame(nv21, timestampNanos);
+            return;
+        }
+        if (nv21View == null) {
+            nv21View = ByteBuffer.wrap(nv21);
+        }
+        nv21View.clear();
+        frameCallback.handleFrame(nv21View, length, timestampNanos);
+    }
+
+    // Returns the number of bytes written to nv21.
+    private int copyPlane(ByteBuffer plane, int rowStride, int width, int height) {
+        plane.clear();
+        if (rowStride == width) {
+            plane.get(nv21, 0, width * height);
+            return width * height;
+        }
+        for (int row = 0; row < height; row++) {
+            plane.position(row * rowStride);
+            plane.get(nv21, row * width, width);
+        }
+        return width * height;
+    }
+
+    // Writes interleaved V/U after the luma plane, reading the planes in place. Returns the
+    // number of bytes written to nv21 in total.
+    private int copyChroma(Image.Plane uPlane, Image.Plane vPlane, int width, int height,
+                           int position) {
+        ByteBuffer u = uPlane.getBuffer();
+        ByteBuffer v = vPlane.getBuffer();
+        int rowStride = vPlane.getRowStride();
+        int pixelStride = vPlane.getPixelStride();
+        for (int row = 0; row < height; row++) {
+            int start = row * rowStride;
+            for (int col = 0; col < width; col++) {
+                int offset = start + col * pixelStride;
+                nv21[position++] = v.get(offset);
+                nv21[position++] = u.get(offset);
+            }
+        }
+        return position;
+    }
+
+    private static Size chooseSize(Size[] sizes) {
+        Size best = sizes[0];
+        long bestDistance = Long.MAX_VALUE;
+        for (Size candidate : sizes) {
+            long distance = Math.abs((long) candidate.getWidth() * candidate.getHeight()
+                    - (long) DEFAULT_WIDTH * DEFAULT_HEIGHT);
+            if (distance < bestDistance) {
+                best = candidate;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isRealtimeTimestamp(CameraCharacteristics characteristics) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        return source != null
+                && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+}
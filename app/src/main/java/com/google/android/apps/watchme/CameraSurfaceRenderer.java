@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import com.google.android.apps.watchme.util.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Draws camera preview frames into an encoder input surface, and optionally a preview surface,
+ * on the GPU. Frames never pass through Java memory.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class CameraSurfaceRenderer implements SurfaceTexture.OnFrameAvailableListener {
+    // CONSTANTS.
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n"
+                    + "attribute vec4 aPosition;\n"
+                    + "attribute vec4 aTexCoord;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "void main() {\n"
+                    + "    gl_Position = aPosition;\n"
+                    + "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n"
+                    + "}\n";
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+                    + "precision mediump float;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "uniform samplerExternalOES sTexture;\n"
+                    + "void main() {\n"
+                    + "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+                    + "}\n";
+    // Interleaved x, y, s, t for a full-screen triangle strip.
+    private static final float[] QUAD = {
+            -1f, -1f, 0f, 0f,
+            1f, -1f, 1f, 0f,
+            -1f, 1f, 0f, 1f,
+            1f, 1f, 1f, 1f,
+    };
+
+    // Member variables.
+    private Camera camera;
+    private HandlerThread thread;
+    private Handler handler;
+    private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+    private EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface encoderSurface = EGL14.EGL_NO_SURFACE;
+    private EGLSurface previewSurface = EGL14.EGL_NO_SURFACE;
+    private SurfaceTexture surfaceTexture;
+    private int textureId;
+    private int program;
+    private int texMatrixLocation;
+    private int positionLocation;
+    private int texCoordLocation;
+    private final float[] texMatrix = new float[16];
+    private final FloatBuffer quad = ByteBuffer.allocateDirect(QUAD.length * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    // Moves SurfaceTexture timestamps (System.nanoTime) onto Utils.elapsedRealtimeNanos.
+    private long clockOffsetNanos;
+
+    /**
+     * Starts rendering camera frames into the given surfaces.
+     *
+     * @param camera       - Camera to be recorded. Its preview is restarted onto a texture.
+     * @param encoderInput - Surface from {@link android.media.MediaCodec#createInputSurface()}.
+     * @param preview      - Optional surface to mirror frames to, may be null.
+     */
+    public void start(Camera camera, final Surface encoderInput, final Surface preview) {
+        this.camera = camera;
+        quad.put(QUAD).position(0);
+        clockOffsetNanos = Utils.elapsedRealtimeNanos() - System.nanoTime();
+
+        thread = new HandlerThread("CameraSurfaceRenderer");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        final CountDownLatch ready = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                setUp(encoderInput, preview);
+                ready.countDown();
+            }
+        });
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Log.e(MainActivity.APP_NAME, "", e);
+        }
+
+        try {
+            camera.stopPreview();
+            camera.setPreviewTexture(surfaceTexture);
+            camera.startPreview();
+        } catch (IOException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't attach camera to texture", e);
+        }
+    }
+
+    /**
+     * Stops rendering and releases all GL resources. The camera preview is stopped and detached
+     * from the texture first, so the camera never draws into a released SurfaceTexture.
+     */
+    public void stop() {
+        if (thread == null) {
+            return;
+        }
+        camera.stopPreview();
+        try {
+            camera.setPreviewTexture(null);
+        } catch (IOException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't detach camera from texture", e);
+        }
+        camera = null;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                tearDown();
+            }
+        });
+        thread.quitSafely();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.e(MainActivity.APP_NAME, "", e);
+        }
+        thread = null;
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                drawFrame();
+            }
+        });
+    }
+
+    private void setUp(Surface encoderInput, Surface preview) {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        EGL14.eglInitialize(display, version, 0, version, 1);
+
+        int[] configAttribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        EGL14.eglChooseConfig(display, configAttribs, 0, configs, 0, 1, numConfigs, 0);
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                contextAttribs, 0);
+
+        int[] surfaceAttribs = {EGL14.EGL_NONE};
+        encoderSurface = EGL14.eglCreateWindowSurface(display, configs[0], encoderInput,
+                surfaceAttribs, 0);
+        if (preview != null) {
+            previewSurface = EGL14.eglCreateWindowSurface(display, configs[0], preview,
+                    surfaceAttribs, 0);
+        }
+        EGL14.eglMakeCurrent(display, encoderSurface, encoderSurface, context);
+
+        program = createProgram();
+        texMatrixLocation = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        positionLocation = GLES20.glGetAttribLocation(program, "aPosition");
+        texCoordLocation = GLES20.glGetAttribLocation(program, "aTexCoord");
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setOnFrameAvailableListener(this);
+    }
+
+    private void drawFrame() {
+        if (surfaceTexture == null) {
+            return;
+        }
+        EGL14.eglMakeCurrent(display, encoderSurface, encoderSurface, context);
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(texMatrix);
+
+        draw();
+        EGLExt.eglPresentationTimeANDROID(display, encoderSurface,
+                surfaceTexture.getTimestamp() + clockOffsetNanos);
+        EGL14.eglSwapBuffers(display, encoderSurface);
+
+        if (previewSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglMakeCurrent(display, previewSurface, previewSurface, context);
+            draw();
+            EGL14.eglSwapBuffers(display, previewSurface);
+        }
+    }
+
+    private void draw() {
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(texMatrixLocation, 1, false, texMatrix, 0);
+        quad.position(0);
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, 16, quad);
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        quad.position(2);
+        GLES20.glVertexAttribPointer(texCoordLocation, 2, GLES20.GL_FLOAT, false, 16, quad);
+        GLES20.glEnableVertexAttribArray(texCoordLocation);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private void tearDown() {
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            surfaceTexture = null;
+        }
+        if (display != EGL14.EGL_NO_DISPLAY) {
+            GLES20.glDeleteProgram(program);
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(display, encoderSurface);
+            if (previewSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(display, previewSurface);
+            }
+            EGL14.eglDestroyContext(display, context);
+            EGL14.eglTerminate(display);
+        }
+        display = EGL14.EGL_NO_DISPLAY;
+        context = EGL14.EGL_NO_CONTEXT;
+        encoderSurface = EGL14.EGL_NO_SURFACE;
+        previewSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    private static int createProgram() {
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER));
+        GLES20.glAttachShader(program, loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER));
+        GLES20.glLinkProgram(program);
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e(MainActivity.APP_NAME, "Shader compile failed: "
+                    + GLES20.glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+}
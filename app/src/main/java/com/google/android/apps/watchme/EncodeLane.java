@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.SpscQueue;
+import com.google.android.apps.watchme.util.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class for an audio or video lane around a hardware encoder. Each lane drains its own
+ * encoder and hands finished packets to the {@link InterleavingMuxer} through a lock-free queue,
+ * so the two lanes never wait on each other.
+ */
+public abstract class EncodeLane {
+    // CONSTANTS.
+    public static final int DEFAULT_PACKET_POOL_SIZE = 16;
+
+    // Member variables.
+    private final boolean video;
+    private final long epochNanos;
+    private final SpscQueue<EncodedPacket> packets;
+    private final SpscQueue<EncodedPacket> freePackets;
+    private final Object recycleLock = new Object();
+    // Packet the encoder left unused; only touched on the encoding thread.
+    private EncodedPacket spare;
+    private volatile InterleavingMuxer muxer;
+    private volatile long packetsDropped;
+    private volatile long keyFramesDropped;
+
+    /**
+     * @param video          - Whether this lane produces video packets.
+     * @param packetCapacity - Initial capacity of each packet in bytes.
+     * @param epochNanos     - {@link Utils#elapsedRealtimeNanos()} at which the stream timeline
+     *                       starts.
+     */
+    protected EncodeLane(boolean video, int packetCapacity, long epochNanos) {
+        this.video = video;
+        this.epochNanos = epochNanos;
+        packets = new SpscQueue<EncodedPacket>(DEFAULT_PACKET_POOL_SIZE);
+        freePackets = new SpscQueue<EncodedPacket>(DEFAULT_PACKET_POOL_SIZE);
+        for (int i = 0; i < DEFAULT_PACKET_POOL_SIZE; i++) {
+            freePackets.offer(new EncodedPacket(packetCapacity, video));
+        }
+    }
+
+    public boolean isVideo() {
+        return video;
+    }
+
+    void setMuxer(InterleavingMuxer muxer) {
+        this.muxer = muxer;
+    }
+
+    /**
+     * Returns a free packet to encode a delta frame or audio into, or null if the muxer has not
+     * caught up yet.
+     */
+    protected EncodedPacket acquirePacket() {
+        return acquirePacket(false);
+    }
+
+    /**
+     * Returns a free packet to encode into, or null if the muxer has not caught up yet, in which
+     * case the frame counts as dropped.
+     *
+     * @param keyFrame - Whether the frame to be encoded is a key frame.
+     */
+    protected EncodedPacket acquirePacket(boolean keyFrame) {
+        if (spare != null) {
+            EncodedPacket packet = spare;
+            spare = null;
+            return packet;
+        }
+        EncodedPacket packet = freePackets.poll();
+        if (packet == null) {
+            // Counted after the total, so reading this count first never finds more dropped key
+            // frames than packets.
+            packetsDropped++;
+            if (keyFrame) {
+                keyFramesDropped++;
+            }
+        }
+        return packet;
+    }
+
+    /**
+     * Hands an encoded packet to the muxer, or keeps it for the next frame if the encoder produced
+     * nothing. Keeping it on the encoding thread leaves the recycling threads the only producers
+     * of the free list.
+     */
+    protected void publish(EncodedPacket packet, int encodedSize) {
+        if (encodedSize <= 0) {
+            spare = packet;
+            return;
+        }
+        packet.size = encodedSize;
+        packets.offer(packet);
+        InterleavingMuxer m = muxer;
+        if (m != null) {
+            m.signal();
+        }
+    }
+
+    /**
+     * Returns the current position on the stream timeline in microseconds.
+     */
+    protected long nowUs() {
+        return toPtsUs(Utils.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Converts a capture timestamp to a position on the stream timeline in microseconds.
+     */
+    protected long toPtsUs(long timestampNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(timestampNanos - epochNanos);
+    }
+
+    EncodedPacket peekPacket() {
+        return packets.peek();
+    }
+
+    EncodedPacket pollPacket() {
+        return packets.poll();
+    }
+
+    /**
+     * Returns a packet to the free list. May be called from any thread; the free list has a single
+     * producer slot, so recycling threads take turns.
+     */
+    void recycle(EncodedPacket packet) {
+        synchronized (recycleLock) {
+            freePackets.offer(packet);
+        }
+    }
+
+    /**
+     * Returns the packet buffers to the pool. The lane must no longer be encoding and the muxer
+     * must be stopped.
+     */
+    public void release() {
+        EncodedPacket packet;
+        if (spare != null) {
+            spare.release();
+            spare = null;
+        }
+        while ((packet = packets.poll()) != null) {
+            packet.release();
+        }
+        while ((packet = freePackets.poll()) != null) {
+            packet.release();
+        }
+    }
+
+    /**
+     * Returns the number of frames skipped because no free packet was available.
+     */
+    public long getPacketsDropped() {
+        return packetsDropped;
+    }
+
+    /**
+     * Returns how many of the {@link #getPacketsDropped() dropped frames} were key frames.
+     */
+    public long getKeyFramesDropped() {
+        return keyFramesDropped;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One compressed audio or video packet. Packets are pooled by the lane that produced them and
+ * filled from the encoder's output buffer on the lane's drain thread, along with the timestamp
+ * the encoder reported for it.
+ */
+public class EncodedPacket {
+    // CONSTANTS.
+    private static final int MIN_COPY_CAPACITY = 256;
+
+    // Replaced by a larger buffer when a frame outgrows it; see ensureCapacity.
+    public ByteBuffer data;
+    public final boolean video;
+    // Where the packet starts in data; only packets sharing one buffer start past 0.
+    public int offset;
+    public int size;
+    public long ptsUs;
+    public boolean keyFrame;
+    // Codec specific data, i.e. the SPS/PPS or AudioSpecificConfig, rather than media.
+    public boolean config;
+    // When the packet entered the send queue, on the queue's clock.
+    public long queuedNanos;
+
+    public EncodedPacket(int capacity, boolean video) {
+        this(BufferPool.DIRECT_BUFFERS.acquire(capacity), video);
+    }
+
+    /**
+     * Creates a packet in a buffer the caller owns, e.g. one shared by many packets. Such a
+     * packet is never released.
+     */
+    EncodedPacket(ByteBuffer data, boolean video) {
+        this.data = data;
+        this.video = video;
+    }
+
+    /**
+     * Copies a packet into a new pooled buffer, rounded up to a power of two so the pool sees few
+     * distinct sizes. Release the copy when done with it.
+     */
+    public static EncodedPacket copyOf(EncodedPacket packet) {
+        EncodedPacket copy = new EncodedPacket(roundCapacity(packet.size), packet.video);
+        copyInto(packet, copy, 0);
+        return copy;
+    }
+
+    /**
+     * Swaps the packet's buffer for a larger pooled one if it cannot hold the given number of
+     * bytes. The contents are not kept. Only for packets created with a pooled buffer.
+     */
+    public void ensureCapacity(int capacity) {
+        if (data.capacity() >= capacity) {
+            return;
+        }
+        BufferPool.DIRECT_BUFFERS.release(data);
+        data = BufferPool.DIRECT_BUFFERS.acquire(roundCapacity(capacity));
+    }
+
+    private static int roundCapacity(int size) {
+        return Integer.highestOneBit(Math.max(size, MIN_COPY_CAPACITY) - 1) << 1;
+    }
+
+    /**
+     * Copies a packet's payload and metadata into another packet at the given offset of its
+     * buffer, which must have room for it.
+     */
+    static void copyInto(EncodedPacket packet, EncodedPacket copy, int offset) {
+        packet.data.limit(packet.offset + packet.size).position(packet.offset);
+        copy.data.position(offset);
+        copy.data.put(packet.data);
+        packet.data.clear();
+        copy.data.clear();
+        copy.offset = offset;
+        copy.size = packet.size;
+        copy.ptsUs = packet.ptsUs;
+        copy.keyFrame = packet.keyFrame;
+        copy.config = packet.config;
+        copy.queuedNanos = packet.queuedNanos;
+    }
+
+    /**
+     * Returns the packet's buffer to the pool. The packet must not be used afterwards.
+     */
+    public void release() {
+        BufferPool.DIRECT_BUFFERS.release(data);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.util.Log;
+
+/**
+ * Reopens a lost output on the other ingest: every attempt alternates between the primary and the
+ * backup URL, so the first reconnect after the primary fails already goes to the backup.
+ */
+public abstract class FailoverOutputOpener implements PacketSendQueue.OutputOpener {
+    // Member variables.
+    private final String[] urls;
+    private volatile int current;
+
+    /**
+     * @param primaryUrl - URL the output was first opened on.
+     * @param backupUrl  - URL to fail over to.
+     */
+    public FailoverOutputOpener(String primaryUrl, String backupUrl) {
+        urls = new String[]{primaryUrl, backupUrl};
+    }
+
+    @Override
+    public RtmpOutput openOutput() {
+        current = (current + 1) % urls.length;
+        Log.i(MainActivity.APP_NAME, "Failing over to " + (current == 0 ? "primary" : "backup")
+                + " ingest");
+        return open(urls[current]);
+    }
+
+    /**
+     * Opens an output on the given URL.
+     *
+     * @return the output, or null on failure.
+     */
+    protected abstract RtmpOutput open(String url);
+
+    /**
+     * Returns the URL currently streamed to.
+     */
+    public String getCurrentUrl() {
+        return urls[current];
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The software encoder in libffmpeg. The library keeps a single global context that encodes, muxes
+ * and writes to the RTMP output, so the audio and video lanes share this object, which serializes
+ * their calls and counts how often one had to wait for the other.
+ * <p/>
+ * The lanes do contend on this path: an audio frame waits for any video frame being encoded, and
+ * the other way around. Only {@link MediaCodecStreamingConnection}, with one codec per lane, keeps
+ * them apart. Removing the lock here needs per-context entry points in libffmpeg, which is built
+ * outside this project.
+ */
+public class FfmpegEncoder {
+    // Member variables.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong lockContentions = new AtomicLong();
+    private boolean open;
+    private int width;
+    private int height;
+    private int audioSampleRate;
+
+    /**
+     * Opens the encoders and the RTMP output.
+     *
+     * @param width           - Width of the NV21 frames.
+     * @param height          - Height of the NV21 frames.
+     * @param audioSampleRate - Sample rate of the mono 16-bit audio.
+     * @param url             - RTMP URL to stream to.
+     * @return whether the output could be opened.
+     */
+    public boolean open(int width, int height, int audioSampleRate, String url) {
+        lock();
+        try {
+            this.width = width;
+            this.height = height;
+            this.audioSampleRate = audioSampleRate;
+            open = Ffmpeg.init(width, height, audioSampleRate, url);
+            Log.i(MainActivity.APP_NAME, "Ffmpeg.init() returned " + open);
+            return open;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes and sends one video frame.
+     *
+     * @param yuv_image - NV21 frame of the size given to {@link #open}.
+     * @return the encoded size.
+     */
+    public int encodeVideoFrame(byte[] yuv_image) {
+        lock();
+        try {
+            return open ? Ffmpeg.encodeVideoFrame(yuv_image) : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes and sends mono audio.
+     *
+     * @param audio_data - 16-bit PCM.
+     * @param length     - Number of valid samples in audio_data.
+     * @return the encoded size.
+     */
+    public int encodeAudioFrame(short[] audio_data, int length) {
+        lock();
+        try {
+            return open ? Ffmpeg.encodeAudioFrame(audio_data, length) : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the output and opens a new one with the same settings, e.g. to switch to a backup
+     * ingest. The lanes wait meanwhile, and the new stream starts with a key frame.
+     *
+     * @param url - RTMP URL to stream to from now on.
+     * @return whether the output could be opened; if not, later encode calls are ignored.
+     */
+    public boolean reopen(String url) {
+        lock();
+        try {
+            if (open) {
+                Ffmpeg.shutdown();
+            }
+            open = Ffmpeg.init(width, height, audioSampleRate, url);
+            Log.i(MainActivity.APP_NAME, "Ffmpeg.init() returned " + open);
+            return open;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes and closes the output. Later encode calls are ignored.
+     */
+    public void close() {
+        lock();
+        try {
+            if (open) {
+                Ffmpeg.shutdown();
+                open = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how often a lane found the encoder busy with the other lane.
+     */
+    public long getLockContentions() {
+        return lockContentions.get();
+    }
+
+    private void lock() {
+        if (!lock.tryLock()) {
+            lockContentions.incrementAndGet();
+            lock.lock();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Records H.264 and AAC packets from hardware encoders to a local FLV file, holding the same tags
+ * {@link RtmpOutput} sends. Give it a copying {@link PacketSendQueue} of its own, so the disk and
+ * the uplink never wait for each other. Tags are gathered in a buffer and reach the file when it
+ * fills up and on {@link #close()}.
+ */
+public class FlvFileOutput extends FlvTagWriter implements PacketOutput {
+    // CONSTANTS.
+    public static final int BUFFER_SIZE = 65536;
+    private static final int TAG_HEADER_SIZE = 11;
+    // Signature, version 1, audio and video present, header size.
+    private static final byte[] FLV_HEADER = {'F', 'L', 'V', 1, 0x05, 0, 0, 0, 9};
+
+    // Member variables.
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferLength;
+    private int tagLength;
+    private boolean closed;
+
+    // Statistics.
+    private volatile long bytesWritten;
+    private volatile long tagsWritten;
+
+    private FlvFileOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Creates or replaces an FLV file and writes its header and stream metadata.
+     *
+     * @param file            - File to record to.
+     * @param width           - Video width, for the stream metadata.
+     * @param height          - Video height, for the stream metadata.
+     * @param audioSampleRate - Audio sample rate, for the stream metadata.
+     * @param audioChannels   - Number of audio channels, for the stream metadata.
+     * @return an output ready for {@link #write(EncodedPacket)}.
+     * @throws IOException if the file cannot be written.
+     */
+    public static FlvFileOutput open(File file, int width, int height, int audioSampleRate,
+                                     int audioChannels) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        boolean opened = false;
+        try {
+            FlvFileOutput output = new FlvFileOutput(out);
+            output.writeHeader(width, height, audioSampleRate, audioChannels);
+            opened = true;
+            return output;
+        } finally {
+            if (!opened) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Appends one packet as a tag. Codec config packets become sequence headers and must precede
+     * the media of their track.
+     *
+     * @throws IOException if the file could not be written; the output is of no further use.
+     */
+    @Override
+    public synchronized void write(EncodedPacket packet) throws IOException {
+        if (closed) {
+            throw new IOException("Recording closed");
+        }
+        writeTag(packet);
+    }
+
+    /**
+     * Writes out the buffered tags and closes the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } catch (IOException e) {
+            // The file is incomplete either way.
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getTagsWritten() {
+        return tagsWritten;
+    }
+
+    private void writeHeader(int width, int height, int audioSampleRate, int audioChannels)
+            throws IOException {
+        for (byte value : FLV_HEADER) {
+            put(value);
+        }
+        // PreviousTagSize0.
+        putUInt32(0);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeMetadata(new DataOutputStream(payload), width, height, audioSampleRate,
+                audioChannels);
+        byte[] metadata = payload.toByteArray();
+        beginTag(TAG_SCRIPT, 0, metadata.length);
+        for (byte value : metadata) {
+            put(value);
+        }
+        endTag();
+    }
+
+    @Override
+    protected void beginTag(int type, long timestampMs, int length) throws IOException {
+        tagLength = length;
+        put(type);
+        putUInt24(length);
+        // Lower 24 bits of the timestamp, then the upper 8.
+        putUInt24((int) timestampMs);
+        put((int) (timestampMs >>> 24));
+        // Stream id, always 0.
+        putUInt24(0);
+    }
+
+    @Override
+    protected void put(int value) throws IOException {
+        if (bufferLength == BUFFER_SIZE) {
+            flush();
+        }
+        buffer[bufferLength++] = (byte) value;
+    }
+
+    @Override
+    protected void put(ByteBuffer data, int offset, int length) throws IOException {
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            if (bufferLength == BUFFER_SIZE) {
+                flush();
+            }
+            int count = Math.min(end - i, BUFFER_SIZE - bufferLength);
+            for (int j = 0; j < count; j++) {
+                buffer[bufferLength++] = data.get(i++);
+            }
+        }
+    }
+
+    @Override
+    protected void endTag() throws IOException {
+        // PreviousTagSize, which lets players seek backwards.
+        putUInt32(TAG_HEADER_SIZE + tagLength);
+        tagsWritten++;
+    }
+
+    private void putUInt24(int value) throws IOException {
+        put(value >>> 16);
+        put(value >>> 8);
+        put(value);
+    }
+
+    private void flush() throws IOException {
+        out.write(buffer, 0, bufferLength);
+        bytesWritten += bufferLength;
+        bufferLength = 0;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns H.264 and AAC packets from hardware encoders into FLV tag bodies, for
+ * {@link RtmpOutput}, which sends each body as an RTMP message, and {@link FlvFileOutput}, which
+ * records it as an FLV tag. Video arrives from MediaCodec as Annex-B and leaves as the
+ * length-prefixed NAL units FLV expects; codec config packets become the AVC and AAC sequence
+ * headers. Bodies are written byte by byte through the subclass, straight from the packet
+ * buffers, so nothing is allocated per packet.
+ */
+abstract class FlvTagWriter {
+    // CONSTANTS.
+    static final int TAG_AUDIO = 8;
+    static final int TAG_VIDEO = 9;
+    static final int TAG_SCRIPT = 18;
+    static final int FLV_CODEC_AVC = 7;
+    static final int FLV_CODEC_AAC = 10;
+    // AAC, 44 kHz, 16-bit, stereo: what FLV requires for AAC whatever the actual format.
+    private static final int FLV_AAC_AUDIO_HEADER = 0xaf;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    static final int AMF_NUMBER = 0x00;
+    static final int AMF_BOOLEAN = 0x01;
+    static final int AMF_STRING = 0x02;
+    static final int AMF_OBJECT = 0x03;
+    static final int AMF_NULL = 0x05;
+    static final int AMF_UNDEFINED = 0x06;
+    static final int AMF_ECMA_ARRAY = 0x08;
+    static final int AMF_OBJECT_END = 0x09;
+
+    /**
+     * Starts a tag. Its body follows through the put methods.
+     *
+     * @param type        - {@link #TAG_AUDIO}, {@link #TAG_VIDEO} or {@link #TAG_SCRIPT}.
+     * @param timestampMs - Tag timestamp.
+     * @param length      - Size of the body in bytes.
+     */
+    protected abstract void beginTag(int type, long timestampMs, int length) throws IOException;
+
+    protected abstract void put(int value) throws IOException;
+
+    protected abstract void put(ByteBuffer data, int offset, int length) throws IOException;
+
+    protected abstract void endTag() throws IOException;
+
+    /**
+     * Writes one packet as a tag. Codec config packets become sequence headers and must precede
+     * the media of their track.
+     */
+    protected void writeTag(EncodedPacket packet) throws IOException {
+        long timestampMs = Math.max(0, packet.ptsUs / 1000);
+        if (packet.video) {
+            writeVideo(packet, timestampMs);
+        } else {
+            beginTag(TAG_AUDIO, timestampMs, 2 + packet.size);
+            put(FLV_AAC_AUDIO_HEADER);
+            put(packet.config ? 0 : 1);
+            put(packet.data, packet.offset, packet.size);
+            endTag();
+        }
+    }
+
+    private void writeVideo(EncodedPacket packet, long timestampMs) throws IOException {
+        ByteBuffer data = packet.data;
+        int start = packet.offset;
+        int end = packet.offset + packet.size;
+        if (packet.config) {
+            // AVCDecoderConfigurationRecord with one SPS and one PPS.
+            int sps = findNal(data, start, end, NAL_TYPE_SPS);
+            int pps = findNal(data, start, end, NAL_TYPE_PPS);
+            if (sps < 0 || pps < 0) {
+                throw new IOException("Codec config lacks an SPS or PPS");
+            }
+            int spsSize = nalEnd(data, sps, end) - sps;
+            int ppsSize = nalEnd(data, pps, end) - pps;
+            beginTag(TAG_VIDEO, timestampMs, 5 + 11 + spsSize + ppsSize);
+            put(0x10 | FLV_CODEC_AVC);
+            putUInt32(0);
+            put(1);
+            put(data.get(sps + 1));
+            put(data.get(sps + 2));
+            put(data.get(sps + 3));
+            // Four-byte NAL lengths.
+            put(0xff);
+            put(0xe1);
+            putUInt16(spsSize);
+            put(data, sps, spsSize);
+            put(1);
+            putUInt16(ppsSize);
+            put(data, pps, ppsSize);
+            endTag();
+            return;
+        }
+        // Every Annex-B start code becomes a four-byte length, so measure the NAL units first.
+        int length = 5;
+        int nal = nextNal(data, start, end);
+        if (nal < 0) {
+            // Not Annex-B; assume a single NAL unit.
+            length += 4 + packet.size;
+        }
+        while (nal >= 0) {
+            int nalEnd = nalEnd(data, nal, end);
+            length += 4 + nalEnd - nal;
+            nal = nextNal(data, nalEnd, end);
+        }
+        beginTag(TAG_VIDEO, timestampMs, length);
+        put((packet.keyFrame ? 0x10 : 0x20) | FLV_CODEC_AVC);
+        // NAL unit, composition time 0; our encoders emit no B-frames.
+        putUInt32(0x01000000);
+        nal = nextNal(data, start, end);
+        if (nal < 0) {
+            putUInt32(packet.size);
+            put(data, start, packet.size);
+        }
+        while (nal >= 0) {
+            int nalEnd = nalEnd(data, nal, end);
+            putUInt32(nalEnd - nal);
+            put(data, nal, nalEnd - nal);
+            nal = nextNal(data, nalEnd, end);
+        }
+        endTag();
+    }
+
+    protected void putUInt16(int value) throws IOException {
+        put(value >>> 8);
+        put(value);
+    }
+
+    protected void putUInt32(int value) throws IOException {
+        put(value >>> 24);
+        put(value >>> 16);
+        put(value >>> 8);
+        put(value);
+    }
+
+    /**
+     * Returns the index of the first NAL unit byte after a start code at or after from, or -1.
+     */
+    static int nextNal(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the NAL unit starting at nal: the next start code, without the zero byte
+     * of a four-byte one, or end.
+     */
+    static int nalEnd(ByteBuffer data, int nal, int end) {
+        int next = nextNal(data, nal, end);
+        if (next < 0) {
+            return end;
+        }
+        int nalEnd = next - 3;
+        while (nalEnd > nal && data.get(nalEnd - 1) == 0) {
+            nalEnd--;
+        }
+        return nalEnd;
+    }
+
+    private static int findNal(ByteBuffer data, int start, int end, int type) {
+        int nal = nextNal(data, start, end);
+        while (nal >= 0 && nal < end) {
+            if ((data.get(nal) & 0x1f) == type) {
+                return nal;
+            }
+            nal = nextNal(data, nal, end);
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the onMetaData name and the stream properties of a script tag body as AMF0.
+     */
+    static void writeMetadata(DataOutputStream data, int width, int height, int audioSampleRate,
+                              int audioChannels) throws IOException {
+        Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+        metadata.put("width", (double) width);
+        metadata.put("height", (double) height);
+        metadata.put("videocodecid", (double) FLV_CODEC_AVC);
+        metadata.put("audiocodecid", (double) FLV_CODEC_AAC);
+        metadata.put("audiosamplerate", (double) audioSampleRate);
+        metadata.put("audiosamplesize", 16.0);
+        metadata.put("stereo", audioChannels == 2);
+        writeAmf(data, "onMetaData");
+        data.writeByte(AMF_ECMA_ARRAY);
+        data.writeInt(metadata.size());
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            data.writeUTF(entry.getKey());
+            writeAmf(data, entry.getValue());
+        }
+        data.writeShort(0);
+        data.writeByte(AMF_OBJECT_END);
+    }
+
+    /**
+     * Writes a string, number, boolean, null or string-keyed object as AMF0.
+     */
+    @SuppressWarnings("unchecked")
+    static void writeAmf(DataOutputStream data, Object value) throws IOException {
+        if (value == null) {
+            data.writeByte(AMF_NULL);
+        } else if (value instanceof String) {
+            data.writeByte(AMF_STRING);
+            data.writeUTF((String) value);
+        } else if (value instanceof Number) {
+            data.writeByte(AMF_NUMBER);
+            data.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            data.writeByte(AMF_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            data.writeByte(AMF_OBJECT);
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                data.writeUTF(entry.getKey());
+                writeAmf(data, entry.getValue());
+            }
+            data.writeShort(0);
+            data.writeByte(AMF_OBJECT_END);
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + value.getClass());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rotates NV21 frames by a multiple of 90 degrees and optionally mirrors them, in a single pass
+ * between two preallocated buffers. The output stays NV21, the only layout the encoder takes.
+ * Nothing is allocated per frame.
+ */
+public class FrameConverter {
+    // Member variables.
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int outWidth;
+    private final int outHeight;
+    private final int rotation;
+    private final boolean mirror;
+
+    /**
+     * @param srcWidth  - Width of the NV21 input.
+     * @param srcHeight - Height of the NV21 input.
+     * @param rotation  - Clockwise rotation in degrees: 0, 90, 180 or 270.
+     * @param mirror    - Whether to flip the output horizontally.
+     */
+    public FrameConverter(int srcWidth, int srcHeight, int rotation, boolean mirror) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("rotation must be 0, 90, 180 or 270: " + rotation);
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.rotation = rotation;
+        this.mirror = mirror;
+        boolean swap = rotation == 90 || rotation == 270;
+        outWidth = swap ? srcHeight : srcWidth;
+        outHeight = swap ? srcWidth : srcHeight;
+    }
+
+    public int getOutputWidth() {
+        return outWidth;
+    }
+
+    public int getOutputHeight() {
+        return outHeight;
+    }
+
+    /**
+     * Returns the size in bytes of a converted frame.
+     */
+    public int getOutputSize() {
+        return outWidth * outHeight * 3 / 2;
+    }
+
+    /**
+     * Returns whether {@link #convert} merely copies the frame.
+     */
+    public boolean isIdentity() {
+        return rotation == 0 && !mirror;
+    }
+
+    /**
+     * Converts one frame. Positions and limits of both buffers are left untouched.
+     *
+     * @param src - NV21 frame of srcWidth x srcHeight.
+     * @param dst - Buffer of at least {@link #getOutputSize()} bytes, receives NV21.
+     */
+    public void convert(ByteBuffer src, ByteBuffer dst) {
+        if (isIdentity()) {
+            copyBulk(src, dst, getOutputSize());
+            return;
+        }
+        copyPlane(src, 0, srcWidth, srcHeight, 1, dst, 0);
+        // NV21 chroma is a half-size plane of V/U pairs, moved as pairs.
+        copyPlane(src, srcWidth * srcHeight, srcWidth / 2, srcHeight / 2, 2,
+                dst, outWidth * outHeight);
+    }
+
+    // Copies the frame unchanged with a single bulk put, restoring positions afterwards.
+    private static void copyBulk(ByteBuffer src, ByteBuffer dst, int length) {
+        int srcPosition = src.position();
+        int srcLimit = src.limit();
+        int dstPosition = dst.position();
+        int dstLimit = dst.limit();
+        src.limit(length).position(0);
+        dst.limit(length).position(0);
+        dst.put(src);
+        src.limit(srcLimit).position(srcPosition);
+        dst.limit(dstLimit).position(dstPosition);
+    }
+
+    /**
+     * Walks the output plane row by row. Every output row is a straight line through the source
+     * plane, so each row only needs a start index and a step.
+     */
+    private void copyPlane(ByteBuffer src, int srcOffset, int width, int height, int pixelStride,
+                           ByteBuffer dst, int dstOffset) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int rowLength = swap ? height : width;
+        int rows = swap ? width : height;
+        int rowStride = width * pixelStride;
+
+        int out = 0;
+        for (int y = 0; y < rows; y++) {
+            int start;
+            int step;
+            switch (rotation) {
+                case 90:
+                    start = (height - 1) * rowStride + y * pixelStride;
+                    step = -rowStride;
+                    break;
+                case 180:
+                    start = (height - 1 - y) * rowStride + (width - 1) * pixelStride;
+                    step = -pixelStride;
+                    break;
+                case 270:
+                    start = (width - 1 - y) * pixelStride;
+                    step = rowStride;
+                    break;
+                default:
+                    start = y * rowStride;
+                    step = pixelStride;
+                    break;
+            }
+            if (mirror) {
+                start += step * (rowLength - 1);
+                step = -step;
+            }
+            int index = srcOffset + start;
+            if (pixelStride == 2) {
+                for (int x = 0; x < rowLength; x++, index += step, out += 2) {
+                    dst.put(dstOffset + out, src.get(index));
+                    dst.put(dstOffset + out + 1, src.get(index + 1));
+                }
+            } else {
+                for (int x = 0; x < rowLength; x++, index += step, out++) {
+                    dst.put(dstOffset + out, src.get(index));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces frames in front of the video encode lane. Frames are admitted at the target frame rate,
+ * or at the rate the encoder has recently sustained if that is lower, and the rest are skipped
+ * evenly before they are copied or encoded.
+ */
+public class FrameRateGovernor {
+    // CONSTANTS.
+    public static final int DEFAULT_TARGET_FPS = 30;
+    private static final long ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Fraction of the measured encoder throughput that frames are admitted at.
+    private static final double ENCODER_HEADROOM = 0.9;
+    // Weight of the latest sample in the encode time average.
+    private static final double ENCODE_TIME_SMOOTHING = 0.1;
+    // Encode time histogram with one bucket per millisecond.
+    private static final int HISTOGRAM_BUCKETS = 100;
+
+    // Member variables.
+    private volatile int targetFps = DEFAULT_TARGET_FPS;
+    private volatile long averageEncodeNanos;
+    private final int[] encodeTimeHistogram = new int[HISTOGRAM_BUCKETS + 1];
+    private volatile int encodeTimeSamples;
+    private double credit;
+    private long lastFrameNanos;
+
+    // Statistics, written on the capture thread.
+    private volatile long framesSkipped;
+    private volatile double effectiveFps;
+    private long windowStartNanos;
+    private int windowFrames;
+
+    /**
+     * Sets the highest frame rate sent to the encoder.
+     *
+     * @param fps - Target output frame rate, at least 1.
+     */
+    public void setTargetFps(int fps) {
+        targetFps = Math.max(1, fps);
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    /**
+     * Decides whether a captured frame should be encoded. Called from the capture thread.
+     *
+     * @param timestampNanos - Capture time of the frame.
+     * @return false if the frame should be skipped.
+     */
+    public boolean shouldEncode(long timestampNanos) {
+        if (lastFrameNanos == 0) {
+            lastFrameNanos = timestampNanos;
+            windowStartNanos = timestampNanos;
+            credit = 1;
+        }
+        long elapsedNanos = timestampNanos - lastFrameNanos;
+        lastFrameNanos = timestampNanos;
+
+        // Earn credit at the allowed rate; each encoded frame spends one. Spending into debt
+        // keeps frames that arrive slightly early from being skipped.
+        credit = Math.min(credit + getAllowedFps() * elapsedNanos / ONE_SECOND_NANOS, 1);
+        boolean encode = credit > 0;
+        if (encode) {
+            credit -= 1;
+            windowFrames++;
+        } else {
+            framesSkipped++;
+        }
+
+        if (timestampNanos - windowStartNanos >= ONE_SECOND_NANOS) {
+            effectiveFps = windowFrames * (double) ONE_SECOND_NANOS
+                    / (timestampNanos - windowStartNanos);
+            windowStartNanos = timestampNanos;
+            windowFrames = 0;
+        }
+        return encode;
+    }
+
+    /**
+     * Records how long one frame took to encode. Called from the encoder thread.
+     */
+    public void onFrameEncoded(long encodeNanos) {
+        long average = averageEncodeNanos;
+        averageEncodeNanos = average == 0 ? encodeNanos
+                : (long) (average + ENCODE_TIME_SMOOTHING * (encodeNanos - average));
+        int bucket = (int) Math.min(TimeUnit.NANOSECONDS.toMillis(encodeNanos), HISTOGRAM_BUCKETS);
+        encodeTimeHistogram[bucket]++;
+        encodeTimeSamples++;
+    }
+
+    /**
+     * Returns the frame rate currently admitted to the encoder.
+     */
+    public double getAllowedFps() {
+        long average = averageEncodeNanos;
+        if (average <= 0) {
+            return targetFps;
+        }
+        return Math.min(targetFps, ENCODER_HEADROOM * ONE_SECOND_NANOS / average);
+    }
+
+    /**
+     * Returns the frame rate admitted to the encoder over the last second.
+     */
+    public double getEffectiveFps() {
+        return effectiveFps;
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    /**
+     * Returns an encode time percentile in milliseconds, with one millisecond resolution. Values
+     * of {@value #HISTOGRAM_BUCKETS} ms or more are reported as {@value #HISTOGRAM_BUCKETS}.
+     *
+     * @param percentile - Percentile between 0 and 100, e.g. 99 for p99.
+     */
+    public int getEncodeTimePercentileMs(double percentile) {
+        int samples = encodeTimeSamples;
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(samples * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < encodeTimeHistogram.length; bucket++) {
+            seen += encodeTimeHistogram[bucket];
+            if (seen >= rank) {
+                return bucket;
+            }
+        }
+        return HISTOGRAM_BUCKETS;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of raw NV21 video frames for the software encode path.
+ */
+public interface FrameSource {
+    void setFrameCallback(FrameCallback callback);
+
+    /**
+     * Starts capturing. Frame dimensions are known once this returns.
+     *
+     * @return false if the source could not be started.
+     */
+    boolean start();
+
+    void stop();
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Returns the size in bytes of one frame.
+     */
+    int getFrameSize();
+
+    interface FrameCallback {
+        /**
+         * @param frame          - NV21 frame starting at position 0, only valid during the call.
+         * @param length         - Number of valid bytes in frame.
+         * @param timestampNanos - Capture time on the Utils.elapsedRealtimeNanos() clock.
+         */
+        void handleFrame(ByteBuffer frame, int length, long timestampNanos);
+    }
+
+    /**
+     * Callback that takes frames captured into heap arrays without copying them. Sources that
+     * capture into such arrays call this instead of {@link #handleFrame(ByteBuffer, int, long)}.
+     */
+    interface ArrayFrameCallback extends FrameCallback {
+        /**
+         * @param frame          - NV21 frame, exactly one frame long.
+         * @param timestampNanos - Capture time on the Utils.elapsedRealtimeNanos() clock.
+         * @return the array to capture the next frame into: frame itself, or an array of the same
+         * length handed over in exchange for keeping frame.
+         */
+        byte[] handleFrame(byte[] frame, long timestampNanos);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps copies of the packets since the latest video key frame, so a stream can be resumed from a
+ * decodable point after the output was lost. The lanes' own packets are recycled at once, so the
+ * copies go one after another into a single buffer that starts over at every key frame, and the
+ * packets describing them are reused; caching allocates nothing once the first GOP has been seen.
+ * Used by {@link PacketSendQueue}, so only on the MediaCodec path. Not thread safe.
+ */
+public class GopCache {
+    // CONSTANTS.
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    // Member variables.
+    private final int maxBytes;
+    private ByteBuffer arena;
+    private final ArrayList<EncodedPacket> packets = new ArrayList<EncodedPacket>();
+    // Packets describing slices of the arena, kept for reuse by the next GOP.
+    private final ArrayList<EncodedPacket> videoSlices = new ArrayList<EncodedPacket>();
+    private final ArrayList<EncodedPacket> audioSlices = new ArrayList<EncodedPacket>();
+    private int videoSlicesUsed;
+    private int audioSlicesUsed;
+    private int bytes;
+    private boolean haveKeyFrame;
+
+    public GopCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes - Largest GOP kept; a longer one is discarded until the next key frame.
+     */
+    public GopCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copies a packet into the cache. A video key frame replaces the cached GOP; packets before
+     * the first key frame are ignored, as nothing could decode them.
+     */
+    public void add(EncodedPacket packet) {
+        if (packet.video && packet.keyFrame) {
+            clear();
+            haveKeyFrame = true;
+        }
+        if (!haveKeyFrame) {
+            return;
+        }
+        if (bytes + packet.size > maxBytes) {
+            clear();
+            return;
+        }
+        if (arena == null) {
+            arena = BufferPool.DIRECT_BUFFERS.acquire(maxBytes);
+        }
+        EncodedPacket slice = nextSlice(packet.video);
+        EncodedPacket.copyInto(packet, slice, bytes);
+        packets.add(slice);
+        bytes += packet.size;
+    }
+
+    private EncodedPacket nextSlice(boolean video) {
+        ArrayList<EncodedPacket> slices = video ? videoSlices : audioSlices;
+        int used = video ? videoSlicesUsed++ : audioSlicesUsed++;
+        if (used == slices.size()) {
+            slices.add(new EncodedPacket(arena, video));
+        }
+        return slices.get(used);
+    }
+
+    /**
+     * Returns whether the cache holds a GOP starting at a key frame.
+     */
+    public boolean isEmpty() {
+        return packets.isEmpty();
+    }
+
+    public int size() {
+        return packets.size();
+    }
+
+    /**
+     * Returns the i-th cached packet, oldest first; the first is always a video key frame. It is
+     * only valid until the cache is next changed.
+     */
+    public EncodedPacket get(int i) {
+        return packets.get(i);
+    }
+
+    /**
+     * Empties the cache, keeping its buffer for the next GOP.
+     */
+    public void clear() {
+        packets.clear();
+        videoSlicesUsed = 0;
+        audioSlicesUsed = 0;
+        bytes = 0;
+        haveKeyFrame = false;
+    }
+
+    /**
+     * Empties the cache and returns its buffer to the pool.
+     */
+    public void release() {
+        clear();
+        videoSlices.clear();
+        audioSlices.clear();
+        if (arena != null) {
+            BufferPool.DIRECT_BUFFERS.release(arena);
+            arena = null;
+        }
+    }
+}
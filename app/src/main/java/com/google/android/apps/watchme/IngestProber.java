@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.Utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the ingest endpoint to publish to before a stream starts. Each candidate is timed on a TCP
+ * connect, an RTMP handshake and a short upload burst; the fastest one wins. The winning host is
+ * remembered per network (Wi-Fi SSID or cellular), so later streams on the same network skip the
+ * probe. Blocks on network I/O; never call it on the main thread.
+ */
+public class IngestProber {
+    // CONSTANTS.
+    public static final int DEFAULT_RTMP_PORT = 1935;
+    public static final int CONNECT_TIMEOUT_MS = 2000;
+    public static final int BURST_BYTES = 64 * 1024;
+    public static final long CACHE_TTL_MS = TimeUnit.HOURS.toMillis(12);
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int RTMP_VERSION = 3;
+    // A small send buffer makes each write wait for the network instead of the kernel.
+    private static final int SEND_BUFFER_BYTES = 8 * 1024;
+    private static final int WRITE_SIZE = 4 * 1024;
+    private static final String PREFERENCE_PREFIX = "ingestHost:";
+
+    // Member variables.
+    private final SharedPreferences preferences;
+    private final String networkKey;
+
+    public IngestProber(Context context) {
+        preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        networkKey = Utils.getNetworkKey(context);
+    }
+
+    /**
+     * Returns the candidate to publish to: the one on the host that won last time on this network,
+     * or else the best one by probe. Falls back to the first candidate when every probe fails.
+     *
+     * @param candidates - RTMP URLs that serve the same stream, e.g. primary and backup ingest.
+     */
+    public String select(List<String> candidates) {
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        String cachedHost = getCachedHost();
+        if (cachedHost != null) {
+            for (String candidate : candidates) {
+                if (cachedHost.equals(getHostKey(candidate))) {
+                    Log.i(MainActivity.APP_NAME, "Using cached ingest " + cachedHost);
+                    return candidate;
+                }
+            }
+        }
+        Result best = null;
+        for (String candidate : candidates) {
+            Result result = probe(candidate);
+            if (result != null && (best == null || result.getScoreMs() < best.getScoreMs())) {
+                best = result;
+            }
+        }
+        if (best == null) {
+            return candidates.get(0);
+        }
+        putCachedHost(getHostKey(best.url));
+        return best.url;
+    }
+
+    /**
+     * Times one candidate with a {@link #BURST_BYTES} burst.
+     *
+     * @return the measurement, or null if the host could not be reached.
+     */
+    public Result probe(String url) {
+        return probe(url, BURST_BYTES);
+    }
+
+    /**
+     * Times one candidate. The server discards the burst, which follows the handshake, and may
+     * close the connection early; only the bytes that got through are counted.
+     *
+     * @param burstBytes - Bytes to upload after the handshake.
+     * @return the measurement, or null if the host could not be reached.
+     */
+    public Result probe(String url, int burstBytes) {
+        URI uri = parse(url);
+        if (uri == null || uri.getHost() == null) {
+            return null;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.setSendBufferSize(SEND_BUFFER_BYTES);
+            socket.setTcpNoDelay(true);
+            long startNanos = System.nanoTime();
+            socket.connect(new InetSocketAddress(uri.getHost(), getPort(uri)), CONNECT_TIMEOUT_MS);
+            long connectedNanos = System.nanoTime();
+
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            byte[] buffer = new byte[WRITE_SIZE];
+            // C0 and C1, with a zero time and zero-filled random bytes.
+            out.write(RTMP_VERSION);
+            out.write(buffer, 0, HANDSHAKE_SIZE);
+            out.flush();
+            // S0 and S1.
+            in.readFully(buffer, 0, 1);
+            in.readFully(buffer, 0, HANDSHAKE_SIZE);
+            long handshakeNanos = System.nanoTime();
+
+            int sent = 0;
+            long burstStartNanos = System.nanoTime();
+            try {
+                // The burst starts with C2, which echoes S1, and goes on with zeros.
+                out.write(buffer, 0, HANDSHAKE_SIZE);
+                sent = HANDSHAKE_SIZE;
+                Arrays.fill(buffer, (byte) 0);
+                while (sent < burstBytes) {
+                    int length = Math.min(WRITE_SIZE, burstBytes - sent);
+                    out.write(buffer, 0, length);
+                    sent += length;
+                }
+                out.flush();
+            } catch (IOException e) {
+                Log.d(MainActivity.APP_NAME, "Burst to " + uri.getHost() + " cut off after "
+                        + sent + " bytes");
+            }
+            long burstNanos = System.nanoTime() - burstStartNanos;
+
+            Result result = new Result(url,
+                    TimeUnit.NANOSECONDS.toMillis(connectedNanos - startNanos),
+                    TimeUnit.NANOSECONDS.toMillis(handshakeNanos - connectedNanos), sent,
+                    sent > 0 ? sent * (double) TimeUnit.SECONDS.toNanos(1)
+                            / Math.max(1, burstNanos) : 0);
+            Log.i(MainActivity.APP_NAME, "Probed " + uri.getHost() + ": " + result);
+            return result;
+        } catch (IOException e) {
+            Log.w(MainActivity.APP_NAME, "Probe of " + uri.getHost() + " failed", e);
+            return null;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(MainActivity.APP_NAME, "", e);
+            }
+        }
+    }
+
+    /**
+     * Forgets the winner for the current network, e.g. after publishing to it failed.
+     */
+    public void invalidate() {
+        if (networkKey != null) {
+            preferences.edit().remove(PREFERENCE_PREFIX + networkKey).apply();
+        }
+    }
+
+    private String getCachedHost() {
+        if (networkKey == null) {
+            return null;
+        }
+        String value = preferences.getString(PREFERENCE_PREFIX + networkKey, null);
+        if (value == null) {
+            return null;
+        }
+        int separator = value.lastIndexOf('|');
+        if (separator < 0) {
+            return null;
+        }
+        long savedMs;
+        try {
+            savedMs = Long.parseLong(value.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (System.currentTimeMillis() - savedMs > CACHE_TTL_MS) {
+            return null;
+        }
+        return value.substring(0, separator);
+    }
+
+    private void putCachedHost(String hostKey) {
+        if (networkKey == null || hostKey == null) {
+            return;
+        }
+        preferences.edit().putString(PREFERENCE_PREFIX + networkKey,
+                hostKey + "|" + System.currentTimeMillis()).apply();
+    }
+
+    private static URI parse(String url) {
+        try {
+            return new URI(url);
+        } catch (URISyntaxException e) {
+            Log.w(MainActivity.APP_NAME, "Bad ingest URL " + url, e);
+            return null;
+        }
+    }
+
+    private static int getPort(URI uri) {
+        return uri.getPort() > 0 ? uri.getPort() : DEFAULT_RTMP_PORT;
+    }
+
+    /**
+     * Returns "host:port" of the given URL, or null if it cannot be parsed.
+     */
+    private static String getHostKey(String url) {
+        URI uri = parse(url);
+        if (uri == null || uri.getHost() == null) {
+            return null;
+        }
+        return uri.getHost() + ":" + getPort(uri);
+    }
+
+    /**
+     * Measurement of one candidate.
+     */
+    public static class Result {
+        public final String url;
+        public final long connectMs;
+        public final long handshakeMs;
+        public final int bytesSent;
+        public final double bytesPerSecond;
+
+        public Result(String url, long connectMs, long handshakeMs, int bytesSent,
+                      double bytesPerSecond) {
+            this.url = url;
+            this.connectMs = connectMs;
+            this.handshakeMs = handshakeMs;
+            this.bytesSent = bytesSent;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Returns the estimated time to connect and push a whole burst; lower is better.
+         */
+        public double getScoreMs() {
+            if (bytesPerSecond <= 0) {
+                return Double.MAX_VALUE;
+            }
+            return connectMs + handshakeMs + BURST_BYTES * 1000.0 / bytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "connect " + connectMs + " ms, handshake " + handshakeMs + " ms, "
+                    + Math.round(bytesPerSecond * 8 / 1000) + " kbps";
+        }
+    }
+}
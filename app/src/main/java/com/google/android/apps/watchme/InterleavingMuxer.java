@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Merges the packets of the audio and video lanes in timestamp order and writes them to the RTMP
+ * output on its own thread. It is the only thread that touches the output, unless a
+ * {@link PacketSink} such as a {@link PacketSendQueue} is given, in which case packets are handed
+ * to that sink instead.
+ */
+public class InterleavingMuxer {
+    // CONSTANTS.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // How long a packet may wait for the other lane before it is written anyway.
+    private static final long MAX_INTERLEAVE_DELAY_US = 500000;
+
+    // Member variables.
+    private final PacketOutput output;
+    private final EncodeLane videoLane;
+    private final EncodeLane audioLane;
+    private final PacketSink sink;
+    private Thread thread;
+    private volatile boolean running;
+
+    // Statistics.
+    private volatile long packetsWritten;
+    private volatile long writeErrors;
+
+    /**
+     * @param output    - Output to write to.
+     * @param videoLane - Lane producing video packets.
+     * @param audioLane - Lane producing audio packets.
+     */
+    public InterleavingMuxer(PacketOutput output, EncodeLane videoLane, EncodeLane audioLane) {
+        this(output, videoLane, audioLane, null);
+    }
+
+    /**
+     * @param output    - Output to write to when there is no sink.
+     * @param videoLane - Lane producing video packets.
+     * @param audioLane - Lane producing audio packets.
+     * @param sink      - Sink that sends the interleaved packets, or null to write them directly.
+     */
+    public InterleavingMuxer(PacketOutput output, EncodeLane videoLane, EncodeLane audioLane,
+                             PacketSink sink) {
+        this.output = output;
+        this.videoLane = videoLane;
+        this.audioLane = audioLane;
+        this.sink = sink;
+        videoLane.setMuxer(this);
+        audioLane.setMuxer(this);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                muxLoop();
+            }
+        }, "InterleavingMuxer");
+        thread.start();
+    }
+
+    /**
+     * Stops the muxer after writing whatever the lanes have already queued.
+     */
+    public void stop() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.e(MainActivity.APP_NAME, "", e);
+        }
+        thread = null;
+        Log.i(MainActivity.APP_NAME, "Packets written: " + packetsWritten + ", write errors: "
+                + writeErrors);
+    }
+
+    /**
+     * Wakes the muxer up after a lane queued a packet.
+     */
+    void signal() {
+        LockSupport.unpark(thread);
+    }
+
+    private void muxLoop() {
+        while (running) {
+            if (!writeNext(false)) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        while (writeNext(true)) {
+            // Drain.
+        }
+    }
+
+    /**
+     * Writes the earliest queued packet if it is safe to do so.
+     *
+     * @param flush - Whether to write packets without waiting for the other lane.
+     * @return whether a packet was written.
+     */
+    private boolean writeNext(boolean flush) {
+        EncodedPacket video = videoLane.peekPacket();
+        EncodedPacket audio = audioLane.peekPacket();
+        EncodeLane lane;
+        if (video != null && audio != null) {
+            lane = video.ptsUs <= audio.ptsUs ? videoLane : audioLane;
+        } else if (video != null) {
+            if (!flush && !waitedTooLong(video)) {
+                return false;
+            }
+            lane = videoLane;
+        } else if (audio != null) {
+            if (!flush && !waitedTooLong(audio)) {
+                return false;
+            }
+            lane = audioLane;
+        } else {
+            return false;
+        }
+
+        EncodedPacket packet = lane.pollPacket();
+        if (sink != null) {
+            sink.offer(packet);
+            packetsWritten++;
+            return true;
+        }
+        try {
+            output.write(packet);
+            packetsWritten++;
+        } catch (IOException e) {
+            if (writeErrors++ == 0) {
+                Log.e(MainActivity.APP_NAME, "Couldn't write to the output", e);
+            }
+        }
+        lane.recycle(packet);
+        return true;
+    }
+
+    // A lone packet is held until the other lane has had its chance to produce an earlier one.
+    private boolean waitedTooLong(EncodedPacket packet) {
+        return packet.ptsUs + MAX_INTERLEAVE_DELAY_US < videoLane.nowUs();
+    }
+
+    public long getPacketsWritten() {
+        return packetsWritten;
+    }
+
+    public long getWriteErrors() {
+        return writeErrors;
+    }
+}
@@ -132,6 +132,7 @@ public class MainActivity extends Activity implements
         Intent intent = new Intent(getApplicationContext(),
                 StreamerActivity.class);
         intent.putExtra(YouTubeApi.RTMP_URL_KEY, event.getIngestionAddress());
+        intent.putExtra(YouTubeApi.BACKUP_RTMP_URL_KEY, event.getBackupIngestionAddress());
         intent.putExtra(YouTubeApi.BROADCAST_ID_KEY, broadcastId);
 
         startActivityForResult(intent, REQUEST_STREAMER);
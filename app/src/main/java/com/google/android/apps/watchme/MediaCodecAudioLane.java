@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Audio lane around a hardware AAC encoder. {@link #encode} queues PCM into the codec on the
+ * calling thread, stamped with its capture time; the drain thread publishes each AAC frame under
+ * the timestamp the codec hands back with it. With a {@link SilenceDetector} set, frames in
+ * sustained silence are replaced by digital silence, which the codec compresses to a few bytes.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecAudioLane extends MediaCodecLane {
+    // CONSTANTS.
+    private static final int PACKET_SIZE = 8192;
+    private static final long INPUT_TIMEOUT_US = 10000;
+
+    // Member variables.
+    private final int channels;
+    private ByteBuffer[] inputBuffers;
+    private SilenceDetector silenceDetector;
+
+    // Statistics.
+    private volatile long framesDropped;
+
+    /**
+     * @param codec      - Started AAC encoder taking interleaved 16-bit PCM.
+     * @param channels   - Number of channels the codec was configured with.
+     * @param epochNanos - Capture time that maps to pts 0.
+     */
+    public MediaCodecAudioLane(MediaCodec codec, int channels, long epochNanos) {
+        super(codec, false, PACKET_SIZE, epochNanos);
+        this.channels = channels;
+    }
+
+    /**
+     * Enables discontinuous transmission. Must be called before the first frame is encoded.
+     *
+     * @param detector - Detector deciding which frames are silent, or null to encode everything.
+     */
+    public void setSilenceDetector(SilenceDetector detector) {
+        silenceDetector = detector;
+    }
+
+    public SilenceDetector getSilenceDetector() {
+        return silenceDetector;
+    }
+
+    /**
+     * Queues one chunk of audio into the codec. Always called from the same thread.
+     *
+     * @param audio_data     - Native-order interleaved 16-bit PCM starting at position 0.
+     * @param length         - Number of valid samples per channel in audio_data.
+     * @param timestampNanos - Capture time of the first sample.
+     */
+    public void encode(ByteBuffer audio_data, int length, long timestampNanos) {
+        boolean silent = silenceDetector != null
+                && silenceDetector.process(audio_data, length * channels, timestampNanos);
+        int index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (index < 0) {
+            framesDropped++;
+            return;
+        }
+        if (inputBuffers == null) {
+            inputBuffers = codec.getInputBuffers();
+        }
+        ByteBuffer input = inputBuffers[index];
+        input.clear();
+        int bytes = Math.min(length * channels * 2, input.capacity());
+        if (silent) {
+            for (int i = 0; i < bytes; i++) {
+                input.put(i, (byte) 0);
+            }
+        } else {
+            audio_data.limit(bytes).position(0);
+            input.put(audio_data);
+        }
+        codec.queueInputBuffer(index, 0, bytes, TimeUnit.NANOSECONDS.toMicros(timestampNanos),
+                0);
+    }
+
+    /**
+     * Returns the number of frames skipped because the codec had no free input buffer.
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.Utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lane backed by a hardware {@link MediaCodec} encoder. Drains the codec on its own thread and
+ * hands the compressed frames to the muxer, each stamped with the presentation time the codec
+ * reports for it, so frames the codec held back keep their own timestamps. The codec config is
+ * published first, as a packet of its own.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecLane extends EncodeLane {
+    // CONSTANTS.
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    // Member variables.
+    protected final MediaCodec codec;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param codec      - Started encoder whose input timestamps are
+     *                   {@link Utils#elapsedRealtimeNanos()} in microseconds.
+     * @param video      - Whether the codec encodes video.
+     * @param packetSize - Initial packet capacity in bytes; larger frames grow their packet.
+     * @param epochNanos - Capture clock time at which the stream timeline starts.
+     */
+    public MediaCodecLane(MediaCodec codec, boolean video, int packetSize, long epochNanos) {
+        super(video, packetSize, epochNanos);
+        this.codec = codec;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, isVideo() ? "MediaCodecVideoLane" : "MediaCodecAudioLane");
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.e(MainActivity.APP_NAME, "", e);
+        }
+        thread = null;
+    }
+
+    private void drainLoop() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        while (running) {
+            int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (index >= 0) {
+                ByteBuffer encoded = outputBuffers[index];
+                encoded.position(info.offset);
+                encoded.limit(info.offset + info.size);
+                if (info.size > 0) {
+                    publishFrame(encoded, info);
+                }
+                codec.releaseOutputBuffer(index, false);
+            }
+        }
+    }
+
+    private void publishFrame(ByteBuffer encoded, MediaCodec.BufferInfo info) {
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        EncodedPacket packet = acquirePacket(keyFrame);
+        if (packet == null) {
+            return;
+        }
+        int size = info.size;
+        packet.ensureCapacity(size);
+        packet.data.clear();
+        packet.data.put(encoded);
+        packet.config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        // The config goes out ahead of every frame.
+        packet.ptsUs = packet.config ? 0 : toPtsUs(info.presentationTimeUs * 1000);
+        packet.keyFrame = keyFrame;
+        publish(packet, size);
+    }
+}
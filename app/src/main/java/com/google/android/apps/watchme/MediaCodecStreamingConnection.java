@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.annotation.TargetApi;
+import android.hardware.Camera;
+import android.hardware.Camera.Size;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import com.google.android.apps.watchme.util.BufferPool;
+import com.google.android.apps.watchme.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams through the hardware H.264 and AAC encoders. Camera frames are drawn straight into the
+ * video encoder's input surface, so no NV21 buffers pass through Java, and the compressed frames
+ * are sent by {@link RtmpOutput}, and optionally recorded by {@link FlvFileOutput}.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecStreamingConnection implements VideoStreamingInterface {
+    // CONSTANTS.
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+    private static final int AUDIO_BIT_RATE = 128000;
+    private static final String VIDEO_MIME_TYPE = "video/avc";
+    private static final int VIDEO_BIT_RATE = 2000000;
+    private static final int VIDEO_FRAME_RATE = 30;
+    private static final int VIDEO_IFRAME_INTERVAL = 2;
+    // Room for twice the average frame at the configured rate; key frames grow their packet.
+    private static final int VIDEO_PACKET_SIZE = VIDEO_BIT_RATE / 8 / VIDEO_FRAME_RATE * 2;
+
+    // Member variables.
+    private MediaCodec codec;
+    private MediaCodec audioCodec;
+    private Surface inputSurface;
+    private CameraSurfaceRenderer renderer;
+    private MediaCodecLane videoLane;
+    private AudioFrameGrabber audioFrameGrabber;
+    private MediaCodecAudioLane audioLane;
+    private AudioFrameAccumulator audioFrameAccumulator;
+    private InterleavingMuxer muxer;
+    private PacketSendQueue sendQueue;
+    private PacketFanOut fanOut;
+    private final List<String> extraOutputUrls = new ArrayList<String>();
+    private String backupUrl;
+    private BackupIngestMode backupMode = BackupIngestMode.PRIMARY_ONLY;
+    private File archiveFile;
+    private int width;
+    private int height;
+    private int channels;
+    private volatile boolean encoding;
+    private SilenceDetector silenceDetector = new SilenceDetector();
+    private final AudioLevelMeter audioLevelMeter = new AudioLevelMeter();
+    private AudioCaptureConfig audioCaptureConfig = AudioCaptureConfig.MONO;
+
+    /**
+     * Sets the detector that switches the audio lane to discontinuous transmission during
+     * sustained silence. Takes effect on the next open.
+     *
+     * @param detector - Detector to use, or null to encode every audio frame.
+     */
+    public void setSilenceDetector(SilenceDetector detector) {
+        silenceDetector = detector;
+    }
+
+    /**
+     * Sets the channel count, sample format and buffering of the audio for the next open. The AAC
+     * encoder takes interleaved audio, so the planar setting is ignored.
+     *
+     * @param config - Capture settings for the session.
+     */
+    public void setAudioCaptureConfig(AudioCaptureConfig config) {
+        audioCaptureConfig = config;
+    }
+
+    /**
+     * Also sends the stream to another ingest, e.g. a backup, without encoding it again. Takes
+     * effect on the next open.
+     *
+     * @param url - RTMP URL accepted by {@link RtmpOutput#open}.
+     */
+    public void addOutput(String url) {
+        extraOutputUrls.add(url);
+    }
+
+    /**
+     * Removes every destination added with {@link #addOutput(String)}.
+     */
+    public void clearOutputs() {
+        extraOutputUrls.clear();
+    }
+
+    /**
+     * Also records the stream to a local FLV file, through a send queue of its own so a stalled
+     * ingest never holds up the recording. Takes effect on the next open.
+     *
+     * @param file - File to record to, replaced on open, or null to stop recording.
+     */
+    public void setArchiveFile(File file) {
+        archiveFile = file;
+    }
+
+    /**
+     * Sets the backup ingest of the stream. Takes effect on the next open.
+     *
+     * @param url  - Backup RTMP URL, or null for none.
+     * @param mode - Whether to stream to the backup alongside the primary or to fail over to it.
+     */
+    @Override
+    public void setBackupOutput(String url, BackupIngestMode mode) {
+        backupUrl = url;
+        backupMode = mode;
+    }
+
+    /**
+     * Returns every destination besides the primary one that gets its own send queue.
+     */
+    private List<String> getExtraOutputUrls() {
+        if (backupUrl == null || backupMode != BackupIngestMode.SIMULTANEOUS) {
+            return extraOutputUrls;
+        }
+        List<String> urls = new ArrayList<String>(extraOutputUrls);
+        urls.add(backupUrl);
+        return urls;
+    }
+
+    @Override
+    public boolean open(String url, Camera camera, Surface previewSurface) {
+        Log.d(MainActivity.APP_NAME, "open");
+
+        Size previewSize = camera.getParameters().getPreviewSize();
+        width = previewSize.width;
+        height = previewSize.height;
+        channels = audioCaptureConfig.channelCount;
+
+        // Connect before starting the codecs, so nothing is encoded for an ingest that is down.
+        String primaryUrl = url;
+        String failoverUrl = backupMode == BackupIngestMode.FAILOVER ? backupUrl : null;
+        RtmpOutput output = openOutput(url);
+        if (output == null && failoverUrl != null) {
+            // Start on the backup and fail back to the primary if the backup goes down too.
+            output = openOutput(failoverUrl);
+            primaryUrl = failoverUrl;
+            failoverUrl = url;
+        }
+        if (output == null) {
+            Log.e(MainActivity.APP_NAME, "Couldn't reach the ingest, not starting the encoders");
+            return false;
+        }
+
+        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, VIDEO_BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_IFRAME_INTERVAL);
+        MediaFormat audioFormat = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE,
+                AUDIO_SAMPLE_RATE, channels);
+        audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE,
+                AudioFrameAccumulator.AAC_FRAME_SAMPLES * channels
+                        * AudioCaptureConfig.BYTES_PER_OUTPUT_SAMPLE);
+        try {
+            codec = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
+            audioCodec = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+        } catch (IOException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't create the encoders", e);
+            if (codec != null) {
+                codec.release();
+                codec = null;
+            }
+            output.close();
+            return false;
+        }
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        inputSurface = codec.createInputSurface();
+        codec.start();
+        audioCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        audioCodec.start();
+
+        long epochNanos = Utils.elapsedRealtimeNanos();
+        videoLane = new MediaCodecLane(codec, true, VIDEO_PACKET_SIZE, epochNanos);
+        audioLane = new MediaCodecAudioLane(audioCodec, channels, epochNanos);
+        audioLane.setSilenceDetector(silenceDetector);
+        audioFrameAccumulator = new AudioFrameAccumulator(AudioFrameAccumulator.AAC_FRAME_SAMPLES,
+                AUDIO_SAMPLE_RATE, channels, false, new AudioFrameAccumulator.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame, int samples, long timestampNanos) {
+                audioLane.encode(frame, samples, timestampNanos);
+            }
+        });
+        audioFrameGrabber = new AudioFrameGrabber();
+        audioFrameGrabber.setCaptureConfig(new AudioCaptureConfig(channels,
+                audioCaptureConfig.sampleFormat, audioCaptureConfig.bufferMultiplier, false));
+        // Frame-sized reads let whole chunks bypass the accumulator's copy.
+        audioFrameGrabber.setReadSamples(AudioFrameAccumulator.AAC_FRAME_SAMPLES);
+        audioFrameGrabber.setFrameCallback(new AudioFrameGrabber.FrameCallback() {
+            @Override
+            public void handleFrame(ByteBuffer audioData, int length, long timestampNanos) {
+                audioLevelMeter.process(audioData, length * channels, timestampNanos);
+                if (encoding) {
+                    audioFrameAccumulator.add(audioData, length, timestampNanos);
+                }
+            }
+        });
+
+        PacketSink sink;
+        List<String> extraUrls = getExtraOutputUrls();
+        FlvFileOutput archive = openArchive();
+        if (extraUrls.isEmpty() && archive == null) {
+            sendQueue = createSendQueue(primaryUrl, failoverUrl, output, true);
+            sink = sendQueue;
+            sendQueue.start();
+        } else {
+            List<PacketSendQueue> sinks = new ArrayList<PacketSendQueue>();
+            sendQueue = createSendQueue(primaryUrl, failoverUrl, output, false);
+            sinks.add(sendQueue);
+            for (String extraUrl : extraUrls) {
+                // A destination that cannot be opened now keeps retrying on its own.
+                sinks.add(createSendQueue(extraUrl, null, openOutput(extraUrl), false));
+            }
+            if (archive != null) {
+                sinks.add(new PacketSendQueue(archive));
+            }
+            fanOut = new PacketFanOut(videoLane, audioLane, sinks);
+            sink = fanOut;
+            fanOut.start();
+        }
+        muxer = new InterleavingMuxer(output, videoLane, audioLane, sink);
+        muxer.start();
+        videoLane.start();
+        audioLane.start();
+        encoding = true;
+
+        renderer = new CameraSurfaceRenderer();
+        renderer.start(camera, inputSurface, previewSurface);
+        audioFrameGrabber.start(AUDIO_SAMPLE_RATE);
+        return true;
+    }
+
+    /**
+     * @return the output, or null if the ingest could not be reached.
+     */
+    private RtmpOutput openOutput(String url) {
+        try {
+            return RtmpOutput.open(url, width, height, AUDIO_SAMPLE_RATE, channels);
+        } catch (IOException e) {
+            Log.w(MainActivity.APP_NAME, "Couldn't open " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the recording output, or null if there is no archive file or it cannot be written.
+     */
+    private FlvFileOutput openArchive() {
+        if (archiveFile == null) {
+            return null;
+        }
+        try {
+            return FlvFileOutput.open(archiveFile, width, height, AUDIO_SAMPLE_RATE, channels);
+        } catch (IOException e) {
+            Log.w(MainActivity.APP_NAME, "Couldn't record to " + archiveFile + ": "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the queue sending to one destination, reconnecting to it if its output is lost.
+     *
+     * @param failoverDestination - Destination to switch to when the output is lost or falls
+     *                            behind, or null to reconnect to the same one.
+     * @param destinationOutput   - Output already opened to the destination, or null.
+     * @param zeroCopy            - Whether the queue sends the lanes' own packets, which only
+     *                            works for a single destination.
+     */
+    private PacketSendQueue createSendQueue(final String destination, String failoverDestination,
+                                            RtmpOutput destinationOutput, boolean zeroCopy) {
+        PacketSendQueue queue = zeroCopy
+                ? new PacketSendQueue(destinationOutput, videoLane, audioLane)
+                : new PacketSendQueue(destinationOutput);
+        if (failoverDestination != null) {
+            queue.setOutputOpener(new FailoverOutputOpener(destination, failoverDestination) {
+                @Override
+                protected RtmpOutput open(String url) {
+                    return MediaCodecStreamingConnection.this.openOutput(url);
+                }
+            });
+            queue.setReconnectOnCongestion(true);
+            return queue;
+        }
+        queue.setOutputOpener(new PacketSendQueue.OutputOpener() {
+            @Override
+            public RtmpOutput openOutput() {
+                return MediaCodecStreamingConnection.this.openOutput(destination);
+            }
+        });
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        Log.i(MainActivity.APP_NAME, "close");
+
+        encoding = false;
+        if (codec == null) {
+            return;
+        }
+        renderer.stop();
+        audioFrameGrabber.stop();
+        audioLevelMeter.reset();
+        videoLane.stop();
+        audioLane.stop();
+        muxer.stop();
+        if (fanOut != null) {
+            fanOut.stop();
+            List<PacketSendQueue> sinks = fanOut.getSinks();
+            for (int i = 1; i < sinks.size(); i++) {
+                if (sinks.get(i).getOutput() != null) {
+                    sinks.get(i).getOutput().close();
+                }
+            }
+            fanOut = null;
+        } else {
+            sendQueue.stop();
+        }
+        // The send queue may have reconnected since the output was first opened.
+        if (sendQueue.getOutput() != null) {
+            sendQueue.getOutput().close();
+        }
+        codec.stop();
+        codec.release();
+        codec = null;
+        inputSurface.release();
+        inputSurface = null;
+        audioCodec.stop();
+        audioCodec.release();
+        audioCodec = null;
+        if (silenceDetector != null) {
+            Log.i(MainActivity.APP_NAME, "Silent audio frames: "
+                    + silenceDetector.getSilentFrames());
+        }
+        Log.i(MainActivity.APP_NAME, "Audio frames dropped by the encoder: "
+                + audioLane.getFramesDropped());
+        audioFrameAccumulator.release();
+        videoLane.release();
+        audioLane.release();
+        BufferPool.DIRECT_BUFFERS.checkLeaks();
+    }
+
+    /**
+     * Returns the queue sending packets to the output, or null before the output is open.
+     */
+    public PacketSendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * Returns the fan-out to every destination, or null when streaming to a single one.
+     */
+    public PacketFanOut getFanOut() {
+        return fanOut;
+    }
+
+    @Override
+    public AudioLevelMeter getAudioLevelMeter() {
+        return audioLevelMeter;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends every packet, encoded once, to several destinations. Each destination is a copying
+ * {@link PacketSendQueue} with its own sender thread, backlog, drop policy and reconnects, so a
+ * slow or failed destination only loses its own packets. Each queue copies into a ring buffer of
+ * its own, so the lanes' packets are recycled as soon as they have been copied and nothing is
+ * allocated per packet.
+ */
+public class PacketFanOut implements PacketSink {
+    // Member variables.
+    private final EncodeLane videoLane;
+    private final EncodeLane audioLane;
+    private final List<PacketSendQueue> sinks;
+
+    /**
+     * @param videoLane - Lane that video packets are recycled to.
+     * @param audioLane - Lane that audio packets are recycled to.
+     * @param sinks     - Copying queues, one per destination.
+     */
+    public PacketFanOut(EncodeLane videoLane, EncodeLane audioLane, List<PacketSendQueue> sinks) {
+        this.videoLane = videoLane;
+        this.audioLane = audioLane;
+        this.sinks = Collections.unmodifiableList(new ArrayList<PacketSendQueue>(sinks));
+    }
+
+    public void start() {
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).start();
+        }
+    }
+
+    /**
+     * Stops every destination after it has sent what it still has queued. The destinations drain
+     * at the same time, and one whose write is already stuck has its output closed first, so a
+     * stalled ingest does not hold up the others, e.g. a recording waiting to be finalized.
+     */
+    public void stop() {
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).requestStop();
+            sinks.get(i).abortStalledWrite();
+        }
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).stop();
+        }
+    }
+
+    @Override
+    public void offer(EncodedPacket packet) {
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).offer(packet);
+        }
+        (packet.video ? videoLane : audioLane).recycle(packet);
+    }
+
+    public List<PacketSendQueue> getSinks() {
+        return sinks;
+    }
+}
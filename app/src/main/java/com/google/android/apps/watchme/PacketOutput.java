@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.io.IOException;
+
+/**
+ * Destination that a {@link PacketSendQueue} or {@link InterleavingMuxer} writes to: an RTMP
+ * ingest or a local recording.
+ */
+public interface PacketOutput {
+    /**
+     * Writes one packet. Called by one thread at a time; the packet is not retained.
+     *
+     * @throws IOException if the destination was lost; the output is of no further use.
+     */
+    void write(EncodedPacket packet) throws IOException;
+
+    void close();
+}
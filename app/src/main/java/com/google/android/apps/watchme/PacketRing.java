@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Ring buffer holding copies of packets for one destination, so the lanes' packets can be
+ * recycled at once. Copies are placed one after another in a single pooled buffer and are mostly
+ * freed in the order they were made; one freed out of order keeps its space until every older
+ * copy is freed too. The packets describing the copies are reused, so copying allocates nothing
+ * once the ring has warmed up. Not thread safe.
+ */
+public class PacketRing {
+    // CONSTANTS.
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    // Member variables.
+    private final int maxBytes;
+    private ByteBuffer ring;
+    // Copies in use, oldest first.
+    private final ArrayDeque<EncodedPacket> used = new ArrayDeque<EncodedPacket>();
+    // Copies in use that were freed before an older one.
+    private final ArrayList<EncodedPacket> freedEarly = new ArrayList<EncodedPacket>();
+    private final ArrayDeque<EncodedPacket> videoSlices = new ArrayDeque<EncodedPacket>();
+    private final ArrayDeque<EncodedPacket> audioSlices = new ArrayDeque<EncodedPacket>();
+    // Where the next copy goes and where the oldest copy starts.
+    private int head;
+    private int tail;
+
+    public PacketRing() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes - Size of the ring; it should hold a destination's whole backlog.
+     */
+    public PacketRing(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copies a packet into the ring.
+     *
+     * @return the copy, to be handed back to {@link #free}, or null if the ring is full.
+     */
+    public EncodedPacket copy(EncodedPacket packet) {
+        int offset = findRoom(packet.size);
+        if (offset < 0) {
+            return null;
+        }
+        if (ring == null) {
+            ring = BufferPool.DIRECT_BUFFERS.acquire(maxBytes);
+        }
+        ArrayDeque<EncodedPacket> slices = packet.video ? videoSlices : audioSlices;
+        EncodedPacket copy = slices.pollFirst();
+        if (copy == null) {
+            copy = new EncodedPacket(ring, packet.video);
+        }
+        EncodedPacket.copyInto(packet, copy, offset);
+        used.addLast(copy);
+        head = offset + packet.size;
+        return copy;
+    }
+
+    /**
+     * Returns the offset a copy of the given size fits at, or -1.
+     */
+    private int findRoom(int size) {
+        if (used.isEmpty()) {
+            return size <= maxBytes ? 0 : -1;
+        }
+        if (head > tail) {
+            if (head + size <= maxBytes) {
+                return head;
+            }
+            // Wrap around; the end of the ring is skipped until the copies before it are freed.
+            return size <= tail ? 0 : -1;
+        }
+        return head + size <= tail ? head : -1;
+    }
+
+    /**
+     * Frees a copy made by {@link #copy}. It must not be used afterwards.
+     */
+    public void free(EncodedPacket copy) {
+        if (used.peekFirst() != copy) {
+            freedEarly.add(copy);
+            return;
+        }
+        reclaim(used.pollFirst());
+        while (!used.isEmpty() && freedEarly.remove(used.peekFirst())) {
+            reclaim(used.pollFirst());
+        }
+        if (used.isEmpty()) {
+            head = 0;
+            tail = 0;
+        } else {
+            tail = used.peekFirst().offset;
+        }
+    }
+
+    private void reclaim(EncodedPacket copy) {
+        (copy.video ? videoSlices : audioSlices).addFirst(copy);
+    }
+
+    /**
+     * Returns the ring's buffer to the pool. Every copy must have been freed.
+     */
+    public void release() {
+        used.clear();
+        freedEarly.clear();
+        videoSlices.clear();
+        audioSlices.clear();
+        head = 0;
+        tail = 0;
+        if (ring != null) {
+            BufferPool.DIRECT_BUFFERS.release(ring);
+            ring = null;
+        }
+    }
+}
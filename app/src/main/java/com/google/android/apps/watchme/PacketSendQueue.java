@@ -0,0 +1,661 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.Utils;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue between the {@link InterleavingMuxer} and a {@link PacketOutput}, drained by its
+ * own sender thread so a slow uplink never stalls muxing. When the queue holds more than its
+ * capacity or its oldest packet has waited longer than the latency budget, packets are dropped in
+ * order of least harm: video delta frames first, then video key frames, then audio. Once any video
+ * is dropped, later delta frames are discarded too until the next key frame, since they could not
+ * be decoded anyway. Frames a lane drops because all its packets are queued count the same way.
+ * <p/>
+ * With an {@link OutputOpener} set, a failed write does not end the stream: the sender closes the
+ * output and reopens it with exponential backoff while the encoders keep running. Every packet also
+ * goes into a {@link GopCache} holding the GOP since the latest key frame, sent or not, and after
+ * reconnecting the sender republishes the codec config and that GOP, so the stream resumes from a
+ * key frame even after an outage shorter than a GOP. Codec config packets are never dropped. Only
+ * {@link MediaCodecStreamingConnection} sends through this queue; StreamerActivity publishes
+ * through SrsPublisher, whose own muxer resumes at the next key frame instead, see
+ * {@link PublisherControl#startTransport}.
+ * <p/>
+ * Constructed without lanes, the queue copies the packets it is offered into its own
+ * {@link PacketRing}, so the caller keeps ownership and this queue's backlog never holds up the
+ * encoders; that is how a {@link PacketFanOut} feeds several destinations. A packet that does not
+ * fit in the ring is dropped like a shed one. Codec config packets, sent once per stream, get
+ * pooled copies of their own instead.
+ * <p/>
+ * Our encoders emit no B-frames, so every video delta frame is a P-frame.
+ */
+public class PacketSendQueue implements PacketSink {
+    // CONSTANTS.
+    public static final int DEFAULT_CAPACITY = 24;
+    public static final long DEFAULT_MAX_LATENCY_MS = 1500;
+    // Weight of the latest packet in the average queue latency.
+    private static final double LATENCY_SMOOTHING = 0.05;
+    // How often a stopping sender's output is closed again while the sender has not finished.
+    private static final long STOP_POLL_MS = 100;
+
+    // Member variables.
+    private Clock clock = Clock.SYSTEM;
+    private volatile PacketOutput output;
+    private OutputOpener opener;
+    private final ReconnectBackoff backoff = new ReconnectBackoff();
+    private final GopCache gopCache = new GopCache();
+    private EncodedPacket videoConfig;
+    private EncodedPacket audioConfig;
+    private long reconnectAtNanos;
+    private boolean needKeyFrame;
+    private boolean reconnectOnCongestion;
+    private long connectedNanos;
+    // Output being written to and when the write began, for aborting one stuck on the network.
+    private volatile PacketOutput writingTo;
+    private volatile long writeStartedNanos;
+    private PacketOutput abortedOutput;
+    private final EncodeLane videoLane;
+    private final EncodeLane audioLane;
+    private final PacketRing ring;
+    private final int capacity;
+    private final long maxLatencyNanos;
+    private final ArrayDeque<EncodedPacket> queue;
+    private boolean waitingForKeyFrame;
+    // Frames the lanes dropped that the statistics already include.
+    private long videoLaneDrops;
+    private long videoLaneKeyDrops;
+    private long audioLaneDrops;
+    private boolean running;
+    private Thread thread;
+
+    // Statistics.
+    private volatile long packetsSent;
+    private volatile long writeErrors;
+    private volatile long droppedDeltaFrames;
+    private volatile long droppedKeyFrames;
+    private volatile long droppedAudio;
+    private volatile double averageLatencyMs;
+    private volatile long maxLatencyMs;
+    private volatile long outages;
+    private volatile long reconnects;
+    private volatile long abortedWrites;
+
+    public PacketSendQueue(PacketOutput output, EncodeLane videoLane, EncodeLane audioLane) {
+        this(output, videoLane, audioLane, DEFAULT_CAPACITY, DEFAULT_MAX_LATENCY_MS);
+    }
+
+    /**
+     * Creates a queue that sends copies of the packets it is offered.
+     *
+     * @param output - Output to send to, or null to open one through the opener first.
+     */
+    public PacketSendQueue(PacketOutput output) {
+        this(output, null, null, DEFAULT_CAPACITY, DEFAULT_MAX_LATENCY_MS);
+    }
+
+    /**
+     * @param output       - Output to send to, or null to open one through the opener first.
+     * @param videoLane    - Lane that sent video packets are recycled to, or null to send copies.
+     * @param audioLane    - Lane that sent audio packets are recycled to, or null to send copies.
+     * @param capacity     - Most packets that may wait; keep it below the lanes' combined
+     *                     {@link EncodeLane#DEFAULT_PACKET_POOL_SIZE} so encoding never starves.
+     * @param maxLatencyMs - Longest a packet may wait before the queue counts as congested.
+     */
+    public PacketSendQueue(PacketOutput output, EncodeLane videoLane, EncodeLane audioLane,
+                           int capacity, long maxLatencyMs) {
+        this.output = output;
+        this.videoLane = videoLane;
+        this.audioLane = audioLane;
+        ring = videoLane == null ? new PacketRing() : null;
+        this.capacity = capacity;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMs);
+        queue = new ArrayDeque<EncodedPacket>(capacity + 1);
+    }
+
+    /**
+     * Enables reconnecting after a failed write. Must be called before {@link #start()}.
+     *
+     * @param opener - Reopens the output, or null to keep counting write errors instead.
+     */
+    public void setOutputOpener(OutputOpener opener) {
+        this.opener = opener;
+    }
+
+    /**
+     * Also drops and reopens the output when a packet queued after the output was opened waited
+     * longer than the latency budget, i.e. the destination stopped keeping up. A write blocked on
+     * a stalled connection never returns to that check, so each offer also closes the output
+     * under a write that has run longer than the budget, which makes the write fail. Only useful
+     * with an opener that switches destinations, such as a {@link FailoverOutputOpener}. Must be
+     * called before {@link #start()}.
+     */
+    public void setReconnectOnCongestion(boolean reconnectOnCongestion) {
+        this.reconnectOnCongestion = reconnectOnCongestion;
+    }
+
+    /**
+     * Replaces the clock that packets are timed and reconnects scheduled by, e.g. with a fake one
+     * in tests. Must be called before anything is offered.
+     */
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public void start() {
+        connectedNanos = clock.elapsedRealtimeNanos();
+        synchronized (this) {
+            running = true;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "PacketSendQueue");
+        thread.start();
+    }
+
+    /**
+     * Tells the sender to stop once it has sent whatever is still queued, without waiting for it.
+     */
+    public void requestStop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops the sender after it has sent whatever is still queued. A destination that has not
+     * taken it within the latency budget has stalled: its output is then closed, which fails the
+     * blocked write and discards the rest. Otherwise the output, which may have been reopened
+     * since, is left open; get it from {@link #getOutput()} to close it.
+     */
+    public void stop() {
+        requestStop();
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos) + 1);
+            PacketOutput closed = null;
+            while (thread.isAlive()) {
+                // A reconnect may open another output meanwhile, so keep closing the current one.
+                PacketOutput stalled = output;
+                if (stalled != null && stalled != closed) {
+                    closed = stalled;
+                    Log.w(MainActivity.APP_NAME, "Output stalled while stopping, closing it");
+                    abortedWrites++;
+                    stalled.close();
+                }
+                thread.join(STOP_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Log.e(MainActivity.APP_NAME, "", e);
+        }
+        thread = null;
+        Log.i(MainActivity.APP_NAME, "Packets sent: " + packetsSent + ", write errors: "
+                + writeErrors + ", dropped delta/key/audio: " + droppedDeltaFrames + "/"
+                + droppedKeyFrames + "/" + droppedAudio + ", queue latency avg/max: "
+                + Math.round(averageLatencyMs) + "/" + maxLatencyMs + " ms, outages: "
+                + outages + ", reconnects: " + reconnects + ", aborted writes: "
+                + abortedWrites);
+        gopCache.release();
+        if (ring != null) {
+            synchronized (this) {
+                ring.release();
+            }
+        }
+        if (videoConfig != null) {
+            videoConfig.release();
+            videoConfig = null;
+        }
+        if (audioConfig != null) {
+            audioConfig.release();
+            audioConfig = null;
+        }
+    }
+
+    /**
+     * Queues a packet for sending. Called from the muxer thread; the packet is recycled to its
+     * lane once sent or dropped, or copied first if this queue has no lanes.
+     */
+    @Override
+    public void offer(EncodedPacket packet) {
+        synchronized (this) {
+            if (videoLane != null) {
+                countLaneDrops();
+            }
+            if (packet.video && !packet.config) {
+                if (packet.keyFrame) {
+                    waitingForKeyFrame = false;
+                } else if (waitingForKeyFrame) {
+                    droppedDeltaFrames++;
+                    if (ring == null) {
+                        recycle(packet);
+                    }
+                    return;
+                }
+            }
+            if (ring != null) {
+                packet = copy(packet);
+                if (packet == null) {
+                    return;
+                }
+            }
+            packet.queuedNanos = clock.elapsedRealtimeNanos();
+            queue.addLast(packet);
+            shed();
+            notifyAll();
+            if (reconnectOnCongestion) {
+                abortStalledWrite(packet.queuedNanos);
+            }
+        }
+    }
+
+    /**
+     * Counts the frames the lanes dropped for want of a free packet as if this queue had shed them,
+     * as they never reach it. A lost video frame leaves the delta frames after it undecodable, so
+     * those are discarded until the next key frame.
+     */
+    private void countLaneDrops() {
+        // Read first, so it never counts a key frame the total does not include yet.
+        long keyFrames = videoLane.getKeyFramesDropped();
+        long frames = videoLane.getPacketsDropped();
+        if (frames != videoLaneDrops) {
+            long newFrames = frames - videoLaneDrops;
+            long newKeyFrames = Math.min(keyFrames - videoLaneKeyDrops, newFrames);
+            droppedKeyFrames += newKeyFrames;
+            droppedDeltaFrames += newFrames - newKeyFrames;
+            videoLaneDrops = frames;
+            videoLaneKeyDrops += newKeyFrames;
+            waitingForKeyFrame = true;
+        }
+        if (audioLane != null) {
+            long audio = audioLane.getPacketsDropped();
+            droppedAudio += audio - audioLaneDrops;
+            audioLaneDrops = audio;
+        }
+    }
+
+    /**
+     * Closes the output if a write to it has been blocked for longer than the latency budget, so
+     * the sender gets an error instead of waiting for a connection that has stalled.
+     */
+    public synchronized void abortStalledWrite() {
+        abortStalledWrite(clock.elapsedRealtimeNanos());
+    }
+
+    private void abortStalledWrite(long nowNanos) {
+        PacketOutput stalled = writingTo;
+        if (stalled == null || stalled == abortedOutput
+                || nowNanos - writeStartedNanos <= maxLatencyNanos) {
+            return;
+        }
+        Log.w(MainActivity.APP_NAME, "Write blocked for "
+                + TimeUnit.NANOSECONDS.toMillis(nowNanos - writeStartedNanos)
+                + " ms, closing the output");
+        abortedOutput = stalled;
+        abortedWrites++;
+        stalled.close();
+    }
+
+    /**
+     * Copies an offered packet into the ring, or drops it as {@link #dropFirst} would have if the
+     * ring is full.
+     *
+     * @return the copy, or null if dropped.
+     */
+    private EncodedPacket copy(EncodedPacket packet) {
+        if (packet.config) {
+            return EncodedPacket.copyOf(packet);
+        }
+        EncodedPacket copy = ring.copy(packet);
+        if (copy != null) {
+            return copy;
+        }
+        if (!packet.video) {
+            droppedAudio++;
+        } else if (packet.keyFrame) {
+            droppedKeyFrames++;
+            waitingForKeyFrame = true;
+        } else {
+            droppedDeltaFrames++;
+            waitingForKeyFrame = true;
+        }
+        return null;
+    }
+
+    /**
+     * Drops packets until the queue is within its capacity and latency budget.
+     */
+    private void shed() {
+        long now = clock.elapsedRealtimeNanos();
+        while (queue.size() > capacity
+                || (queue.size() > 1 && now - queue.peekFirst().queuedNanos > maxLatencyNanos)) {
+            if (!dropFirst(true, false) && !dropFirst(true, true) && !dropFirst(false, false)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest queued packet of the given kind. Dropping video also drops the delta frames
+     * after it up to the next key frame, since they depended on it.
+     *
+     * @return false if there was none.
+     */
+    private boolean dropFirst(boolean video, boolean keyFrame) {
+        Iterator<EncodedPacket> packets = queue.iterator();
+        while (packets.hasNext()) {
+            EncodedPacket packet = packets.next();
+            if (packet.config || packet.video != video
+                    || (video && packet.keyFrame != keyFrame)) {
+                continue;
+            }
+            packets.remove();
+            recycle(packet);
+            if (!video) {
+                droppedAudio++;
+                return true;
+            }
+            if (keyFrame) {
+                droppedKeyFrames++;
+            } else {
+                droppedDeltaFrames++;
+            }
+            waitingForKeyFrame = true;
+            while (packets.hasNext()) {
+                EncodedPacket next = packets.next();
+                if (next.video && next.keyFrame) {
+                    waitingForKeyFrame = false;
+                    break;
+                }
+                if (next.video && !next.config) {
+                    packets.remove();
+                    recycle(next);
+                    droppedDeltaFrames++;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a packet to its lane, or a copy to the ring, from the muxer thread when shedding or
+     * the sender thread once sent. The lane serializes recycling threads itself; the ring is only
+     * touched with this queue locked.
+     */
+    private void recycle(EncodedPacket packet) {
+        if (ring != null && packet.config) {
+            packet.release();
+            return;
+        }
+        if (ring != null) {
+            ring.free(packet);
+            return;
+        }
+        (packet.video ? videoLane : audioLane).recycle(packet);
+    }
+
+    private void sendLoop() {
+        while (true) {
+            EncodedPacket packet;
+            synchronized (this) {
+                while (running && queue.isEmpty() && !isReconnectDue()) {
+                    try {
+                        if (isReconnecting()) {
+                            wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+                                    reconnectAtNanos - clock.elapsedRealtimeNanos())));
+                        } else {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Log.e(MainActivity.APP_NAME, "", e);
+                    }
+                }
+                if (!running && queue.isEmpty()) {
+                    return;
+                }
+                packet = queue.pollFirst();
+            }
+            if (isReconnectDue() && running) {
+                reconnect();
+            }
+            if (packet == null) {
+                continue;
+            }
+            long latencyNanos = clock.elapsedRealtimeNanos() - packet.queuedNanos;
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+            averageLatencyMs += (latencyMs - averageLatencyMs) * LATENCY_SMOOTHING;
+            maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+            if (reconnectOnCongestion && !isReconnecting() && packet.queuedNanos > connectedNanos
+                    && latencyNanos > maxLatencyNanos) {
+                Log.w(MainActivity.APP_NAME, "Output fell " + latencyMs + " ms behind");
+                disconnect();
+            }
+
+            send(packet);
+            synchronized (this) {
+                recycle(packet);
+            }
+        }
+    }
+
+    private boolean isReconnecting() {
+        return output == null && opener != null;
+    }
+
+    private boolean isReconnectDue() {
+        return isReconnecting() && clock.elapsedRealtimeNanos() >= reconnectAtNanos;
+    }
+
+    private void send(EncodedPacket packet) {
+        if (packet.config) {
+            // Kept for every reconnect, as a new connection needs the sequence headers again.
+            if (packet.video) {
+                videoConfig = replaceConfig(videoConfig, packet);
+            } else {
+                audioConfig = replaceConfig(audioConfig, packet);
+            }
+        }
+        if (opener != null && !packet.config) {
+            // The current GOP, including what was sent before an outage, for the next connection.
+            gopCache.add(packet);
+        }
+        if (isReconnecting()) {
+            return;
+        }
+        if (needKeyFrame && packet.video) {
+            if (!packet.keyFrame) {
+                return;
+            }
+            needKeyFrame = false;
+        }
+        if (!write(packet) && opener != null) {
+            disconnect();
+        }
+    }
+
+    private static EncodedPacket replaceConfig(EncodedPacket previous, EncodedPacket config) {
+        if (previous != null) {
+            previous.release();
+        }
+        return EncodedPacket.copyOf(config);
+    }
+
+    /**
+     * @return false if the output failed.
+     */
+    private boolean write(EncodedPacket packet) {
+        if (output == null) {
+            writeErrors++;
+            return false;
+        }
+        writeStartedNanos = clock.elapsedRealtimeNanos();
+        writingTo = output;
+        try {
+            output.write(packet);
+            packetsSent++;
+            return true;
+        } catch (IOException e) {
+            Log.w(MainActivity.APP_NAME, "Write failed: " + e.getMessage());
+            writeErrors++;
+            return false;
+        } finally {
+            writingTo = null;
+        }
+    }
+
+    private void disconnect() {
+        Log.w(MainActivity.APP_NAME, "Output lost, reconnecting");
+        outages++;
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+        reconnectAtNanos = clock.elapsedRealtimeNanos()
+                + TimeUnit.MILLISECONDS.toNanos(backoff.nextDelayMs());
+    }
+
+    private void reconnect() {
+        PacketOutput newOutput = opener.openOutput();
+        if (newOutput == null) {
+            long delayMs = backoff.nextDelayMs();
+            Log.w(MainActivity.APP_NAME, "Reconnect attempt " + backoff.getAttempts()
+                    + " failed, retrying in " + delayMs + " ms");
+            reconnectAtNanos = clock.elapsedRealtimeNanos()
+                    + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            return;
+        }
+        Log.i(MainActivity.APP_NAME, "Reconnected after " + backoff.getAttempts()
+                + " attempts, resending " + gopCache.size() + " cached packets");
+        output = newOutput;
+        connectedNanos = clock.elapsedRealtimeNanos();
+        reconnects++;
+        backoff.reset();
+        // Without a cached GOP the next packets may depend on frames the server never got.
+        needKeyFrame = gopCache.isEmpty();
+        if ((videoConfig != null && !write(videoConfig))
+                || (audioConfig != null && !write(audioConfig))) {
+            disconnect();
+            return;
+        }
+        // The cache keeps growing with the GOP, ready for the next outage.
+        for (int i = 0; i < gopCache.size(); i++) {
+            if (!write(gopCache.get(i))) {
+                disconnect();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent.
+     */
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the average time packets have recently spent queued, in milliseconds.
+     */
+    public double getAverageLatencyMs() {
+        return averageLatencyMs;
+    }
+
+    public long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getWriteErrors() {
+        return writeErrors;
+    }
+
+    public long getDroppedDeltaFrames() {
+        return droppedDeltaFrames;
+    }
+
+    public long getDroppedKeyFrames() {
+        return droppedKeyFrames;
+    }
+
+    public long getDroppedAudio() {
+        return droppedAudio;
+    }
+
+    /**
+     * Returns the current output, which changes when the sender reconnects and is null while it
+     * is reconnecting.
+     */
+    public PacketOutput getOutput() {
+        return output;
+    }
+
+    /**
+     * Returns how often the output was lost.
+     */
+    public long getOutages() {
+        return outages;
+    }
+
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Returns how often a write blocked for longer than the latency budget, or a stop outlasted
+     * it, and the output was closed under it.
+     */
+    public long getAbortedWrites() {
+        return abortedWrites;
+    }
+
+    public interface OutputOpener {
+        /**
+         * Opens a new output to the same destination, or to an equivalent one. Called on the
+         * sender thread.
+         *
+         * @return the output, or null on failure.
+         */
+        PacketOutput openOutput();
+    }
+
+    /**
+     * Source of the time packets are queued at and reconnects are due at.
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long elapsedRealtimeNanos() {
+                return Utils.elapsedRealtimeNanos();
+            }
+        };
+
+        long elapsedRealtimeNanos();
+    }
+}
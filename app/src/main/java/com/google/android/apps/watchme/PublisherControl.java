@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.Utils;
+
+import net.ossrs.yasea.SrsFlvMuxer;
+import net.ossrs.yasea.SrsPublisher;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Controls of a {@link SrsPublisher} that the library keeps private: the bitrate of the running
+ * hardware encoder, the depth of the RTMP send queue and the RTMP connection on its own. They are
+ * reached by reflection, so every method reports whether it worked and callers fall back to the
+ * publisher's own methods when it did not, e.g. with the software encoder. Each field is looked
+ * up once per class, and one that is missing or unreadable is logged once, as a warning.
+ */
+public class PublisherControl {
+    // CONSTANTS.
+    // Private members of SrsPublisher, SrsEncoder and SrsFlvMuxer; app/build.gradle checks that
+    // the :library module still declares them.
+    private static final String ENCODER_FIELD = "mEncoder";
+    private static final String MUXER_FIELD = "mFlvMuxer";
+    private static final String VIDEO_CODEC_FIELD = "vencoder";
+    private static final String SEND_QUEUE_FIELD = "mFlvTagCache";
+    // Fields by class and name; null for fields the class does not have.
+    private static final Map<String, Field> FIELDS = new HashMap<String, Field>();
+
+    // Member variables.
+    private final SrsPublisher publisher;
+
+    /**
+     * @param publisher - Publisher to control.
+     */
+    public PublisherControl(SrsPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Changes the target bitrate of the hardware video encoder while it runs, without restarting
+     * it, so the stream neither glitches nor starts over with a key frame.
+     *
+     * @param bitrate - Video bitrate in bits per second.
+     * @return false if the publisher is not encoding in hardware or the device cannot change the
+     * bitrate of a running encoder.
+     */
+    public boolean setVideoBitrate(int bitrate) {
+        if (!Utils.hasKitKat()) {
+            return false;
+        }
+        MediaCodec codec = getVideoCodec();
+        if (codec == null) {
+            return false;
+        }
+        return setParameter(codec, MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+    }
+
+    /**
+     * Asks the hardware video encoder for a key frame as soon as possible.
+     *
+     * @return false if the publisher is not encoding in hardware or the device cannot be asked.
+     */
+    public boolean requestKeyFrame() {
+        if (!Utils.hasKitKat()) {
+            return false;
+        }
+        MediaCodec codec = getVideoCodec();
+        if (codec == null) {
+            return false;
+        }
+        return setParameter(codec, MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    }
+
+    /**
+     * Closes the RTMP connection but keeps the encoders running, unlike
+     * {@link SrsPublisher#stopPublish()}. Frames encoded until {@link #startTransport} are
+     * dropped.
+     *
+     * @return false if the connection could not be reached; stop publishing instead.
+     */
+    public boolean stopTransport() {
+        SrsFlvMuxer muxer = getMuxer();
+        if (muxer == null) {
+            return false;
+        }
+        muxer.stop();
+        return true;
+    }
+
+    /**
+     * Reopens the RTMP connection closed by {@link #stopTransport()} without restarting the
+     * encoders, which keeps the camera, the filters and the encoder state as they are. The
+     * muxer resumes at the next key frame, so one is requested at once.
+     *
+     * @param url    - RTMP URL to publish to.
+     * @param width  - Width of the encoded video.
+     * @param height - Height of the encoded video.
+     * @return false if the connection could not be reached; start publishing instead.
+     */
+    public boolean startTransport(String url, int width, int height) {
+        SrsFlvMuxer muxer = getMuxer();
+        if (muxer == null) {
+            return false;
+        }
+        muxer.start(url);
+        muxer.setVideoResolution(width, height);
+        requestKeyFrame();
+        return true;
+    }
+
+    /**
+     * Returns the number of FLV tags waiting to be sent, or -1 if unknown.
+     */
+    public int getSendQueueDepth() {
+        Object queue = getField(getMuxer(), SEND_QUEUE_FIELD);
+        return queue instanceof Collection ? ((Collection<?>) queue).size() : -1;
+    }
+
+    private SrsFlvMuxer getMuxer() {
+        Object muxer = getField(publisher, MUXER_FIELD);
+        return muxer instanceof SrsFlvMuxer ? (SrsFlvMuxer) muxer : null;
+    }
+
+    /**
+     * Returns the running hardware video encoder, or null.
+     */
+    private MediaCodec getVideoCodec() {
+        Object codec = getField(getField(publisher, ENCODER_FIELD), VIDEO_CODEC_FIELD);
+        return codec instanceof MediaCodec ? (MediaCodec) codec : null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean setParameter(MediaCodec codec, String key, int value) {
+        Bundle params = new Bundle();
+        params.putInt(key, value);
+        try {
+            codec.setParameters(params);
+            return true;
+        } catch (IllegalStateException e) {
+            // Released or stopped in the meantime.
+            Log.w(MainActivity.APP_NAME, "Couldn't set " + key + " on the video encoder", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the value of a private field, or null if the object or the field does not exist.
+     */
+    private static Object getField(Object target, String name) {
+        if (target == null) {
+            return null;
+        }
+        Field field = findField(target.getClass(), name);
+        if (field == null) {
+            return null;
+        }
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            Log.w(MainActivity.APP_NAME, "Couldn't read " + target.getClass().getSimpleName() + "."
+                    + name + ", yasea's internals may have changed", e);
+            forgetField(target.getClass(), name);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the accessible field, or null if the class has none of that name.
+     */
+    private static synchronized Field findField(Class<?> type, String name) {
+        String key = type.getName() + '#' + name;
+        if (FIELDS.containsKey(key)) {
+            return FIELDS.get(key);
+        }
+        Field field = null;
+        try {
+            field = type.getDeclaredField(name);
+            field.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            Log.w(MainActivity.APP_NAME, type.getSimpleName() + " has no " + name
+                    + ", yasea's internals may have changed");
+        } catch (SecurityException e) {
+            Log.w(MainActivity.APP_NAME, "Couldn't open " + type.getSimpleName() + "." + name, e);
+            field = null;
+        }
+        FIELDS.put(key, field);
+        return field;
+    }
+
+    /**
+     * Records that a field could not be used after all, so later lookups fail without logging.
+     */
+    private static synchronized void forgetField(Class<?> type, String name) {
+        FIELDS.put(type.getName() + '#' + name, null);
+    }
+}
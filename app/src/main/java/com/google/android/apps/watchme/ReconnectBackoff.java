@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff between reconnect attempts: the delay doubles after every failed attempt up
+ * to a ceiling, with some jitter so several clients cut off together do not retry in lockstep.
+ */
+public class ReconnectBackoff {
+    // CONSTANTS.
+    public static final long DEFAULT_INITIAL_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 16000;
+    private static final double JITTER = 0.2;
+
+    // Member variables.
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final Random random = new Random();
+    private long delayMs;
+    private int attempts;
+
+    public ReconnectBackoff() {
+        this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * @param initialDelayMs - Delay before the first attempt.
+     * @param maxDelayMs     - Longest delay between attempts.
+     */
+    public ReconnectBackoff(long initialDelayMs, long maxDelayMs) {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        delayMs = initialDelayMs;
+    }
+
+    /**
+     * Returns how long to wait before the next attempt and backs off for the one after.
+     */
+    public long nextDelayMs() {
+        long delay = delayMs + (long) (delayMs * JITTER * (2 * random.nextDouble() - 1));
+        delayMs = Math.min(delayMs * 2, maxDelayMs);
+        attempts++;
+        return delay;
+    }
+
+    /**
+     * Starts over from the initial delay after a successful reconnect.
+     */
+    public void reset() {
+        delayMs = initialDelayMs;
+        attempts = 0;
+    }
+
+    /**
+     * Returns the number of attempts since the last reset.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Publishes H.264 and AAC packets from hardware encoders to an RTMP ingest, in plain Java over a
+ * socket. Each packet goes out as one RTMP message holding the FLV tag body built by
+ * {@link FlvTagWriter}, written chunk by chunk from the packet buffers, so nothing is allocated
+ * per packet.
+ * <p/>
+ * Opening blocks until the ingest accepted the publish, so failures reach the caller. An output
+ * is used by one thread at a time; a failed write means the connection is gone, and the caller
+ * opens a new output to reconnect.
+ */
+public class RtmpOutput extends FlvTagWriter implements PacketOutput {
+    // CONSTANTS.
+    public static final int DEFAULT_PORT = 1935;
+    public static final int CONNECT_TIMEOUT_MS = 5000;
+    public static final int RESPONSE_TIMEOUT_MS = 10000;
+    public static final int CHUNK_SIZE = 4096;
+    private static final int DEFAULT_CHUNK_SIZE = 128;
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int RTMP_VERSION = 3;
+    private static final int EXTENDED_TIMESTAMP = 0xFFFFFF;
+    // Basic header, message header and extended timestamp.
+    private static final int MAX_CHUNK_HEADER_SIZE = 1 + 11 + 4;
+    private static final int TYPE_SET_CHUNK_SIZE = 1;
+    private static final int TYPE_ACK = 3;
+    private static final int TYPE_USER_CONTROL = 4;
+    private static final int TYPE_WINDOW_ACK_SIZE = 5;
+    private static final int TYPE_COMMAND = 20;
+    private static final int USER_CONTROL_PING_REQUEST = 6;
+    private static final int USER_CONTROL_PING_RESPONSE = 7;
+    private static final int CONTROL_CHUNK_STREAM = 2;
+    private static final int COMMAND_CHUNK_STREAM = 3;
+    private static final int AUDIO_CHUNK_STREAM = 4;
+    private static final int VIDEO_CHUNK_STREAM = 6;
+
+    // Member variables.
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final byte[] chunk = new byte[MAX_CHUNK_HEADER_SIZE + CHUNK_SIZE];
+    private int chunkLength;
+    private int chunkPayload;
+    private int messageChunkStream;
+    private long messageTimestamp;
+    private int inChunkSize = DEFAULT_CHUNK_SIZE;
+    private final Map<Integer, InboundStream> inboundStreams =
+            new LinkedHashMap<Integer, InboundStream>();
+    private long windowAckSize;
+    private long received;
+    private long lastAck;
+    private int streamId;
+    private double transactionId;
+
+    // Statistics.
+    private volatile long bytesSent;
+    private volatile long messagesSent;
+
+    private RtmpOutput(Socket socket) throws IOException {
+        this.socket = socket;
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * Connects to an ingest and publishes a live stream on it.
+     *
+     * @param url             - rtmp://host[:port]/app[?query]/streamKey.
+     * @param width           - Video width, for the stream metadata.
+     * @param height          - Video height, for the stream metadata.
+     * @param audioSampleRate - Audio sample rate, for the stream metadata.
+     * @param audioChannels   - Number of audio channels, for the stream metadata.
+     * @return an output ready for {@link #write(EncodedPacket)}.
+     * @throws IOException if the ingest cannot be reached or refuses the stream.
+     */
+    public static RtmpOutput open(String url, int width, int height, int audioSampleRate,
+                                  int audioChannels) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid RTMP URL " + url, e);
+        }
+        // //host[:port]/app[?query]/key. Backup ingests carry a query, e.g. live2?backup=1, that
+        // URI takes the key for, so split on the last slash and keep the query in the app.
+        String part = uri.getRawSchemeSpecificPart();
+        int pathStart = part.indexOf('/', 2);
+        int split = part.lastIndexOf('/');
+        if (!"rtmp".equals(uri.getScheme()) || uri.getHost() == null || pathStart < 0
+                || split <= pathStart + 1 || split == part.length() - 1) {
+            throw new IOException("Expected rtmp://host/app/key, got " + url);
+        }
+        String app = part.substring(pathStart + 1, split);
+        String key = part.substring(split + 1);
+        int port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        String tcUrl = "rtmp://" + uri.getHost() + ":" + port + "/" + app;
+
+        Socket socket = new Socket();
+        boolean published = false;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(uri.getHost(), port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(RESPONSE_TIMEOUT_MS);
+            RtmpOutput output = new RtmpOutput(socket);
+            output.handshake();
+            output.publish(app, tcUrl, key);
+            output.sendMetadata(width, height, audioSampleRate, audioChannels);
+            published = true;
+            return output;
+        } finally {
+            if (!published) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Sends one packet. Codec config packets are sent as sequence headers and must precede the
+     * media of their track.
+     *
+     * @throws IOException if the connection was lost; the output is of no further use.
+     */
+    @Override
+    public void write(EncodedPacket packet) throws IOException {
+        writeTag(packet);
+        serviceInput();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    private void handshake() throws IOException {
+        byte[] c1 = new byte[HANDSHAKE_SIZE];
+        // Time and zero version, then random bytes; servers only echo them back.
+        new Random().nextBytes(c1);
+        for (int i = 0; i < 8; i++) {
+            c1[i] = 0;
+        }
+        out.write(RTMP_VERSION);
+        out.write(c1);
+        out.flush();
+        int version = in.readUnsignedByte();
+        if (version != RTMP_VERSION) {
+            throw new IOException("Unsupported RTMP version " + version);
+        }
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        in.readFully(s1);
+        // C2 echoes S1; S2 echoes C1 and needs no check.
+        out.write(s1);
+        out.flush();
+        in.readFully(s1);
+        received += 1 + 2 * HANDSHAKE_SIZE;
+
+        byte[] chunkSize = new byte[4];
+        writeInt(chunkSize, 0, CHUNK_SIZE);
+        sendMessage(CONTROL_CHUNK_STREAM, TYPE_SET_CHUNK_SIZE, 0, chunkSize);
+    }
+
+    private void publish(String app, String tcUrl, String key) throws IOException {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("app", app);
+        properties.put("type", "nonprivate");
+        properties.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+        properties.put("tcUrl", tcUrl);
+        awaitResult(sendCommand(0, "connect", properties));
+        sendCommand(0, "releaseStream", null, key);
+        sendCommand(0, "FCPublish", null, key);
+        Object result = awaitResult(sendCommand(0, "createStream", null));
+        if (!(result instanceof Double)) {
+            throw new IOException("createStream returned " + result);
+        }
+        int id = ((Double) result).intValue();
+        sendCommand(id, "publish", null, key, "live");
+        while (true) {
+            Command command = readCommand();
+            if (!"onStatus".equals(command.name)) {
+                continue;
+            }
+            Object code = command.argument instanceof Map
+                    ? ((Map<?, ?>) command.argument).get("code") : null;
+            if ("NetStream.Publish.Start".equals(code)) {
+                break;
+            }
+            throw new IOException("Publish refused: " + code);
+        }
+        // Media after this point only needs the socket; the ingest rarely answers.
+        socket.setSoTimeout(0);
+        streamId = id;
+    }
+
+    private void sendMetadata(int width, int height, int audioSampleRate, int audioChannels)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        writeAmf(data, "@setDataFrame");
+        writeMetadata(data, width, height, audioSampleRate, audioChannels);
+        sendMessage(AUDIO_CHUNK_STREAM, TAG_SCRIPT, streamId, payload.toByteArray());
+    }
+
+    /**
+     * Sends a command and returns its transaction id.
+     */
+    private double sendCommand(int messageStreamId, String name, Object commandObject,
+                               Object... arguments) throws IOException {
+        transactionId++;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        writeAmf(data, name);
+        writeAmf(data, transactionId);
+        writeAmf(data, commandObject);
+        for (Object argument : arguments) {
+            writeAmf(data, argument);
+        }
+        sendMessage(COMMAND_CHUNK_STREAM, TYPE_COMMAND, messageStreamId, payload.toByteArray());
+        return transactionId;
+    }
+
+    /**
+     * Reads commands until the result of the given transaction arrives.
+     *
+     * @return the result's first argument.
+     */
+    private Object awaitResult(double transaction) throws IOException {
+        while (true) {
+            Command command = readCommand();
+            if (command.transactionId != transaction) {
+                continue;
+            }
+            if ("_result".equals(command.name)) {
+                return command.argument;
+            }
+            throw new IOException(command.name + ": " + command.argument);
+        }
+    }
+
+    private void sendMessage(int chunkStream, int type, int messageStreamId, byte[] payload)
+            throws IOException {
+        beginMessage(chunkStream, type, messageStreamId, 0, payload.length);
+        for (byte value : payload) {
+            put(value);
+        }
+        endMessage();
+    }
+
+    @Override
+    protected void beginTag(int type, long timestampMs, int length) {
+        beginMessage(type == TAG_VIDEO ? VIDEO_CHUNK_STREAM : AUDIO_CHUNK_STREAM, type, streamId,
+                timestampMs, length);
+    }
+
+    @Override
+    protected void endTag() throws IOException {
+        endMessage();
+    }
+
+    /**
+     * Starts a message with a type 0 header. The payload follows through the put methods, which
+     * split it into chunks on the way.
+     */
+    private void beginMessage(int chunkStream, int type, int messageStreamId, long timestampMs,
+                              int length) {
+        messageChunkStream = chunkStream;
+        messageTimestamp = timestampMs & 0xffffffffL;
+        chunk[0] = (byte) chunkStream;
+        writeUInt24(chunk, 1, (int) Math.min(messageTimestamp, EXTENDED_TIMESTAMP));
+        writeUInt24(chunk, 4, length);
+        chunk[7] = (byte) type;
+        writeInt(chunk, 8, Integer.reverseBytes(messageStreamId));
+        chunkLength = 12;
+        if (messageTimestamp >= EXTENDED_TIMESTAMP) {
+            writeInt(chunk, chunkLength, (int) messageTimestamp);
+            chunkLength += 4;
+        }
+        chunkPayload = 0;
+    }
+
+    @Override
+    protected void put(int value) throws IOException {
+        if (chunkPayload == CHUNK_SIZE) {
+            nextChunk();
+        }
+        chunk[chunkLength++] = (byte) value;
+        chunkPayload++;
+    }
+
+    @Override
+    protected void put(ByteBuffer data, int offset, int length) throws IOException {
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            if (chunkPayload == CHUNK_SIZE) {
+                nextChunk();
+            }
+            int count = Math.min(end - i, CHUNK_SIZE - chunkPayload);
+            for (int j = 0; j < count; j++) {
+                chunk[chunkLength++] = data.get(i++);
+            }
+            chunkPayload += count;
+        }
+    }
+
+    // Sends the full chunk and starts a type 3 continuation of the same message.
+    private void nextChunk() throws IOException {
+        out.write(chunk, 0, chunkLength);
+        bytesSent += chunkLength;
+        chunk[0] = (byte) (0xc0 | messageChunkStream);
+        chunkLength = 1;
+        if (messageTimestamp >= EXTENDED_TIMESTAMP) {
+            writeInt(chunk, chunkLength, (int) messageTimestamp);
+            chunkLength += 4;
+        }
+        chunkPayload = 0;
+    }
+
+    private void endMessage() throws IOException {
+        out.write(chunk, 0, chunkLength);
+        out.flush();
+        bytesSent += chunkLength;
+        messagesSent++;
+        chunkLength = 0;
+    }
+
+    /**
+     * Handles whatever the ingest sent while we were streaming: acknowledgements are due after
+     * every window, and some ingests drop publishers that do not answer pings.
+     */
+    private void serviceInput() throws IOException {
+        while (in.available() > 0) {
+            readMessage();
+        }
+    }
+
+    private Command readCommand() throws IOException {
+        while (true) {
+            InboundStream stream = readMessage();
+            if (stream.type == TYPE_COMMAND) {
+                AmfReader reader = new AmfReader(stream.payload, stream.length);
+                Command command = new Command();
+                command.name = (String) reader.readValue();
+                command.transactionId = (Double) reader.readValue();
+                reader.readValue();
+                command.argument = reader.hasMore() ? reader.readValue() : null;
+                return command;
+            }
+        }
+    }
+
+    /**
+     * Reads chunks until a message is complete and handles protocol control messages.
+     *
+     * @return the stream the message arrived on, holding its type and payload.
+     */
+    private InboundStream readMessage() throws IOException {
+        while (true) {
+            int basicHeader = readByte();
+            int format = basicHeader >>> 6;
+            int chunkStreamId = basicHeader & 0x3f;
+            if (chunkStreamId == 0) {
+                chunkStreamId = 64 + readByte();
+            } else if (chunkStreamId == 1) {
+                chunkStreamId = 64 + readByte() + (readByte() << 8);
+            }
+            InboundStream stream = inboundStreams.get(chunkStreamId);
+            if (stream == null) {
+                stream = new InboundStream();
+                inboundStreams.put(chunkStreamId, stream);
+            }
+            if (format <= 2) {
+                long timestamp = readUInt24();
+                if (format <= 1) {
+                    stream.length = (int) readUInt24();
+                    stream.type = readByte();
+                }
+                if (format == 0) {
+                    // Message stream id.
+                    skip(4);
+                }
+                stream.extendedTimestamp = timestamp == EXTENDED_TIMESTAMP;
+                if (stream.extendedTimestamp) {
+                    skip(4);
+                }
+            } else if (stream.extendedTimestamp) {
+                skip(4);
+            }
+            if (stream.read == 0 && stream.payload.length < stream.length) {
+                stream.payload = new byte[stream.length];
+            }
+            int length = Math.min(inChunkSize, stream.length - stream.read);
+            in.readFully(stream.payload, stream.read, length);
+            received += length;
+            stream.read += length;
+            if (windowAckSize > 0 && received - lastAck >= windowAckSize) {
+                lastAck = received;
+                byte[] ack = new byte[4];
+                writeInt(ack, 0, (int) received);
+                sendMessage(CONTROL_CHUNK_STREAM, TYPE_ACK, 0, ack);
+            }
+            if (stream.read < stream.length) {
+                continue;
+            }
+            stream.read = 0;
+            if (stream.type == TYPE_SET_CHUNK_SIZE) {
+                inChunkSize = readInt(stream.payload, 0) & 0x7fffffff;
+            } else if (stream.type == TYPE_WINDOW_ACK_SIZE) {
+                windowAckSize = readInt(stream.payload, 0) & 0xffffffffL;
+            } else if (stream.type == TYPE_USER_CONTROL && stream.length >= 6
+                    && readUInt16(stream.payload, 0) == USER_CONTROL_PING_REQUEST) {
+                byte[] pong = new byte[6];
+                pong[1] = USER_CONTROL_PING_RESPONSE;
+                System.arraycopy(stream.payload, 2, pong, 2, 4);
+                sendMessage(CONTROL_CHUNK_STREAM, TYPE_USER_CONTROL, 0, pong);
+            }
+            return stream;
+        }
+    }
+
+    private int readByte() throws IOException {
+        received++;
+        return in.readUnsignedByte();
+    }
+
+    private long readUInt24() throws IOException {
+        return (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private void skip(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readByte();
+        }
+    }
+
+    private static int readUInt16(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void writeUInt24(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 16);
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) value;
+    }
+
+    /**
+     * Reassembly state of one inbound chunk stream.
+     */
+    private static class InboundStream {
+        boolean extendedTimestamp;
+        int length;
+        int type;
+        byte[] payload = new byte[0];
+        int read;
+    }
+
+    private static class Command {
+        String name;
+        double transactionId;
+        Object argument;
+    }
+
+    /**
+     * Reads the AMF0 values found in command responses.
+     */
+    private static class AmfReader {
+        private final byte[] buffer;
+        private final int length;
+        private int position;
+
+        AmfReader(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        boolean hasMore() {
+            return position < length;
+        }
+
+        Object readValue() throws IOException {
+            int marker = readByte();
+            switch (marker) {
+                case AMF_NUMBER:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case AMF_BOOLEAN:
+                    return readByte() != 0;
+                case AMF_STRING:
+                    return readUtf();
+                case AMF_ECMA_ARRAY:
+                    for (int i = 0; i < 4; i++) {
+                        readByte();
+                    }
+                    return readProperties();
+                case AMF_OBJECT:
+                    return readProperties();
+                case AMF_NULL:
+                case AMF_UNDEFINED:
+                    return null;
+                default:
+                    throw new IOException("Unsupported AMF marker " + marker);
+            }
+        }
+
+        private Map<String, Object> readProperties() throws IOException {
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            while (true) {
+                String key = readUtf();
+                if (key.isEmpty() && position < length && buffer[position] == AMF_OBJECT_END) {
+                    position++;
+                    return properties;
+                }
+                properties.put(key, readValue());
+            }
+        }
+
+        private String readUtf() throws IOException {
+            int size = (readByte() << 8) | readByte();
+            if (position + size > length) {
+                throw new EOFException();
+            }
+            String value = new String(buffer, position, size, "UTF-8");
+            position += size;
+            return value;
+        }
+
+        private int readByte() throws IOException {
+            if (position >= length) {
+                throw new EOFException();
+            }
+            return buffer[position++] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the audio lane may switch to discontinuous transmission. Audio counts as silent
+ * while both its RMS and its peak stay below their thresholds; once that has lasted for the hold
+ * time, frames are reported silent until the level rises again.
+ */
+public class SilenceDetector {
+    // CONSTANTS.
+    public static final double DEFAULT_RMS_THRESHOLD_DBFS = -55;
+    public static final double DEFAULT_PEAK_THRESHOLD_DBFS = -35;
+    public static final long DEFAULT_HOLD_MS = 2000;
+
+    // Member variables.
+    private final AudioLevelAnalyzer analyzer = new AudioLevelAnalyzer();
+    private final double rmsThreshold;
+    private final double peakThreshold;
+    private final long holdNanos;
+    private long quietSinceNanos = -1;
+    private volatile boolean silent;
+    private volatile long silentFrames;
+
+    public SilenceDetector() {
+        this(DEFAULT_RMS_THRESHOLD_DBFS, DEFAULT_PEAK_THRESHOLD_DBFS, DEFAULT_HOLD_MS);
+    }
+
+    /**
+     * @param rmsThresholdDbfs  - RMS level below which audio may count as silent.
+     * @param peakThresholdDbfs - Peak level below which audio may count as silent.
+     * @param holdMs            - How long audio must stay quiet before frames are reported silent.
+     */
+    public SilenceDetector(double rmsThresholdDbfs, double peakThresholdDbfs, long holdMs) {
+        rmsThreshold = Math.pow(10, rmsThresholdDbfs / 20);
+        peakThreshold = Math.pow(10, peakThresholdDbfs / 20);
+        holdNanos = TimeUnit.MILLISECONDS.toNanos(holdMs);
+    }
+
+    /**
+     * Analyzes one frame.
+     *
+     * @param audio          - Native-order 16-bit PCM starting at index 0.
+     * @param samples        - Number of samples in audio.
+     * @param timestampNanos - Capture time of the frame.
+     * @return whether the frame may be replaced by comfort noise.
+     */
+    public boolean process(ByteBuffer audio, int samples, long timestampNanos) {
+        analyzer.analyze(audio, samples);
+        if (analyzer.getRms() >= rmsThreshold || analyzer.getPeak() >= peakThreshold) {
+            quietSinceNanos = -1;
+            silent = false;
+            return false;
+        }
+        if (quietSinceNanos < 0) {
+            quietSinceNanos = timestampNanos;
+        }
+        silent = timestampNanos - quietSinceNanos >= holdNanos;
+        if (silent) {
+            silentFrames++;
+        }
+        return silent;
+    }
+
+    /**
+     * Returns the analyzer holding the levels of the last processed frame.
+     */
+    public AudioLevelAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    public boolean isSilent() {
+        return silent;
+    }
+
+    /**
+     * Returns the number of frames replaced by comfort noise.
+     */
+    public long getSilentFrames() {
+        return silentFrames;
+    }
+}
@@ -18,7 +18,9 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.hardware.Camera;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -39,6 +41,8 @@ import net.ossrs.yasea.SrsRecordHandler;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
@@ -47,6 +51,12 @@ import java.net.SocketException;
  */
 public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEncodeListener, RtmpHandler.RtmpListener, SrsRecordHandler.SrsRecordListener, View.OnClickListener {
     private static final String TAG = "CameraActivity";
+    // Video bitrates and frame rate of SrsPublisher's HD and smooth modes.
+    private static final int HD_MODE_BITRATE = 1200 * 1024;
+    private static final int SMOOTH_MODE_BITRATE = 500 * 1024;
+    private static final int PUBLISHER_FPS = 24;
+    // How often the send queue depth is reported to the adaptive bitrate controller.
+    private static final long QUEUE_POLL_MS = 250;
 
     private Button mPublishBtn;
     private Button mCameraSwitchBtn;
@@ -54,8 +64,54 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
     private Button mStop;
     private EditText mRempUrlEt;
     private SrsPublisher mPublisher;
+    private PublisherControl mPublisherControl;
     private String rtmpUrl;
+    private String backupRtmpUrl;
+    // Ingest currently published to; alternates with the backup on every reconnect.
+    private String mPublishUrl;
     private String broadcastId;
+    private AdaptiveBitrateController mAbrController;
+    private ProbeIngestTask mProbeIngestTask;
+    private ProbeBandwidthTask mProbeBandwidthTask;
+    // Preset publishing starts from, picked by the bandwidth probe.
+    private AdaptiveBitrateController.Preset mStartPreset;
+    private final Handler mHandler = new Handler();
+    private final ReconnectBackoff mReconnectBackoff = new ReconnectBackoff();
+    private boolean mReconnectPending;
+    // Whether the pending reconnect only has to reopen the connection, the encoders still running.
+    private boolean mTransportStopped;
+    private final Runnable mQueuePollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!isPublishing()) {
+                return;
+            }
+            int depth = mPublisherControl.getSendQueueDepth();
+            if (depth >= 0) {
+                mAbrController.onSendQueueDepth(depth);
+            }
+            mHandler.postDelayed(this, QUEUE_POLL_MS);
+        }
+    };
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mReconnectPending = false;
+            if (isPublishing()) {
+                if (!TextUtils.isEmpty(backupRtmpUrl)) {
+                    mPublishUrl = rtmpUrl.equals(mPublishUrl) ? backupRtmpUrl : rtmpUrl;
+                }
+                Log.i(TAG, "Reconnect attempt " + mReconnectBackoff.getAttempts() + " to "
+                        + (mPublishUrl.equals(rtmpUrl) ? "primary" : "backup") + " ingest");
+                AdaptiveBitrateController.Preset preset = mAbrController.getPreset();
+                if (!mTransportStopped || !mPublisherControl.startTransport(mPublishUrl,
+                        preset.width, preset.height)) {
+                    mPublisher.startPublish(mPublishUrl);
+                }
+            }
+        }
+    };
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -74,6 +130,7 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
         mEncoderBtn.setOnClickListener(this);
 
         mPublisher = new SrsPublisher((SrsCameraView) findViewById(R.id.glsurfaceview_camera));
+        mPublisherControl = new PublisherControl(mPublisher);
         //编码状态回调
         mPublisher.setEncodeHandler(new SrsEncodeHandler(this));
         mPublisher.setRecordHandler(new SrsRecordHandler(this));
@@ -81,12 +138,28 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
         mPublisher.setRtmpHandler(new RtmpHandler(this));
         //预览分辨率
         mPublisher.setPreviewResolution(1280, 720);
-        //推流分辨率
-        mPublisher.setOutputResolution(720,1280);
-        //传输率
-        mPublisher.setVideoHDMode();
         //开启美颜（其他滤镜效果在MagicFilterType中查看）
         mPublisher.switchCameraFilter(MagicFilterType.BEAUTY);
+
+        // Quality ladder within what SrsPublisher can switch to: its HD and smooth bitrates at
+        // decreasing portrait output sizes.
+        mAbrController = new AdaptiveBitrateController(
+                new AdaptiveBitrateController.Listener() {
+                    @Override
+                    public void onPresetChanged(AdaptiveBitrateController.Preset from,
+                                                AdaptiveBitrateController.Preset to) {
+                        applyPreset(from, to);
+                    }
+                },
+                new AdaptiveBitrateController.Preset(720, 1280, HD_MODE_BITRATE),
+                new AdaptiveBitrateController.Preset(720, 1280, SMOOTH_MODE_BITRATE),
+                new AdaptiveBitrateController.Preset(540, 960, SMOOTH_MODE_BITRATE),
+                new AdaptiveBitrateController.Preset(360, 640, SMOOTH_MODE_BITRATE));
+        mAbrController.setTargetFps(PUBLISHER_FPS);
+        // Output size and bitrate: from the last uplink estimate on this network, else the best.
+        mStartPreset = BandwidthProber.choosePreset(mAbrController.getLadder(),
+                new BandwidthProber(getApplicationContext()).getCachedBitsPerSecond());
+        applyPreset(mStartPreset);
         //打开摄像头，开始预览（未推流）
         mPublisher.startCamera();
 
@@ -96,6 +169,13 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
 
         rtmpUrl = getIntent().getStringExtra(YouTubeApi.RTMP_URL_KEY);
         Log.e("rtmpUrl",rtmpUrl);
+        backupRtmpUrl = getIntent().getStringExtra(YouTubeApi.BACKUP_RTMP_URL_KEY);
+        if (!TextUtils.isEmpty(rtmpUrl) && !TextUtils.isEmpty(backupRtmpUrl)) {
+            mProbeIngestTask = new ProbeIngestTask();
+            mProbeIngestTask.execute(rtmpUrl, backupRtmpUrl);
+        } else if (!TextUtils.isEmpty(rtmpUrl)) {
+            startBandwidthProbe();
+        }
 
 
 
@@ -112,7 +192,10 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
                     if (TextUtils.isEmpty(rtmpUrl)) {
                         Toast.makeText(getApplicationContext(), "地址不能為空！", Toast.LENGTH_SHORT).show();
                     }
-                    mPublisher.startPublish(rtmpUrl);
+                    mAbrController.reset(mStartPreset);
+                    applyPreset(mAbrController.getPreset());
+                    mPublishUrl = rtmpUrl;
+                    mPublisher.startPublish(mPublishUrl);
                     mPublisher.startCamera();
 
                     if (mEncoderBtn.getText().toString().contentEquals("軟編碼")) {
@@ -122,7 +205,11 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
                     }
                     mPublishBtn.setText("停止");
                     mEncoderBtn.setEnabled(false);
+                    // Stops by itself once publishing stops.
+                    mHandler.removeCallbacks(mQueuePollRunnable);
+                    mHandler.postDelayed(mQueuePollRunnable, QUEUE_POLL_MS);
                 } else if (mPublishBtn.getText().toString().contentEquals("停止")) {
+                    cancelReconnect();
                     mPublisher.stopPublish();
                     mPublisher.stopRecord();
                     mPublishBtn.setText("開始");
@@ -151,6 +238,7 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
 
     }
     public void onStop (View v){
+        cancelReconnect();
         mPublisher.stopPublish();
         mPublisher.stopRecord();
 
@@ -179,6 +267,13 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mProbeIngestTask != null) {
+            mProbeIngestTask.cancel(true);
+        }
+        if (mProbeBandwidthTask != null) {
+            mProbeBandwidthTask.cancel(true);
+        }
+        cancelReconnect();
         mPublisher.stopPublish();
         mPublisher.stopRecord();
     }
@@ -195,14 +290,67 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
         mPublisher.startCamera();
     }
 
+    /**
+     * Measures the uplink to the ingest that publishing will start on, unless a recent estimate
+     * for this network is cached.
+     */
+    private void startBandwidthProbe() {
+        mProbeBandwidthTask = new ProbeBandwidthTask();
+        mProbeBandwidthTask.execute(rtmpUrl);
+    }
+
+    /**
+     * Switches the publisher's encoder to a preset from the adaptive bitrate ladder. The encoder
+     * only reads its settings when started, so it is restarted if already publishing.
+     */
+    private void applyPreset(AdaptiveBitrateController.Preset preset) {
+        applyPreset(null, preset);
+    }
+
+    /**
+     * Switches between adjacent presets while publishing. A rung that only changes the bitrate is
+     * applied to the running hardware encoder, which avoids the glitch and the burst of key
+     * frames of a restart.
+     *
+     * @param from - Preset currently in effect, or null if unknown.
+     * @param to   - Preset to switch to.
+     */
+    private void applyPreset(AdaptiveBitrateController.Preset from,
+                             AdaptiveBitrateController.Preset to) {
+        boolean publishing = mPublishBtn.getText().toString().contentEquals("停止");
+        if (publishing && from != null && from.width == to.width && from.height == to.height
+                && mPublisherControl.setVideoBitrate(to.bitrate)) {
+            // Only read on the next start; keeps a later restart at this rung.
+            setBitrateMode(to);
+            return;
+        }
+        if (publishing) {
+            mPublisher.stopEncode();
+        }
+        setBitrateMode(to);
+        mPublisher.setOutputResolution(to.width, to.height);
+        if (publishing) {
+            mPublisher.startEncode();
+        }
+    }
+
+    private void setBitrateMode(AdaptiveBitrateController.Preset preset) {
+        if (preset.bitrate >= HD_MODE_BITRATE) {
+            mPublisher.setVideoHDMode();
+        } else {
+            mPublisher.setVideoSmoothMode();
+        }
+    }
+
     @Override
     public void onNetworkWeak() {
         Toast.makeText(getApplicationContext(), "網路訊號弱", Toast.LENGTH_SHORT).show();
+        mAbrController.onNetworkWeak();
     }
 
     @Override
     public void onNetworkResume() {
-
+        mAbrController.onNetworkResume();
     }
 
     @Override
@@ -210,6 +358,44 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
         handleException(e);
     }
 
+    private boolean isPublishing() {
+        return mPublishBtn.getText().toString().contentEquals("停止");
+    }
+
+    /**
+     * Republishes after a lost connection instead of ending the session, waiting longer after
+     * every failed attempt. When the event has a backup ingest, every attempt switches to the other
+     * ingest, so the first one already fails over. Only the connection is reopened: the camera
+     * and the encoders keep running throughout, unless SrsPublisher's connection cannot be reached
+     * on its own, in which case publishing is restarted as a whole.
+     */
+    private void scheduleReconnect(Exception e) {
+        if (!isPublishing()) {
+            if (e != null) {
+                handleException(e);
+            }
+            return;
+        }
+        if (mReconnectPending) {
+            return;
+        }
+        mReconnectPending = true;
+        mTransportStopped = mPublisherControl.stopTransport();
+        if (!mTransportStopped) {
+            mPublisher.stopPublish();
+        }
+        long delayMs = mReconnectBackoff.nextDelayMs();
+        Log.w(TAG, "Connection lost, reconnecting in " + delayMs + " ms", e);
+        Toast.makeText(getApplicationContext(), "重新連線中…", Toast.LENGTH_SHORT).show();
+        mHandler.postDelayed(mReconnectRunnable, delayMs);
+    }
+
+    private void cancelReconnect() {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mReconnectPending = false;
+        mReconnectBackoff.reset();
+    }
+
     private void handleException(Exception e) {
         try {
             Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_SHORT).show();
@@ -229,6 +415,7 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
     @Override
     public void onRtmpConnected(String msg) {
         Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_SHORT).show();
+        mReconnectBackoff.reset();
     }
 
     @Override
@@ -249,11 +436,12 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
     @Override
     public void onRtmpDisconnected() {
         Toast.makeText(getApplicationContext(), "未連接伺服器", Toast.LENGTH_SHORT).show();
+        scheduleReconnect(null);
     }
 
     @Override
     public void onRtmpVideoFpsChanged(double fps) {
-
+        mAbrController.onVideoFps(fps);
     }
 
     @Override
@@ -268,12 +456,12 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
 
     @Override
     public void onRtmpSocketException(SocketException e) {
-        handleException(e);
+        scheduleReconnect(e);
     }
 
     @Override
     public void onRtmpIOException(IOException e) {
-        handleException(e);
+        scheduleReconnect(e);
     }
 
     @Override
@@ -316,4 +504,54 @@ public class StreamerActivity extends Activity implements SrsEncodeHandler.SrsEn
         handleException(e);
     }
 
+
+    /**
+     * Probes the primary and backup ingest before publishing starts and publishes to the faster
+     * one; the other stays the failover target. Publishing before the probe finishes uses the
+     * primary.
+     */
+    private class ProbeIngestTask extends AsyncTask<String, Void, String> {
+        @Override
+        protected String doInBackground(String... urls) {
+            List<String> candidates = new ArrayList<String>();
+            for (String url : urls) {
+                candidates.add(url);
+            }
+            return new IngestProber(getApplicationContext()).select(candidates);
+        }
+
+        @Override
+        protected void onPostExecute(String url) {
+            mProbeIngestTask = null;
+            if (url.equals(backupRtmpUrl) && !isPublishing()) {
+                Log.i(TAG, "Backup ingest is faster here, publishing to it first");
+                backupRtmpUrl = rtmpUrl;
+                rtmpUrl = url;
+            }
+            startBandwidthProbe();
+        }
+    }
+
+    /**
+     * Picks the preset publishing starts from. Publishing before the probe finishes starts from
+     * the cached or best preset and lets the adaptive bitrate controller step down.
+     */
+    private class ProbeBandwidthTask extends AsyncTask<String, Void, Integer> {
+        @Override
+        protected Integer doInBackground(String... urls) {
+            return new BandwidthProber(getApplicationContext()).estimate(urls[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Integer bitsPerSecond) {
+            mProbeBandwidthTask = null;
+            if (isPublishing()) {
+                return;
+            }
+            mStartPreset = BandwidthProber.choosePreset(mAbrController.getLadder(),
+                    bitsPerSecond);
+            Log.i(TAG, "Starting from " + mStartPreset);
+            applyPreset(mStartPreset);
+        }
+    }
 }
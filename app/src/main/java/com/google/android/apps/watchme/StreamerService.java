@@ -25,6 +25,7 @@ import android.hardware.Camera.CameraInfo;
 import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
+import android.view.Surface;
 
 import com.google.android.apps.watchme.util.Utils;
 
@@ -37,8 +38,10 @@ public class StreamerService extends Service {
     private static int STREAMER_NOTIFICATION_ID = 1001;
     private final IBinder binder = new LocalBinder();
     // Member variables.
-    private VideoStreamingConnection connection;
+    private VideoStreamingInterface connection;
     private Camera camera;
+    private Surface previewSurface;
+    private boolean useMediaCodec;
 
     @Override
     public void onCreate() {
@@ -64,12 +67,62 @@ public class StreamerService extends Service {
         return false;
     }
 
-    public void startStreaming(String streamUrl) {
+    /**
+     * Sets the surface the camera is shown on while streaming, e.g. the surface of the bound
+     * activity's preview. Only the MediaCodec path draws to it. Takes effect on the next
+     * {@link #startStreaming}.
+     *
+     * @param surface - Surface to show the camera on, or null for no preview.
+     */
+    public void setPreviewSurface(Surface surface) {
+        previewSurface = surface;
+    }
+
+    /**
+     * Streams through the hardware encoders instead of libffmpeg. Off by default, and ignored
+     * before Jelly Bean MR2. Takes effect on the next {@link #startStreaming}.
+     *
+     * @param use - Whether to use {@link MediaCodecStreamingConnection}.
+     */
+    public void setUseMediaCodec(boolean use) {
+        useMediaCodec = use;
+    }
+
+    public boolean startStreaming(String streamUrl) {
+        return startStreaming(streamUrl, null, BackupIngestMode.PRIMARY_ONLY);
+    }
+
+    /**
+     * @param streamUrl  - Primary RTMP URL.
+     * @param backupUrl  - Backup RTMP URL, or null for none.
+     * @param backupMode - How the backup ingest is used; {@link BackupIngestMode#SIMULTANEOUS}
+     *                   needs {@link #setUseMediaCodec(boolean)}.
+     * @return false if the stream could not be started.
+     */
+    public boolean startStreaming(String streamUrl, String backupUrl,
+                                  BackupIngestMode backupMode) {
         Log.d(MainActivity.APP_NAME, "startStreaming");
         showForegroundNotification();
-        connection = new VideoStreamingConnection();
-        // TODO Pass an actual preview surface.
-        connection.open(streamUrl, camera, null);
+        if (useMediaCodec && Utils.hasJellyBeanMR2()) {
+            connection = new MediaCodecStreamingConnection();
+        } else {
+            connection = new VideoStreamingConnection();
+        }
+        try {
+            connection.setBackupOutput(backupUrl, backupMode);
+        } catch (IllegalArgumentException e) {
+            Log.e(MainActivity.APP_NAME, "Couldn't use the backup ingest: " + e.getMessage());
+            connection = null;
+            stopForeground(true);
+            return false;
+        }
+        if (!connection.open(streamUrl, camera, previewSurface)) {
+            Log.e(MainActivity.APP_NAME, "Couldn't start streaming");
+            connection = null;
+            stopForeground(true);
+            return false;
+        }
+        return true;
     }
 
     public void stopStreaming() {
@@ -86,6 +139,13 @@ public class StreamerService extends Service {
         return (connection != null);
     }
 
+    /**
+     * Returns the microphone level meter of the current stream, or null when not streaming.
+     */
+    public AudioLevelMeter getAudioLevelMeter() {
+        return connection != null ? connection.getAudioLevelMeter() : null;
+    }
+
     public void releaseCamera() {
         Log.d(MainActivity.APP_NAME, "releaseCamera");
         if (!isStreaming() && camera != null) {
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.BufferPool;
+import com.google.android.apps.watchme.util.SpscQueue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs video encoding on a dedicated thread so the camera callback returns straight away. Frames
+ * captured into heap arrays are kept by swapping the camera's array for a free one, so nothing is
+ * copied between the camera and the encoder. Other frames are copied into a free array once.
+ */
+public class VideoEncodeLane {
+    // CONSTANTS.
+    public static final int DEFAULT_QUEUE_CAPACITY = 3;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // Member variables.
+    private final FfmpegEncoder encoder;
+    private final DropPolicy dropPolicy;
+    private final SpscQueue<Frame> pending;
+    private final SpscQueue<Frame> free;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile FrameRateGovernor governor;
+    private FrameConverter converter;
+    private byte[] converted;
+    private ByteBuffer convertedBuffer;
+
+    // Statistics.
+    private volatile long framesQueued;
+    private volatile long framesDropped;
+    private volatile long framesEncoded;
+    private volatile int maxQueueDepth;
+
+    /**
+     * @param encoder   - Encoder shared with the audio lane.
+     * @param frameSize - Size of a raw frame in bytes.
+     * @param capacity  - Number of frames that may wait for the encoder.
+     * @param policy    - What to discard when the encoder falls behind.
+     */
+    public VideoEncodeLane(FfmpegEncoder encoder, int frameSize, int capacity,
+                           DropPolicy policy) {
+        this.encoder = encoder;
+        this.dropPolicy = policy;
+        pending = new SpscQueue<Frame>(capacity);
+        // One frame more than the queue holds, for the one being encoded.
+        free = new SpscQueue<Frame>(capacity + 1);
+        for (int i = 0; i < capacity + 1; i++) {
+            free.offer(new Frame(frameSize));
+        }
+    }
+
+    /**
+     * Reports the time spent encoding each frame to the given governor.
+     */
+    public void setGovernor(FrameRateGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Converts every frame before it is encoded. The encoder must have been opened for the
+     * converter's output size. Must be called before {@link #start()}.
+     */
+    public void setConverter(FrameConverter converter) {
+        this.converter = converter;
+        converted = BufferPool.BYTE_ARRAYS.acquire(converter.getOutputSize());
+        convertedBuffer = ByteBuffer.wrap(converted);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "VideoEncodeLane");
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.e(MainActivity.APP_NAME, "", e);
+        }
+        thread = null;
+        Log.i(MainActivity.APP_NAME, "Video frames queued: " + framesQueued + ", dropped: "
+                + framesDropped + ", encoded: " + framesEncoded + ", max queue depth: "
+                + maxQueueDepth);
+    }
+
+    /**
+     * Keeps a frame captured into a heap array. Called from the capture thread.
+     *
+     * @param yuv_image - Raw frame, exactly as long as the lane's frames.
+     * @return a free array of the same length for the camera to capture into next, or yuv_image
+     * itself if the frame was dropped.
+     */
+    public byte[] offer(byte[] yuv_image) {
+        Frame frame = takeFreeFrame();
+        if (frame == null) {
+            return yuv_image;
+        }
+        byte[] free = frame.data;
+        frame.data = yuv_image;
+        frame.view = null;
+        queue(frame, yuv_image.length);
+        return free;
+    }
+
+    /**
+     * Copies a frame into the lane. Called from the capture thread.
+     *
+     * @param yuv_image - Raw frame, starting at position 0.
+     * @param length    - Number of valid bytes in yuv_image.
+     * @return false if the frame was dropped.
+     */
+    public boolean offer(ByteBuffer yuv_image, int length) {
+        Frame frame = takeFreeFrame();
+        if (frame == null) {
+            return false;
+        }
+        int size = Math.min(length, frame.data.length);
+        yuv_image.limit(size).position(0);
+        yuv_image.get(frame.data, 0, size);
+        queue(frame, size);
+        return true;
+    }
+
+    /**
+     * Returns all frame buffers to the pool. The lane must be stopped.
+     */
+    public void release() {
+        if (converted != null) {
+            BufferPool.BYTE_ARRAYS.release(converted);
+            converted = null;
+            convertedBuffer = null;
+        }
+        Frame frame;
+        while ((frame = pending.poll()) != null) {
+            BufferPool.BYTE_ARRAYS.release(frame.data);
+        }
+        while ((frame = free.poll()) != null) {
+            BufferPool.BYTE_ARRAYS.release(frame.data);
+        }
+    }
+
+    private Frame takeFreeFrame() {
+        Frame frame = free.poll();
+        if (frame == null) {
+            if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                framesDropped++;
+                return null;
+            }
+            frame = pending.poll();
+            if (frame == null) {
+                // The encoder just took the last queued frame; it will be back shortly.
+                framesDropped++;
+                return null;
+            }
+            framesDropped++;
+        }
+        return frame;
+    }
+
+    private void queue(Frame frame, int length) {
+        frame.length = length;
+        pending.offer(frame);
+        framesQueued++;
+
+        int depth = pending.size();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    private void encodeLoop() {
+        while (running) {
+            Frame frame = pending.poll();
+            if (frame == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            encodeFrame(frame);
+            free.offer(frame);
+        }
+    }
+
+    private void encodeFrame(Frame frame) {
+        long startNanos = System.nanoTime();
+        byte[] input = frame.data;
+        if (converter != null) {
+            converter.convert(frame.view(), convertedBuffer);
+            input = converted;
+        }
+        // libffmpeg takes no timestamp and stamps frames itself from the order they arrive in, so
+        // capture timestamps only reach the stream on the MediaCodec path.
+        encoder.encodeVideoFrame(input);
+        framesEncoded++;
+        FrameRateGovernor g = governor;
+        if (g != null) {
+            g.onFrameEncoded(System.nanoTime() - startNanos);
+        }
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getFramesQueued() {
+        return framesQueued;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public long getFramesEncoded() {
+        return framesEncoded;
+    }
+
+    public enum DropPolicy {
+        /** Discard the oldest queued frame to make room, keeping latency low. */
+        DROP_OLDEST,
+        /** Discard the incoming frame, keeping queued frames intact. */
+        DROP_NEWEST
+    }
+
+    private static class Frame {
+        // Exactly one frame long, as the encoder takes whole arrays. Swapped with the camera's
+        // array by offer(byte[]).
+        byte[] data;
+        int length;
+        // View of data for the converter, made once per array.
+        ByteBuffer view;
+
+        Frame(int size) {
+            data = BufferPool.BYTE_ARRAYS.acquire(size);
+        }
+
+        ByteBuffer view() {
+            if (view == null) {
+                view = ByteBuffer.wrap(data);
+            }
+            view.clear();
+            return view;
+        }
+    }
+}
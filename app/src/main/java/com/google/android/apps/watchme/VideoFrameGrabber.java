@@ -17,21 +17,76 @@ package com.google.android.apps.watchme;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.BufferPool;
+import com.google.android.apps.watchme.util.Utils;
+
+import java.nio.ByteBuffer;
 
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
  *         <p/>
  *         VideoFrameGrabber class which grabs video frames to buffer.
  */
-public class VideoFrameGrabber {
+public class VideoFrameGrabber implements FrameSource {
+    // CONSTANTS.
+    public static final int DEFAULT_CALLBACK_BUFFER_COUNT = 3;
+
     // Member variables
     private Camera camera;
     private FrameCallback frameCallback;
+    private int callbackBufferCount = DEFAULT_CALLBACK_BUFFER_COUNT;
+    private Size previewSize;
+    private int frameSize;
+    // Guards the callback buffers: frames may still arrive on the camera thread during stop().
+    private final Object bufferLock = new Object();
+    // Callback buffers and their ByteBuffer views, so frames are passed on without allocating. An
+    // ArrayFrameCallback may swap a buffer for one of its own, whose view is made when needed.
+    private byte[][] callbackBuffers;
+    private ByteBuffer[] callbackBufferViews;
+
+    // Frame statistics, written on the camera callback thread only.
+    private volatile long framesDelivered;
+    private volatile long framesDropped;
+    private volatile long buffersRecycled;
+    private long frameIntervalNanos;
+    private long lastFrameNanos;
 
+    public VideoFrameGrabber() {
+    }
+
+    /**
+     * @param camera - Camera to be recorded by {@link #start()}.
+     */
+    public VideoFrameGrabber(Camera camera) {
+        this.camera = camera;
+    }
+
+    @Override
     public void setFrameCallback(FrameCallback callback) {
         frameCallback = callback;
     }
 
+    /**
+     * Sets how many preview buffers are queued to the camera. With a single buffer the camera has
+     * nowhere to write while {@link FrameCallback#handleFrame} runs, so every slow frame costs a
+     * dropped one. Takes effect on the next {@link #start(Camera)}.
+     *
+     * @param count - Number of preallocated callback buffers, at least 1.
+     */
+    public void setCallbackBufferCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be >= 1: " + count);
+        }
+        callbackBufferCount = count;
+    }
+
+    @Override
+    public boolean start() {
+        return camera != null && start(camera) != null;
+    }
+
     /**
      * Starts camera recording to buffer.
      *
@@ -45,30 +100,152 @@ public class VideoFrameGrabber {
         //params.setPreviewSize(StreamerActivity.CAMERA_WIDTH, StreamerActivity.CAMERA_HEIGHT);
         camera.setParameters(params);
 
-        Size previewSize = params.getPreviewSize();
-        int bufferSize = previewSize.width * previewSize.height * ImageFormat.getBitsPerPixel(
-                params.getPreviewFormat());
-        camera.addCallbackBuffer(new byte[bufferSize]);
+        previewSize = params.getPreviewSize();
+        frameSize = previewSize.width * previewSize.height * ImageFormat.getBitsPerPixel(
+                params.getPreviewFormat()) / 8;
+        callbackBuffers = new byte[callbackBufferCount][];
+        callbackBufferViews = new ByteBuffer[callbackBufferCount];
+        for (int i = 0; i < callbackBufferCount; i++) {
+            callbackBuffers[i] = BufferPool.BYTE_ARRAYS.acquire(frameSize);
+            callbackBufferViews[i] = ByteBuffer.wrap(callbackBuffers[i]);
+            camera.addCallbackBuffer(callbackBuffers[i]);
+        }
+
+        int[] fpsRange = new int[2];
+        params.getPreviewFpsRange(fpsRange);
+        int maxFps = fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        // The range is scaled by 1000, e.g. 30000 for 30 fps.
+        frameIntervalNanos = maxFps > 0 ? 1000000000000L / maxFps : 0;
+        lastFrameNanos = 0;
+        framesDelivered = 0;
+        framesDropped = 0;
+        buffersRecycled = 0;
 
         camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
             @Override
             public void onPreviewFrame(byte[] yuv_image, Camera camera) {
-                if (frameCallback != null) {
-                    frameCallback.handleFrame(yuv_image);
+                synchronized (bufferLock) {
+                    if (callbackBuffers == null) {
+                        // Stopped; the buffer is back in the pool.
+                        return;
+                    }
+                    long timestampNanos = Utils.elapsedRealtimeNanos();
+                    countFrame(timestampNanos);
+                    byte[] next = yuv_image;
+                    if (frameCallback instanceof ArrayFrameCallback) {
+                        next = ((ArrayFrameCallback) frameCallback).handleFrame(yuv_image,
+                                timestampNanos);
+                        if (next != yuv_image) {
+                            swapBuffer(yuv_image, next);
+                        }
+                    } else if (frameCallback != null) {
+                        frameCallback.handleFrame(viewOf(yuv_image), yuv_image.length,
+                                timestampNanos);
+                    }
+                    camera.addCallbackBuffer(next);
+                    buffersRecycled++;
                 }
-                camera.addCallbackBuffer(yuv_image);
             }
         });
 
         return previewSize;
     }
 
+    @Override
     public void stop() {
+        // Clearing the callback also drops the buffers still queued in the camera.
         camera.setPreviewCallbackWithBuffer(null);
         camera = null;
+        // Waits for a frame still being handled on the camera thread before pooling its buffer.
+        synchronized (bufferLock) {
+            if (callbackBuffers != null) {
+                for (byte[] buffer : callbackBuffers) {
+                    BufferPool.BYTE_ARRAYS.release(buffer);
+                }
+            }
+            callbackBuffers = null;
+            callbackBufferViews = null;
+        }
+        Log.i(MainActivity.APP_NAME, "Video frames delivered: " + framesDelivered
+                + ", dropped: " + framesDropped + ", buffers recycled: " + buffersRecycled);
+    }
+
+    @Override
+    public int getWidth() {
+        return previewSize.width;
     }
 
-    public interface FrameCallback {
-        void handleFrame(byte[] yuv_image);
+    @Override
+    public int getHeight() {
+        return previewSize.height;
+    }
+
+    /**
+     * Returns the size in bytes of one preview frame, valid after {@link #start(Camera)}.
+     */
+    @Override
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Returns the number of preview frames handed to the frame callback.
+     */
+    public long getFramesDelivered() {
+        return framesDelivered;
+    }
+
+    /**
+     * Returns the estimated number of preview frames the camera dropped. The camera does not report
+     * drops, so they are inferred from gaps between frames longer than the preview frame interval.
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * Returns the number of callback buffers given back to the camera.
+     */
+    public long getBuffersRecycled() {
+        return buffersRecycled;
+    }
+
+    private ByteBuffer viewOf(byte[] buffer) {
+        for (int i = 0; i < callbackBuffers.length; i++) {
+            if (callbackBuffers[i] == buffer) {
+                if (callbackBufferViews[i] == null) {
+                    callbackBufferViews[i] = ByteBuffer.wrap(buffer);
+                }
+                callbackBufferViews[i].clear();
+                return callbackBufferViews[i];
+            }
+        }
+        return ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Records that the callback kept a buffer and gave another in its place, so the buffer it gave
+     * is the one pooled on {@link #stop()}.
+     */
+    private void swapBuffer(byte[] kept, byte[] given) {
+        for (int i = 0; i < callbackBuffers.length; i++) {
+            if (callbackBuffers[i] == kept) {
+                callbackBuffers[i] = given;
+                callbackBufferViews[i] = null;
+                return;
+            }
+        }
+    }
+
+    private void countFrame(long now) {
+        if (lastFrameNanos != 0 && frameIntervalNanos > 0) {
+            // Anything later than half an interval past the expected slot was a skipped frame.
+            long missed = (now - lastFrameNanos - frameIntervalNanos / 2) / frameIntervalNanos;
+            if (missed > 0) {
+                framesDropped += missed;
+            }
+        }
+        lastFrameNanos = now;
+        framesDelivered++;
     }
 }
@@ -14,61 +14,295 @@
 
 package com.google.android.apps.watchme;
 
+import android.content.Context;
 import android.hardware.Camera;
-import android.hardware.Camera.Size;
 import android.util.Log;
 import android.view.Surface;
 
+import com.google.android.apps.watchme.util.BufferPool;
+import com.google.android.apps.watchme.util.Utils;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams through the software encoder in libffmpeg. The audio and video lanes queue frames
+ * independently but share the library's single context, so their encode calls are serialized by
+ * {@link FfmpegEncoder}; see {@link FfmpegEncoder#getLockContentions()}.
+ * <p/>
+ * libffmpeg writes to the ingest inside its encode calls, so a degraded uplink backs up the video
+ * queue. In {@link BackupIngestMode#FAILOVER} mode, a queue that stays full for longer than
+ * {@link PacketSendQueue#DEFAULT_MAX_LATENCY_MS} reopens the encoder on the other ingest, the way
+ * {@link PacketSendQueue} does on the MediaCodec path. The library holds a single connection, so
+ * {@link BackupIngestMode#SIMULTANEOUS} is rejected.
+ */
 public class VideoStreamingConnection implements VideoStreamingInterface {
     // CONSTANTS.
     private static final int AUDIO_SAMPLE_RATE = 44100;
+    // How long the video queue may stay full before the ingest counts as failed.
+    private static final long FAILOVER_CONGESTION_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(PacketSendQueue.DEFAULT_MAX_LATENCY_MS);
 
     // Member variables.
-    private VideoFrameGrabber videoFrameGrabber;
+    private FrameSource frameSource;
     private AudioFrameGrabber audioFrameGrabber;
-    private Object frame_mutex = new Object();
-    private boolean encoding;
+    private final FfmpegEncoder encoder = new FfmpegEncoder();
+    private VideoEncodeLane videoEncodeLane;
+    private AudioEncodeLane audioEncodeLane;
+    private AudioFrameAccumulator audioFrameAccumulator;
+    private String backupUrl;
+    private BackupIngestMode backupMode = BackupIngestMode.PRIMARY_ONLY;
+    private volatile String currentUrl;
+    private volatile String standbyUrl;
+    private long congestedSinceNanos;
+    private final AtomicBoolean failingOver = new AtomicBoolean();
+    private volatile Thread failoverThread;
+    private volatile long failovers;
+    private final AvSyncMonitor avSyncMonitor = new AvSyncMonitor();
+    private final FrameRateGovernor frameRateGovernor = new FrameRateGovernor();
+    private volatile boolean encoding;
+    private int videoQueueCapacity = VideoEncodeLane.DEFAULT_QUEUE_CAPACITY;
+    private VideoEncodeLane.DropPolicy videoDropPolicy = VideoEncodeLane.DropPolicy.DROP_OLDEST;
+    private Context camera2Context;
+    private String camera2Id;
+    private int outputRotation;
+    private boolean outputMirror;
+    private SilenceDetector silenceDetector = new SilenceDetector();
+    private final AudioLevelMeter audioLevelMeter = new AudioLevelMeter();
+    private AudioCaptureConfig audioCaptureConfig = AudioCaptureConfig.MONO;
+
+    /**
+     * Sets the detector that switches the audio lane to discontinuous transmission during
+     * sustained silence. Takes effect on the next open.
+     *
+     * @param detector - Detector to use, or null to encode every audio frame.
+     */
+    public void setSilenceDetector(SilenceDetector detector) {
+        silenceDetector = detector;
+    }
+
+    /**
+     * Sets the sample format and buffering of the audio for the next open. libffmpeg encodes
+     * mono, so the audio is always captured in mono.
+     *
+     * @param config - Capture settings for the session.
+     */
+    public void setAudioCaptureConfig(AudioCaptureConfig config) {
+        audioCaptureConfig = config;
+    }
+
+    /**
+     * Sets the backup ingest of the stream. Takes effect on the next open. libffmpeg holds a
+     * single connection, so the backup is used when the primary cannot be opened or falls
+     * behind, never alongside it.
+     *
+     * @param url  - Backup RTMP URL, or null for none.
+     * @param mode - How the backup ingest is used.
+     * @throws IllegalArgumentException for {@link BackupIngestMode#SIMULTANEOUS} with a backup.
+     */
+    @Override
+    public void setBackupOutput(String url, BackupIngestMode mode) {
+        if (url != null && mode == BackupIngestMode.SIMULTANEOUS) {
+            throw new IllegalArgumentException("libffmpeg streams to one ingest at a time; use"
+                    + " FAILOVER, or MediaCodecStreamingConnection to stream to both");
+        }
+        backupUrl = url;
+        backupMode = mode;
+    }
+
+    /**
+     * Configures the queue between the camera and the video encoder. Takes effect on the next
+     * {@link #open(String, Camera, Surface)}.
+     *
+     * @param capacity - Number of frames that may wait for the encoder.
+     * @param policy   - What to discard when the encoder falls behind.
+     */
+    public void setVideoQueue(int capacity, VideoEncodeLane.DropPolicy policy) {
+        videoQueueCapacity = capacity;
+        videoDropPolicy = policy;
+    }
+
+    /**
+     * Captures through Camera2 instead of the camera passed to
+     * {@link #open(String, Camera, Surface)}. Ignored before Lollipop, where the Camera1 grabber
+     * is used.
+     *
+     * @param context  - Context used to reach the camera service.
+     * @param cameraId - Camera2 id of the camera to be recorded, or null to use Camera1.
+     */
+    public void setCamera2Source(Context context, String cameraId) {
+        camera2Context = context;
+        camera2Id = cameraId;
+    }
+
+    /**
+     * Rotates and/or mirrors frames before encoding, e.g. to stream portrait video from a
+     * landscape sensor. Takes effect on the next {@link #open(String, Camera, Surface)}.
+     *
+     * @param rotation - Clockwise rotation in degrees: 0, 90, 180 or 270.
+     * @param mirror   - Whether to flip frames horizontally, e.g. for the front camera.
+     */
+    public void setOutputTransform(int rotation, boolean mirror) {
+        outputRotation = rotation;
+        outputMirror = mirror;
+    }
+
+    private FrameSource createFrameSource(Camera camera) {
+        if (camera2Id != null && Utils.hasLollipop()) {
+            return new Camera2FrameSource(camera2Context, camera2Id,
+                    Camera2FrameSource.DEFAULT_MAX_IMAGES);
+        }
+        return new VideoFrameGrabber(camera);
+    }
 
     @Override
-    public void open(String url, Camera camera, Surface previewSurface) {
+    public boolean open(String url, Camera camera, Surface previewSurface) {
         Log.d(MainActivity.APP_NAME, "open");
 
-        videoFrameGrabber = new VideoFrameGrabber();
-        videoFrameGrabber.setFrameCallback(new VideoFrameGrabber.FrameCallback() {
+        frameSource = createFrameSource(camera);
+        frameSource.setFrameCallback(new FrameSource.ArrayFrameCallback() {
             @Override
-            public void handleFrame(byte[] yuv_image) {
-                if (encoding) {
-                    synchronized (frame_mutex) {
-                        int encoded_size = Ffmpeg.encodeVideoFrame(yuv_image);
+            public byte[] handleFrame(byte[] frame, long timestampNanos) {
+                VideoEncodeLane lane = laneFor(timestampNanos);
+                return lane != null ? lane.offer(frame) : frame;
+            }
 
-                        // Logging.Verbose("Encoded video! Size = " + encoded_size);
-                    }
+            @Override
+            public void handleFrame(ByteBuffer frame, int length, long timestampNanos) {
+                VideoEncodeLane lane = laneFor(timestampNanos);
+                if (lane != null) {
+                    lane.offer(frame, length);
                 }
             }
         });
 
+        // libffmpeg encodes mono 16-bit audio only.
+        AudioCaptureConfig captureConfig = new AudioCaptureConfig(1,
+                audioCaptureConfig.sampleFormat, audioCaptureConfig.bufferMultiplier, false);
         audioFrameGrabber = new AudioFrameGrabber();
+        audioFrameGrabber.setCaptureConfig(captureConfig);
+        // Frame-sized reads let whole chunks bypass the accumulator's copy.
+        audioFrameGrabber.setReadSamples(AudioFrameAccumulator.AAC_FRAME_SAMPLES);
         audioFrameGrabber.setFrameCallback(new AudioFrameGrabber.FrameCallback() {
             @Override
-            public void handleFrame(short[] audioData, int length) {
+            public void handleFrame(ByteBuffer audioData, int length, long timestampNanos) {
+                audioLevelMeter.process(audioData, length, timestampNanos);
                 if (encoding) {
-                    synchronized (frame_mutex) {
-                        int encoded_size = Ffmpeg.encodeAudioFrame(audioData, length);
-                    }
+                    avSyncMonitor.onAudioFrame(timestampNanos, Utils.elapsedRealtimeNanos());
+                    audioFrameAccumulator.add(audioData, length, timestampNanos);
                 }
             }
         });
 
-        synchronized (frame_mutex) {
-            Size previewSize = videoFrameGrabber.start(camera);
-            audioFrameGrabber.start(AUDIO_SAMPLE_RATE);
+        if (!frameSource.start()) {
+            Log.e(MainActivity.APP_NAME, "Couldn't start the frame source");
+            frameSource = null;
+            return false;
+        }
+        FrameConverter converter = null;
+        int width = frameSource.getWidth();
+        int height = frameSource.getHeight();
+        if (outputRotation != 0 || outputMirror) {
+            converter = new FrameConverter(width, height, outputRotation, outputMirror);
+            width = converter.getOutputWidth();
+            height = converter.getOutputHeight();
+        }
+        currentUrl = url;
+        standbyUrl = backupMode == BackupIngestMode.FAILOVER ? backupUrl : null;
+        boolean opened = encoder.open(width, height, AUDIO_SAMPLE_RATE, url);
+        if (!opened && standbyUrl != null) {
+            // Start on the backup and fail back to the primary if the backup falls behind too.
+            Log.w(MainActivity.APP_NAME, "Primary ingest unavailable, trying the backup");
+            currentUrl = standbyUrl;
+            standbyUrl = url;
+            opened = encoder.open(width, height, AUDIO_SAMPLE_RATE, currentUrl);
+        }
+        if (!opened) {
+            frameSource.stop();
+            frameSource = null;
+            return false;
+        }
+        congestedSinceNanos = 0;
+
+        videoEncodeLane = new VideoEncodeLane(encoder, frameSource.getFrameSize(),
+                videoQueueCapacity, videoDropPolicy);
+        videoEncodeLane.setGovernor(frameRateGovernor);
+        if (converter != null) {
+            videoEncodeLane.setConverter(converter);
+        }
+        audioEncodeLane = new AudioEncodeLane(encoder, AudioFrameAccumulator.AAC_FRAME_SAMPLES);
+        audioEncodeLane.setSilenceDetector(silenceDetector);
+        audioFrameAccumulator = new AudioFrameAccumulator(AudioFrameAccumulator.AAC_FRAME_SAMPLES,
+                AUDIO_SAMPLE_RATE, new AudioFrameAccumulator.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame, int samples, long timestampNanos) {
+                audioEncodeLane.encode(frame, samples, timestampNanos);
+            }
+        });
 
-            int width = previewSize.width;
-            int height = previewSize.height;
-            encoding = Ffmpeg.init(width, height, AUDIO_SAMPLE_RATE, url);
+        videoEncodeLane.start();
+        encoding = true;
+        audioFrameGrabber.start(AUDIO_SAMPLE_RATE);
+        return true;
+    }
 
-            Log.i(MainActivity.APP_NAME, "Ffmpeg.init() returned " + encoding);
+    /**
+     * Returns the lane to queue a frame captured at the given time to, or null if the frame is not
+     * to be encoded.
+     */
+    private VideoEncodeLane laneFor(long timestampNanos) {
+        VideoEncodeLane lane = videoEncodeLane;
+        if (!encoding || lane == null || !frameRateGovernor.shouldEncode(timestampNanos)) {
+            return null;
+        }
+        avSyncMonitor.onVideoFrame(timestampNanos, Utils.elapsedRealtimeNanos());
+        checkCongestion(lane);
+        return lane;
+    }
+
+    /**
+     * Fails over to the standby ingest once the video queue has stayed full for too long. Called
+     * on the camera thread for every frame to be encoded.
+     */
+    private void checkCongestion(VideoEncodeLane lane) {
+        if (standbyUrl == null || lane.getQueueDepth() < videoQueueCapacity) {
+            congestedSinceNanos = 0;
+            return;
+        }
+        long now = Utils.elapsedRealtimeNanos();
+        if (congestedSinceNanos == 0) {
+            congestedSinceNanos = now;
+        } else if (now - congestedSinceNanos > FAILOVER_CONGESTION_NANOS
+                && failingOver.compareAndSet(false, true)) {
+            congestedSinceNanos = 0;
+            Log.w(MainActivity.APP_NAME, "Video queue full for "
+                    + TimeUnit.NANOSECONDS.toMillis(FAILOVER_CONGESTION_NANOS)
+                    + " ms, failing over to " + standbyUrl);
+            // Reopening blocks on the network, so keep it off the camera thread.
+            failoverThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    failOver();
+                    failingOver.set(false);
+                }
+            }, "IngestFailover");
+            failoverThread.start();
+        }
+    }
+
+    private void failOver() {
+        String from = currentUrl;
+        String to = standbyUrl;
+        if (encoder.reopen(to)) {
+            currentUrl = to;
+            standbyUrl = from;
+            failovers++;
+            return;
+        }
+        Log.w(MainActivity.APP_NAME, "Couldn't open " + to + ", staying on " + from);
+        if (!encoder.reopen(from)) {
+            Log.e(MainActivity.APP_NAME, "Lost both ingests");
         }
     }
 
@@ -76,12 +310,101 @@ public class VideoStreamingConnection implements VideoStreamingInterface {
     public void close() {
         Log.i(MainActivity.APP_NAME, "close");
 
-        videoFrameGrabber.stop();
+        if (frameSource == null) {
+            // open() failed before starting anything.
+            return;
+        }
+        encoding = false;
+        frameSource.stop();
         audioFrameGrabber.stop();
+        audioLevelMeter.reset();
+        videoEncodeLane.stop();
+        // A failover still reopening the encoder would otherwise leave it open.
+        Thread failover = failoverThread;
+        if (failover != null) {
+            try {
+                failover.join();
+            } catch (InterruptedException e) {
+                Log.e(MainActivity.APP_NAME, "", e);
+            }
+            failoverThread = null;
+        }
+        encoder.close();
 
-        encoding = false;
-        if (encoding) {
-            Ffmpeg.shutdown();
+        Log.i(MainActivity.APP_NAME, "Encoder lock contentions: " + getLockContentions()
+                + ", ingest failovers: " + failovers);
+        Log.i(MainActivity.APP_NAME, "Video frames skipped: " + frameRateGovernor.getFramesSkipped()
+                + ", encode time p50/p90/p99: "
+                + frameRateGovernor.getEncodeTimePercentileMs(50) + "/"
+                + frameRateGovernor.getEncodeTimePercentileMs(90) + "/"
+                + frameRateGovernor.getEncodeTimePercentileMs(99) + " ms");
+        Log.i(MainActivity.APP_NAME, "Audio chunks captured: " + audioFrameAccumulator.getChunksIn()
+                + ", encoder calls: " + audioFrameAccumulator.getFramesOut() + ", uncopied: "
+                + audioFrameAccumulator.getPassthroughFrames());
+        if (silenceDetector != null) {
+            Log.i(MainActivity.APP_NAME, "Silent audio frames: "
+                    + silenceDetector.getSilentFrames());
         }
+        audioFrameAccumulator.release();
+        videoEncodeLane.release();
+        BufferPool.BYTE_ARRAYS.checkLeaks();
+        BufferPool.DIRECT_BUFFERS.checkLeaks();
+    }
+
+    /**
+     * Returns how often one lane had to wait for the other. libffmpeg keeps a single encoder
+     * context, so the audio and video lanes take turns with it.
+     */
+    public long getLockContentions() {
+        return encoder.getLockContentions();
+    }
+
+    /**
+     * Returns how often the stream switched between the primary and the backup ingest.
+     */
+    public long getFailovers() {
+        return failovers;
+    }
+
+    /**
+     * Returns the governor pacing frames into the video encoder, for its target frame rate and
+     * statistics.
+     */
+    public FrameRateGovernor getFrameRateGovernor() {
+        return frameRateGovernor;
+    }
+
+    /**
+     * Returns the last measured A/V drift in microseconds, see {@link AvSyncMonitor}. This is the
+     * drift between the capture clocks; libffmpeg stamps the stream itself.
+     */
+    public long getAvDriftUs() {
+        return avSyncMonitor.getDriftUs();
+    }
+
+    /**
+     * Returns the number of video frames waiting for the encoder.
+     */
+    public int getVideoQueueDepth() {
+        return videoEncodeLane != null ? videoEncodeLane.getQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the largest number of video frames that waited for the encoder at once.
+     */
+    public int getMaxVideoQueueDepth() {
+        return videoEncodeLane != null ? videoEncodeLane.getMaxQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the number of video frames dropped because the encoder fell behind.
+     */
+    public long getVideoFramesDropped() {
+        return videoEncodeLane != null ? videoEncodeLane.getFramesDropped() : 0;
+    }
+
+    @Override
+    public AudioLevelMeter getAudioLevelMeter() {
+        return audioLevelMeter;
     }
 }
@@ -18,7 +18,29 @@ import android.hardware.Camera;
 import android.view.Surface;
 
 public interface VideoStreamingInterface {
-    void open(String url, Camera camera, Surface previewSurface);
+    /**
+     * Starts capturing, encoding and sending the stream.
+     *
+     * @param url            - Primary RTMP URL.
+     * @param camera         - Camera to be recorded.
+     * @param previewSurface - Optional surface to show the camera on, may be null.
+     * @return false if the stream could not be started; nothing needs closing then.
+     */
+    boolean open(String url, Camera camera, Surface previewSurface);
 
     void close();
+
+    /**
+     * Sets the backup ingest of the stream. Takes effect on the next open.
+     *
+     * @param url  - Backup RTMP URL, or null for none.
+     * @param mode - Whether to stream to the backup alongside the primary or to fail over to it.
+     * @throws IllegalArgumentException if the connection cannot use the backup that way.
+     */
+    void setBackupOutput(String url, BackupIngestMode mode);
+
+    /**
+     * Returns the meter fed by this connection's microphone capture.
+     */
+    AudioLevelMeter getAudioLevelMeter();
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.apps.watchme.BuildConfig;
+import com.google.android.apps.watchme.MainActivity;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide pool of frame buffers keyed by capacity, so restarting a stream, switching cameras
+ * or rotating the device reuses the buffers of the previous session instead of leaving them to
+ * the garbage collector.
+ * <p/>
+ * Buffers are borrowed per session, not per frame, so the pool simply synchronizes. In debug
+ * builds every borrowed buffer remembers where it was acquired; {@link #checkLeaks()} logs the
+ * ones that were never returned.
+ */
+public abstract class BufferPool<T> {
+    // CONSTANTS.
+    // Free buffers kept per capacity; extra buffers are left to the garbage collector.
+    public static final int MAX_RETAINED_PER_CAPACITY = 16;
+    // Capturing a stack per acquire is too slow for release builds.
+    private static final boolean TRACK_ACQUIRE_SITES = BuildConfig.DEBUG;
+
+    /** Heap byte arrays, e.g. Camera1 preview callback buffers. */
+    public static final BufferPool<byte[]> BYTE_ARRAYS = new BufferPool<byte[]>("byte[]") {
+        @Override
+        protected byte[] allocate(int capacity) {
+            return new byte[capacity];
+        }
+
+        @Override
+        protected int capacityOf(byte[] buffer) {
+            return buffer.length;
+        }
+
+        @Override
+        protected void reset(byte[] buffer) {
+        }
+    };
+
+    /** Native-order direct buffers, for anything handed to the encoders. */
+    public static final BufferPool<ByteBuffer> DIRECT_BUFFERS =
+            new BufferPool<ByteBuffer>("direct ByteBuffer") {
+                @Override
+                protected ByteBuffer allocate(int capacity) {
+                    return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+                }
+
+                @Override
+                protected int capacityOf(ByteBuffer buffer) {
+                    return buffer.capacity();
+                }
+
+                @Override
+                protected void reset(ByteBuffer buffer) {
+                    buffer.clear();
+                    buffer.order(ByteOrder.nativeOrder());
+                }
+            };
+
+    // Member variables.
+    private final String name;
+    private final SparseArray<ArrayDeque<T>> free = new SparseArray<ArrayDeque<T>>();
+    private final Map<T, Throwable> borrowed = new IdentityHashMap<T, Throwable>();
+    private long hits;
+    private long misses;
+
+    protected BufferPool(String name) {
+        this.name = name;
+    }
+
+    protected abstract T allocate(int capacity);
+
+    protected abstract int capacityOf(T buffer);
+
+    protected abstract void reset(T buffer);
+
+    /**
+     * Borrows a buffer of exactly the given capacity.
+     *
+     * @param capacity - Capacity in bytes.
+     * @return a buffer reset to its initial state.
+     */
+    public synchronized T acquire(int capacity) {
+        ArrayDeque<T> buffers = free.get(capacity);
+        T buffer = buffers != null ? buffers.pollFirst() : null;
+        if (buffer != null) {
+            hits++;
+            reset(buffer);
+        } else {
+            misses++;
+            buffer = allocate(capacity);
+        }
+        borrowed.put(buffer, TRACK_ACQUIRE_SITES
+                ? new Throwable("Acquired " + name + "[" + capacity + "]") : null);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch it afterwards.
+     */
+    public synchronized void release(T buffer) {
+        if (!borrowed.containsKey(buffer)) {
+            Log.w(MainActivity.APP_NAME, "Releasing a " + name + " that was not borrowed",
+                    new Throwable());
+            return;
+        }
+        borrowed.remove(buffer);
+        int capacity = capacityOf(buffer);
+        ArrayDeque<T> buffers = free.get(capacity);
+        if (buffers == null) {
+            buffers = new ArrayDeque<T>();
+            free.put(capacity, buffers);
+        }
+        if (buffers.size() < MAX_RETAINED_PER_CAPACITY) {
+            buffers.addFirst(buffer);
+        }
+    }
+
+    /**
+     * Logs every buffer that is still borrowed, with the stack that acquired it in debug builds.
+     * Call once a session has released everything it borrowed.
+     *
+     * @return the number of buffers still borrowed.
+     */
+    public synchronized int checkLeaks() {
+        for (Map.Entry<T, Throwable> entry : borrowed.entrySet()) {
+            if (entry.getValue() != null) {
+                Log.w(MainActivity.APP_NAME, "Leaked buffer", entry.getValue());
+            } else {
+                Log.w(MainActivity.APP_NAME, "Leaked " + name + "["
+                        + capacityOf(entry.getKey()) + "]");
+            }
+        }
+        Log.i(MainActivity.APP_NAME, name + " pool hits: " + hits + ", misses: " + misses
+                + ", borrowed: " + borrowed.size());
+        return borrowed.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int getBorrowedCount() {
+        return borrowed.size();
+    }
+}
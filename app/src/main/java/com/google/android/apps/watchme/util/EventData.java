@@ -26,6 +26,7 @@ import com.google.api.services.youtube.model.LiveBroadcast;
 public class EventData {
     private LiveBroadcast mEvent;
     private String mIngestionAddress;
+    private String mBackupIngestionAddress;
 
     public LiveBroadcast getEvent() {
         //Log.e("getEvent()", String.valueOf(mEvent));
@@ -71,6 +72,17 @@ public class EventData {
         //Log.e("setIngestionAddress", String.valueOf(mIngestionAddress));
     }
 
+    /**
+     * Returns the backup ingestion URL of the bound stream, or null if YouTube offered none.
+     */
+    public String getBackupIngestionAddress() {
+        return mBackupIngestionAddress;
+    }
+
+    public void setBackupIngestionAddress(String backupIngestionAddress) {
+        mBackupIngestionAddress = backupIngestionAddress;
+    }
+
     public String getWatchUri() {
         //Log.e("URI","http://www.youtube.com/watch?v=" + getId());
         return "http://www.youtube.com/watch?v=" + getId();
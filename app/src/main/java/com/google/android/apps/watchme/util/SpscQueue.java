@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring queue for handing pooled objects from one producer thread to one consumer
+ * thread. Neither side allocates or blocks.
+ * <p/>
+ * The consumer index is advanced with a compare-and-set, so the producer may also {@link #poll()}
+ * to evict the oldest element when the queue is full. Polled slots are not cleared; the queue is
+ * meant for pooled objects that stay reachable anyway.
+ */
+public class SpscQueue<E> {
+    private final int capacity;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    public SpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be >= 1: " + capacity);
+        }
+        this.capacity = capacity;
+        slots = new AtomicReferenceArray<E>(capacity);
+    }
+
+    /**
+     * Appends an element. Must only be called from the producer thread.
+     *
+     * @param element - Element to append.
+     * @return false if the queue is full.
+     */
+    public boolean offer(E element) {
+        long t = tail;
+        if (t - head.get() >= capacity) {
+            return false;
+        }
+        slots.lazySet((int) (t % capacity), element);
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Removes the oldest element.
+     *
+     * @return the oldest element, or null if the queue is empty.
+     */
+    public E poll() {
+        while (true) {
+            long h = head.get();
+            if (h >= tail) {
+                return null;
+            }
+            E element = slots.get((int) (h % capacity));
+            if (head.compareAndSet(h, h + 1)) {
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest element without removing it, or null if the queue is empty. Only
+     * meaningful on the consumer thread.
+     */
+    public E peek() {
+        long h = head.get();
+        if (h >= tail) {
+            return null;
+        }
+        return slots.get((int) (h % capacity));
+    }
+
+    public int size() {
+        long size = tail - head.get();
+        return size < 0 ? 0 : (int) size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
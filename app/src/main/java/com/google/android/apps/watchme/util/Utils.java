@@ -16,10 +16,16 @@
 package com.google.android.apps.watchme.util;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.hardware.Camera;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -90,6 +96,63 @@ public class Utils {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
     }
 
+    public static boolean hasJellyBeanMR1() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+    }
+
+    public static boolean hasJellyBeanMR2() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    public static boolean hasKitKat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    public static boolean hasLollipop() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    public static boolean hasMarshmallow() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Returns the monotonic clock used to timestamp captured audio and video, in nanoseconds.
+     * Falls back to millisecond precision before API 17.
+     */
+    public static long elapsedRealtimeNanos() {
+        if (hasJellyBeanMR1()) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+    /**
+     * Returns a key identifying the network the device is on, for caching per-network
+     * measurements: the SSID on Wi-Fi, the radio technology on cellular. Returns null when
+     * offline.
+     *
+     * @param context context
+     */
+    public static String getNetworkKey(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return null;
+        }
+        if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+            WifiManager wifiManager = (WifiManager) context.getApplicationContext()
+                    .getSystemService(Context.WIFI_SERVICE);
+            WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+            return "wifi:" + (wifiInfo != null ? wifiInfo.getSSID() : "");
+        }
+        if (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
+            return "cellular:" + networkInfo.getSubtypeName();
+        }
+        return networkInfo.getTypeName();
+    }
+
     /**
      * Logs the given throwable and shows an error alert dialog with its message.
      *
@@ -44,6 +44,7 @@ public class YouTubeApi {
 
     public static final String RTMP_URL_KEY = "rtmp://a.rtmp.youtube.com/live2";
     public static final String BROADCAST_ID_KEY = "1qc7-8z7g-9bvr-3kh4";
+    public static final String BACKUP_RTMP_URL_KEY = "backupRtmpUrl";
     private static final int FUTURE_DATE_OFFSET_MILLIS = 5 * 1000;
 
     //建立直播活動
@@ -183,8 +184,18 @@ public class YouTubeApi {
             event.setEvent(broadcast);
             String streamId = broadcast.getContentDetails().getBoundStreamId();
             if (streamId != null) {
-                String ingestionAddress = getIngestionAddress(youtube, streamId);
-                event.setIngestionAddress(ingestionAddress);
+                IngestionInfo ingestionInfo = getIngestionInfo(youtube, streamId);
+                if (ingestionInfo != null) {
+                    event.setIngestionAddress(ingestionInfo.getIngestionAddress() + "/"
+                            + ingestionInfo.getStreamName());
+                    if (ingestionInfo.getBackupIngestionAddress() != null) {
+                        event.setBackupIngestionAddress(
+                                ingestionInfo.getBackupIngestionAddress() + "/"
+                                        + ingestionInfo.getStreamName());
+                    }
+                } else {
+                    event.setIngestionAddress("");
+                }
             }
             resultList.add(event);
         }
@@ -215,6 +226,17 @@ public class YouTubeApi {
     //得到擷取的地址
     public static String getIngestionAddress(YouTube youtube, String streamId)
             throws IOException {
+        IngestionInfo ingestionInfo = getIngestionInfo(youtube, streamId);
+        if (ingestionInfo == null) {
+            return "";
+        }
+        return ingestionInfo.getIngestionAddress() + "/"
+                + ingestionInfo.getStreamName();
+    }
+
+    //得到擷取資訊（主要與備用地址）
+    public static IngestionInfo getIngestionInfo(YouTube youtube, String streamId)
+            throws IOException {
         YouTube.LiveStreams.List liveStreamRequest = youtube.liveStreams()
                 .list("cdn");
         liveStreamRequest.setId(streamId);
@@ -222,10 +244,8 @@ public class YouTubeApi {
 
         List<LiveStream> streamList = returnedStream.getItems();
         if (streamList.isEmpty()) {
-            return "";
+            return null;
         }
-        IngestionInfo ingestionInfo = streamList.get(0).getCdn().getIngestionInfo();
-        return ingestionInfo.getIngestionAddress() + "/"
-                + ingestionInfo.getStreamName();
+        return streamList.get(0).getCdn().getIngestionInfo();
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.AdaptiveBitrateController.Preset;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.android.apps.watchme.AdaptiveBitrateController.DOWN_HOLD_MS;
+import static com.google.android.apps.watchme.AdaptiveBitrateController.MIN_STEP_INTERVAL_MS;
+import static com.google.android.apps.watchme.AdaptiveBitrateController.QUEUE_WINDOW_MS;
+import static com.google.android.apps.watchme.AdaptiveBitrateController.UP_HOLD_MS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AdaptiveBitrateControllerTest {
+    // CONSTANTS.
+    private static final Preset HIGH = new Preset(1280, 720, 2500000);
+    private static final Preset MEDIUM = new Preset(854, 480, 1000000);
+    private static final Preset LOW = new Preset(640, 360, 600000);
+    // Past the step interval that follows a reset.
+    private static final long START_MS = MIN_STEP_INTERVAL_MS;
+    private static final long REPORT_MS = 250;
+
+    // Member variables.
+    private final List<Preset> changes = new ArrayList<Preset>();
+    private AdaptiveBitrateController controller;
+
+    @Before
+    public void setUp() {
+        controller = new AdaptiveBitrateController(new AdaptiveBitrateController.Listener() {
+            @Override
+            public void onPresetChanged(Preset from, Preset to) {
+                changes.add(to);
+            }
+        }, HIGH, MEDIUM, LOW);
+        controller.reset(HIGH, 0);
+    }
+
+    @Test
+    public void weakNetworkStepsDownAtOnce() {
+        controller.onNetworkWeak(START_MS);
+        assertSame(MEDIUM, controller.getPreset());
+        assertEquals(1, changes.size());
+        assertEquals(1, controller.getStepsDown());
+    }
+
+    @Test
+    public void stepsAreSpacedOut() {
+        controller.onNetworkWeak(START_MS);
+        controller.onNetworkWeak(START_MS + MIN_STEP_INTERVAL_MS - 1);
+        assertSame(MEDIUM, controller.getPreset());
+        controller.onNetworkWeak(START_MS + MIN_STEP_INTERVAL_MS);
+        assertSame(LOW, controller.getPreset());
+        controller.onNetworkWeak(START_MS + 3 * MIN_STEP_INTERVAL_MS);
+        assertSame(LOW, controller.getPreset());
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void lowFpsMustLastBeforeSteppingDown() {
+        controller.onVideoFps(15, START_MS);
+        controller.onVideoFps(15, START_MS + DOWN_HOLD_MS - 1);
+        assertSame(HIGH, controller.getPreset());
+        controller.onVideoFps(15, START_MS + DOWN_HOLD_MS);
+        assertSame(MEDIUM, controller.getPreset());
+    }
+
+    @Test
+    public void lowFpsIsMeasuredAgainstTheTargetFps() {
+        controller.setTargetFps(20);
+        controller.onVideoFps(15, START_MS);
+        controller.onVideoFps(15, START_MS + DOWN_HOLD_MS);
+        assertSame(HIGH, controller.getPreset());
+    }
+
+    @Test
+    public void briefDipsDoNotStepDown() {
+        long now = START_MS;
+        for (int i = 0; i < 20; i++) {
+            controller.onVideoFps(15, now);
+            now += DOWN_HOLD_MS / 2;
+            controller.onVideoFps(30, now);
+            now += DOWN_HOLD_MS / 2;
+        }
+        assertSame(HIGH, controller.getPreset());
+        assertEquals(0, changes.size());
+    }
+
+    @Test
+    public void stepsBackUpOnlyAfterALongCalm() {
+        controller.onNetworkWeak(START_MS);
+        controller.onVideoFps(30, START_MS + UP_HOLD_MS - 1);
+        assertSame(MEDIUM, controller.getPreset());
+        controller.onVideoFps(30, START_MS + UP_HOLD_MS);
+        assertSame(HIGH, controller.getPreset());
+        assertEquals(1, controller.getStepsUp());
+        controller.onVideoFps(30, START_MS + 3 * UP_HOLD_MS);
+        assertSame(HIGH, controller.getPreset());
+    }
+
+    @Test
+    public void congestionRestartsTheCalmBeforeSteppingUp() {
+        controller.onNetworkWeak(START_MS);
+        long congestedMs = START_MS + UP_HOLD_MS / 2;
+        controller.onVideoFps(15, congestedMs);
+        controller.onVideoFps(30, congestedMs + 1);
+        controller.onVideoFps(30, START_MS + UP_HOLD_MS);
+        assertSame(MEDIUM, controller.getPreset());
+        controller.onVideoFps(30, congestedMs + 1 + UP_HOLD_MS);
+        assertSame(HIGH, controller.getPreset());
+    }
+
+    @Test
+    public void growingSendQueueStepsDown() {
+        long now = START_MS;
+        int depth = 0;
+        while (controller.getPreset() == HIGH && now < START_MS + 10 * QUEUE_WINDOW_MS) {
+            controller.onSendQueueDepth(depth++, now);
+            now += REPORT_MS;
+        }
+        assertSame(MEDIUM, controller.getPreset());
+        // One window to measure a baseline, one to see growth, then the hold.
+        assertEquals(START_MS + 2 * QUEUE_WINDOW_MS + DOWN_HOLD_MS, now - REPORT_MS,
+                QUEUE_WINDOW_MS);
+    }
+
+    @Test
+    public void keyFrameBurstsAreNotGrowth() {
+        long now = START_MS;
+        for (int i = 0; i < 80; i++) {
+            // A burst every second that drains in between.
+            controller.onSendQueueDepth(i % 4 == 0 ? 20 : 0, now);
+            now += REPORT_MS;
+        }
+        assertSame(HIGH, controller.getPreset());
+    }
+
+    @Test
+    public void deepSendQueueStepsDown() {
+        controller.setMaxQueueDepth(10);
+        controller.onSendQueueDepth(11, START_MS);
+        controller.onSendQueueDepth(11, START_MS + DOWN_HOLD_MS);
+        assertSame(MEDIUM, controller.getPreset());
+    }
+
+    @Test
+    public void resetStartsFromTheGivenPreset() {
+        controller.reset(LOW, 0);
+        assertSame(LOW, controller.getPreset());
+        controller.reset(new Preset(1, 1, 1), 0);
+        assertSame(HIGH, controller.getPreset());
+        assertEquals(0, changes.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyLadder() {
+        new AdaptiveBitrateController(new ArrayList<Preset>(), null);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AudioFrameAccumulatorTest {
+    // CONSTANTS.
+    private static final int OUTPUT_RATE = 44100;
+    private static final int FRAME_SAMPLES = AudioFrameAccumulator.AAC_FRAME_SAMPLES;
+    private static final int FRAMES = 200;
+
+    // Member variables.
+    private ByteBuffer lastFrame;
+    private int framesSeen;
+    private final AudioFrameAccumulator accumulator = new AudioFrameAccumulator(FRAME_SAMPLES,
+            OUTPUT_RATE, new AudioFrameAccumulator.FrameListener() {
+        @Override
+        public void onFrame(ByteBuffer frame, int samples, long timestampNanos) {
+            assertEquals(FRAME_SAMPLES, samples);
+            lastFrame = frame;
+            framesSeen++;
+        }
+    });
+
+    @After
+    public void tearDown() {
+        accumulator.release();
+    }
+
+    @Test
+    public void passesFrameSizedReadsThroughAtTheOutputRate() {
+        ByteBuffer chunk = allocate(FRAME_SAMPLES);
+        for (int i = 0; i < FRAMES; i++) {
+            accumulator.add(chunk, FRAME_SAMPLES, i * nanos(FRAME_SAMPLES, OUTPUT_RATE));
+            assertSame(chunk, lastFrame);
+        }
+        assertEquals(FRAMES, accumulator.getPassthroughFrames());
+        assertEquals(FRAMES, framesSeen);
+    }
+
+    @Test
+    public void passesResampledReadsThroughFromANativeRate() {
+        int captureRate = 48000;
+        AudioResampler resampler = new AudioResampler(captureRate, OUTPUT_RATE);
+        ByteBuffer input = allocate((int) resampler.getInputSamplesFor(FRAME_SAMPLES) + 1);
+        ByteBuffer output = allocate(resampler.getMaxOutputSamples(input.capacity() / 2));
+        // Sized the way AudioFrameGrabber sizes its reads.
+        long samplesQueued = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            long needed = resampler.getInputSamplesFor((long) (i + 1) * FRAME_SAMPLES);
+            int samples = (int) (needed - samplesQueued);
+            int produced = resampler.process(input, samples,
+                    nanos(samplesQueued, captureRate), output);
+            samplesQueued = needed;
+            assertEquals("Chunk " + i, FRAME_SAMPLES, produced);
+            accumulator.add(output, produced, resampler.getOutputTimestampNanos());
+            assertSame(output, lastFrame);
+        }
+        assertEquals(FRAMES, accumulator.getPassthroughFrames());
+        assertEquals(FRAMES, framesSeen);
+    }
+
+    @Test
+    public void regroupsOtherChunkSizes() {
+        ByteBuffer chunk = allocate(1000);
+        for (int i = 0; i < FRAMES; i++) {
+            accumulator.add(chunk, 1000, i * nanos(1000, OUTPUT_RATE));
+        }
+        assertEquals(FRAMES * 1000 / FRAME_SAMPLES, framesSeen);
+        assertEquals(0, accumulator.getPassthroughFrames());
+    }
+
+    private static long nanos(long samples, int rate) {
+        return samples * 1000000000L / rate;
+    }
+
+    private static ByteBuffer allocate(int samples) {
+        return ByteBuffer.allocateDirect(samples * 2).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioResamplerTest {
+    // CONSTANTS.
+    private static final double AMPLITUDE = 16384;
+    // Output samples ignored while the filter history fills.
+    private static final int SETTLE_SAMPLES = 100;
+
+    @Test
+    public void producesSamplesInProportionToTheRates() {
+        assertEquals(44100, resample(48000, 44100, 1000, 1, 48000, 0, 480).length, 1);
+        assertEquals(48000, resample(44100, 48000, 1000, 1, 44100, 0, 441).length, 1);
+        assertEquals(44100, resample(16000, 44100, 1000, 1, 16000, 0, 160).length, 1);
+    }
+
+    @Test
+    public void outputDoesNotDependOnChunkSizes() {
+        short[] whole = resample(48000, 44100, 1000, 1, 9600, 0, 9600);
+        short[] chunked = resample(48000, 44100, 1000, 1, 9600, 0, 37);
+        assertEquals(whole.length, chunked.length);
+        for (int i = 0; i < whole.length; i++) {
+            assertEquals("Sample " + i, whole[i], chunked[i]);
+        }
+    }
+
+    @Test
+    public void keepsTheLevelAndPitchOfATone() {
+        short[] output = resample(48000, 44100, 1000, 1, 48000, 0, 1024);
+        assertEquals(AMPLITUDE / Math.sqrt(2), rms(output, 0, 1), AMPLITUDE * 0.02);
+        // A 1 kHz tone crosses zero twice per cycle.
+        assertEquals(2 * 1000 * (output.length - SETTLE_SAMPLES) / 44100.0,
+                zeroCrossings(output), 3);
+    }
+
+    @Test
+    public void keepsStereoChannelsApart() {
+        short[] output = resample(44100, 48000, 1000, 2, 44100, 1, 1024);
+        assertEquals(0, rms(output, 0, 2), 1);
+        assertEquals(AMPLITUDE / Math.sqrt(2), rms(output, 1, 2), AMPLITUDE * 0.02);
+    }
+
+    @Test
+    public void filtersOutWhatWouldAlias() {
+        // 12 kHz is above the 8 kHz Nyquist rate of the output and would fold back to 4 kHz.
+        short[] output = resample(48000, 16000, 12000, 1, 48000, 0, 1024);
+        assertTrue(rms(output, 0, 1) < AMPLITUDE * 0.02);
+    }
+
+    @Test
+    public void timestampsFollowTheOutput() {
+        AudioResampler resampler = new AudioResampler(48000, 44100);
+        int chunkSamples = 1000;
+        ByteBuffer input = createTone(48000, 1000, 1, 0, chunkSamples, 0);
+        ByteBuffer output = allocate(resampler.getMaxOutputSamples(chunkSamples));
+        long chunkNanos = chunkSamples * 1000000000L / 48000;
+        long expectedNanos = -1;
+        for (int i = 0; i < 20; i++) {
+            int produced = resampler.process(input, chunkSamples, i * chunkNanos, output);
+            long timestampNanos = resampler.getOutputTimestampNanos();
+            if (expectedNanos >= 0) {
+                // Within one output sample.
+                assertEquals(expectedNanos, timestampNanos, 1000000000L / 44100);
+            }
+            expectedNanos = timestampNanos + produced * 1000000000L / 44100;
+        }
+    }
+
+    /**
+     * Resamples a tone in chunks.
+     *
+     * @param toneChannel - Channel carrying the tone; the others are silent.
+     * @return the interleaved output.
+     */
+    private static short[] resample(int inputRate, int outputRate, int toneHz, int channels,
+                                    int inputSamples, int toneChannel, int chunkSamples) {
+        AudioResampler resampler = new AudioResampler(inputRate, outputRate, channels);
+        ByteBuffer output = allocate(resampler.getMaxOutputSamples(chunkSamples) * channels);
+        short[] result = new short[resampler.getMaxOutputSamples(inputSamples) * channels];
+        int produced = 0;
+        for (int start = 0; start < inputSamples; start += chunkSamples) {
+            int samples = Math.min(chunkSamples, inputSamples - start);
+            ByteBuffer input = createTone(inputRate, toneHz, channels, toneChannel, samples,
+                    start);
+            int count = resampler.process(input, samples, 0, output) * channels;
+            for (int i = 0; i < count; i++) {
+                result[produced++] = output.getShort(i * 2);
+            }
+        }
+        short[] trimmed = new short[produced];
+        System.arraycopy(result, 0, trimmed, 0, produced);
+        return trimmed;
+    }
+
+    private static ByteBuffer createTone(int rate, int toneHz, int channels, int toneChannel,
+                                         int samples, int firstSample) {
+        ByteBuffer tone = allocate(samples * channels);
+        for (int i = 0; i < samples; i++) {
+            double value = AMPLITUDE * Math.sin(2 * Math.PI * toneHz * (firstSample + i) / rate);
+            tone.putShort((i * channels + toneChannel) * 2, (short) Math.round(value));
+        }
+        return tone;
+    }
+
+    private static ByteBuffer allocate(int samples) {
+        return ByteBuffer.allocateDirect(samples * 2).order(ByteOrder.nativeOrder());
+    }
+
+    private static double rms(short[] samples, int channel, int channels) {
+        double sum = 0;
+        int count = 0;
+        for (int i = SETTLE_SAMPLES * channels + channel; i < samples.length; i += channels) {
+            sum += (double) samples[i] * samples[i];
+            count++;
+        }
+        return Math.sqrt(sum / count);
+    }
+
+    private static int zeroCrossings(short[] samples) {
+        int crossings = 0;
+        for (int i = SETTLE_SAMPLES + 1; i < samples.length; i++) {
+            if ((samples[i - 1] < 0) != (samples[i] < 0)) {
+                crossings++;
+            }
+        }
+        return crossings;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedPacketTest {
+    @Test
+    public void keepsABufferThatFits() {
+        EncodedPacket packet = new EncodedPacket(1024, true);
+        ByteBuffer data = packet.data;
+        packet.ensureCapacity(1024);
+        assertSame(data, packet.data);
+        packet.release();
+    }
+
+    @Test
+    public void growsToTheNextPowerOfTwo() {
+        EncodedPacket packet = new EncodedPacket(1024, true);
+        packet.ensureCapacity(5000);
+        assertEquals(8192, packet.data.capacity());
+        assertTrue(packet.data.isDirect());
+        packet.release();
+    }
+
+    @Test
+    public void copiesFitTheirPayload() {
+        EncodedPacket packet = new EncodedPacket(65536, false);
+        packet.size = 300;
+        EncodedPacket copy = EncodedPacket.copyOf(packet);
+        assertEquals(512, copy.data.capacity());
+        assertEquals(300, copy.size);
+        copy.release();
+        packet.release();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.RtmpStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records packets with {@link FlvFileOutput} and reads the file back tag by tag, then records
+ * through a send queue of its own next to an RTMP queue whose {@link RtmpStandInServer} stopped
+ * reading.
+ */
+public class FlvFileOutputTest {
+    // CONSTANTS.
+    private static final long TIMEOUT_MS = 10000;
+    private static final int LARGE_PACKET_SIZE = 65536;
+    // Far more than the loopback socket buffers hold, so the stalled ingest blocks its sender.
+    private static final int LARGE_PACKETS = 256;
+    private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 1, 2,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    // Member variables.
+    private File file;
+    private final List<EncodedPacket> packets = new ArrayList<EncodedPacket>();
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("archive", ".flv");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        for (EncodedPacket packet : packets) {
+            packet.release();
+        }
+    }
+
+    @Test
+    public void writesHeaderMetadataAndTags() throws Exception {
+        FlvFileOutput output = FlvFileOutput.open(file, 640, 480, 44100, 1);
+        EncodedPacket config = packet(true, 0, SPS_PPS.length);
+        config.data.put(SPS_PPS);
+        config.data.clear();
+        config.config = true;
+        output.write(config);
+        EncodedPacket keyFrame = packet(true, 0, 100);
+        keyFrame.keyFrame = true;
+        output.write(keyFrame);
+        output.write(packet(false, 23, 50));
+        // Beyond 24 bits, so the timestamp needs its extension byte.
+        output.write(packet(false, 0x1234567, 50));
+        output.close();
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] header = new byte[9];
+            in.readFully(header);
+            assertEquals("FLV", new String(header, 0, 3, "US-ASCII"));
+            assertEquals(1, header[3]);
+            assertEquals(0x05, header[4]);
+            assertEquals(9, header[8]);
+            assertEquals(0, in.readInt());
+
+            Tag metadata = readTag(in);
+            assertEquals(FlvTagWriter.TAG_SCRIPT, metadata.type);
+            // An AMF string, "onMetaData".
+            assertEquals(2, metadata.body[0]);
+            assertEquals("onMetaData", new String(metadata.body, 3, 10, "US-ASCII"));
+
+            Tag sequenceHeader = readTag(in);
+            assertEquals(FlvTagWriter.TAG_VIDEO, sequenceHeader.type);
+            assertEquals(0x17, sequenceHeader.body[0]);
+            assertEquals(0, sequenceHeader.body[1]);
+
+            Tag video = readTag(in);
+            assertEquals(0x17, video.body[0]);
+            assertEquals(1, video.body[1]);
+            // Not Annex-B, so sent as one length-prefixed NAL unit.
+            assertEquals(5 + 4 + 100, video.body.length);
+
+            Tag audio = readTag(in);
+            assertEquals(FlvTagWriter.TAG_AUDIO, audio.type);
+            assertEquals(23, audio.timestampMs);
+            assertEquals(1, audio.body[1]);
+            assertEquals(2 + 50, audio.body.length);
+
+            assertEquals(0x1234567, readTag(in).timestampMs);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        assertEquals(5, output.getTagsWritten());
+        assertEquals(file.length(), output.getBytesWritten());
+    }
+
+    @Test
+    public void keepsRecordingWhileTheIngestStalls() throws Exception {
+        RtmpStandInServer server = new RtmpStandInServer(0);
+        server.start();
+        RtmpOutput rtmpOutput = RtmpOutput.open(server.getUrl("live2", "key"), 640, 480, 44100,
+                1);
+        PacketSendQueue rtmpQueue = new PacketSendQueue(rtmpOutput);
+        FlvFileOutput archive = FlvFileOutput.open(file, 640, 480, 44100, 1);
+        PacketSendQueue archiveQueue = new PacketSendQueue(archive);
+        EncodeLane videoLane = new EncodeLane(true, LARGE_PACKET_SIZE, 0) {
+        };
+        EncodeLane audioLane = new EncodeLane(false, LARGE_PACKET_SIZE, 0) {
+        };
+        PacketFanOut fanOut = new PacketFanOut(videoLane, audioLane,
+                Arrays.asList(rtmpQueue, archiveQueue));
+        server.setStalled(true);
+        fanOut.start();
+        try {
+            for (int i = 0; i < LARGE_PACKETS; i++) {
+                EncodedPacket packet = videoLane.acquirePacket();
+                packet.size = LARGE_PACKET_SIZE;
+                packet.ptsUs = i * 33000L;
+                packet.keyFrame = true;
+                fanOut.offer(packet);
+                awaitSent(archiveQueue, i + 1);
+            }
+            assertEquals(LARGE_PACKETS, archiveQueue.getPacketsSent());
+            assertEquals(0, archiveQueue.getDroppedKeyFrames());
+            // The ingest really held its sender up and the queue shed what it could not send.
+            assertTrue(rtmpQueue.getPacketsSent() < LARGE_PACKETS);
+            assertTrue(rtmpQueue.getDroppedKeyFrames() > 0);
+
+            // The ingest stays stalled; stopping closes its output instead of waiting for it.
+            fanOut.stop();
+            assertTrue(rtmpQueue.getAbortedWrites() > 0);
+        } finally {
+            fanOut.stop();
+            rtmpOutput.close();
+            archive.close();
+            server.stop();
+            videoLane.release();
+            audioLane.release();
+        }
+        // Header, metadata and one tag per packet, none of them short.
+        long tagSize = 11 + 5 + 4 + LARGE_PACKET_SIZE + 4;
+        assertEquals(LARGE_PACKETS + 1, archive.getTagsWritten());
+        assertTrue(file.length() > 13 + LARGE_PACKETS * tagSize);
+    }
+
+    private static void awaitSent(PacketSendQueue queue, int expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (queue.getPacketsSent() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, queue.getPacketsSent());
+    }
+
+    private EncodedPacket packet(boolean video, long ptsMs, int size) {
+        EncodedPacket packet = new EncodedPacket(size, video);
+        packet.size = size;
+        packet.ptsUs = ptsMs * 1000;
+        packets.add(packet);
+        return packet;
+    }
+
+    private static Tag readTag(DataInputStream in) throws IOException {
+        Tag tag = new Tag();
+        tag.type = in.readUnsignedByte();
+        int size = readUInt24(in);
+        tag.timestampMs = readUInt24(in) | (in.readUnsignedByte() << 24);
+        assertEquals(0, readUInt24(in));
+        tag.body = new byte[size];
+        in.readFully(tag.body);
+        assertEquals(11 + size, in.readInt());
+        return tag;
+    }
+
+    private static int readUInt24(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 3; i++) {
+            int next = in.read();
+            if (next < 0) {
+                throw new EOFException();
+            }
+            value = (value << 8) | next;
+        }
+        return value;
+    }
+
+    /**
+     * One tag read back from the file.
+     */
+    private static class Tag {
+        int type;
+        long timestampMs;
+        byte[] body;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameConverterTest {
+    // CONSTANTS.
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    @Test
+    public void rotatesAndMirrorsBothPlanes() {
+        ByteBuffer src = createFrame();
+        for (int rotation : ROTATIONS) {
+            for (boolean mirror : new boolean[]{false, true}) {
+                FrameConverter converter = new FrameConverter(WIDTH, HEIGHT, rotation, mirror);
+                ByteBuffer dst = ByteBuffer.allocate(converter.getOutputSize());
+                converter.convert(src, dst);
+                assertFrame(src, dst, rotation, mirror);
+            }
+        }
+    }
+
+    @Test
+    public void swapsDimensionsForQuarterTurns() {
+        FrameConverter converter = new FrameConverter(WIDTH, HEIGHT, 90, false);
+        assertEquals(HEIGHT, converter.getOutputWidth());
+        assertEquals(WIDTH, converter.getOutputHeight());
+        assertEquals(WIDTH * HEIGHT * 3 / 2, converter.getOutputSize());
+        converter = new FrameConverter(WIDTH, HEIGHT, 180, false);
+        assertEquals(WIDTH, converter.getOutputWidth());
+        assertEquals(HEIGHT, converter.getOutputHeight());
+    }
+
+    @Test
+    public void onlyAnUnmirroredUprightFrameIsACopy() {
+        assertTrue(new FrameConverter(WIDTH, HEIGHT, 0, false).isIdentity());
+        assertFalse(new FrameConverter(WIDTH, HEIGHT, 0, true).isIdentity());
+        assertFalse(new FrameConverter(WIDTH, HEIGHT, 180, false).isIdentity());
+    }
+
+    @Test
+    public void leavesPositionsAndLimitsAlone() {
+        ByteBuffer src = createFrame();
+        src.position(3);
+        for (int rotation : ROTATIONS) {
+            FrameConverter converter = new FrameConverter(WIDTH, HEIGHT, rotation, false);
+            ByteBuffer dst = ByteBuffer.allocate(converter.getOutputSize() + 8);
+            dst.position(5).limit(converter.getOutputSize() + 4);
+            converter.convert(src, dst);
+            assertEquals(3, src.position());
+            assertEquals(src.capacity(), src.limit());
+            assertEquals(5, dst.position());
+            assertEquals(converter.getOutputSize() + 4, dst.limit());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherRotations() {
+        new FrameConverter(WIDTH, HEIGHT, 45, false);
+    }
+
+    /**
+     * Returns an NV21 frame in which every byte is distinct.
+     */
+    private static ByteBuffer createFrame() {
+        ByteBuffer frame = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        for (int i = 0; i < frame.capacity(); i++) {
+            frame.put(i, (byte) i);
+        }
+        return frame;
+    }
+
+    private static void assertFrame(ByteBuffer src, ByteBuffer dst, int rotation,
+                                     boolean mirror) {
+        int lumaSize = WIDTH * HEIGHT;
+        assertPlane(src, 0, WIDTH, HEIGHT, 1, 0, dst, 0, 1, rotation, mirror);
+        // V/U pairs move together.
+        for (int channel = 0; channel < 2; channel++) {
+            assertPlane(src, lumaSize, WIDTH / 2, HEIGHT / 2, 2, channel, dst, lumaSize, 2,
+                    rotation, mirror);
+        }
+    }
+
+    /**
+     * Checks one channel of every output pixel against the source pixel that a clockwise rotation
+     * followed by a horizontal flip maps to it.
+     */
+    private static void assertPlane(ByteBuffer src, int srcOffset, int width, int height,
+                                    int pixelStride, int channel, ByteBuffer dst, int dstOffset,
+                                    int dstPixelStride, int rotation, boolean mirror) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        for (int outY = 0; outY < outHeight; outY++) {
+            for (int outX = 0; outX < outWidth; outX++) {
+                int x = mirror ? outWidth - 1 - outX : outX;
+                int srcX;
+                int srcY;
+                switch (rotation) {
+                    case 90:
+                        srcX = outY;
+                        srcY = height - 1 - x;
+                        break;
+                    case 180:
+                        srcX = width - 1 - x;
+                        srcY = height - 1 - outY;
+                        break;
+                    case 270:
+                        srcX = width - 1 - outY;
+                        srcY = x;
+                        break;
+                    default:
+                        srcX = x;
+                        srcY = outY;
+                        break;
+                }
+                assertEquals("rotation " + rotation + ", mirror " + mirror + " at " + outX + ","
+                                + outY,
+                        src.get(srcOffset + (srcY * width + srcX) * pixelStride + channel),
+                        dst.get(dstOffset + (outY * outWidth + outX) * dstPixelStride
+                                + (dstPixelStride > 1 ? channel : 0)));
+            }
+        }
+    }
+}
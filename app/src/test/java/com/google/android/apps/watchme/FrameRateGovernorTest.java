@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRateGovernorTest {
+    // CONSTANTS.
+    private static final long START_NANOS = TimeUnit.SECONDS.toNanos(100);
+
+    private final FrameRateGovernor governor = new FrameRateGovernor();
+
+    @Test
+    public void admitsEveryFrameAtTheTargetRate() {
+        assertEquals(300, countEncoded(30, 300, 0));
+        assertEquals(0, governor.getFramesSkipped());
+    }
+
+    @Test
+    public void toleratesJitterAroundTheTargetRate() {
+        // Frames arriving a few milliseconds early borrow against the next interval.
+        assertEquals(300, countEncoded(30, 300, TimeUnit.MILLISECONDS.toNanos(5)));
+    }
+
+    @Test
+    public void skipsEvenlyAboveTheTargetRate() {
+        governor.setTargetFps(15);
+        long frameNanos = TimeUnit.SECONDS.toNanos(1) / 30;
+        // The first frame comes with a full credit, so the pattern settles from the second on.
+        governor.shouldEncode(START_NANOS);
+        boolean previous = governor.shouldEncode(START_NANOS + frameNanos);
+        for (int i = 2; i < 300; i++) {
+            boolean encode = governor.shouldEncode(START_NANOS + i * frameNanos);
+            assertTrue("Two frames in a row at frame " + i, encode != previous);
+            previous = encode;
+        }
+        assertEquals(15, governor.getEffectiveFps(), 1);
+    }
+
+    @Test
+    public void followsASlowEncoder() {
+        // 50 ms per frame sustains 20 fps; 90% of it is admitted.
+        for (int i = 0; i < 10; i++) {
+            governor.onFrameEncoded(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        assertEquals(18, governor.getAllowedFps(), 0.01);
+        assertEquals(180, countEncoded(30, 300, 0), 2);
+    }
+
+    @Test
+    public void neverDropsBelowOneFps() {
+        governor.setTargetFps(0);
+        assertEquals(1, governor.getTargetFps());
+    }
+
+    @Test
+    public void reportsEncodeTimePercentiles() {
+        assertEquals(0, governor.getEncodeTimePercentileMs(50));
+        for (int ms = 1; ms <= 100; ms++) {
+            governor.onFrameEncoded(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+        governor.onFrameEncoded(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(51, governor.getEncodeTimePercentileMs(50));
+        assertEquals(100, governor.getEncodeTimePercentileMs(100));
+        assertFalse(governor.getEncodeTimePercentileMs(99) > 100);
+    }
+
+    /**
+     * Feeds frames at the given rate, each shifted by up to the given jitter either way.
+     *
+     * @return the number of frames admitted.
+     */
+    private int countEncoded(int fps, int frames, long jitterNanos) {
+        Random random = new Random(1);
+        long frameNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+        int encoded = 0;
+        for (int i = 0; i < frames; i++) {
+            long jitter = jitterNanos > 0 && i > 0
+                    ? (long) ((random.nextDouble() * 2 - 1) * jitterNanos) : 0;
+            if (governor.shouldEncode(START_NANOS + i * frameNanos + jitter)) {
+                encoded++;
+            }
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GopCacheTest {
+    // CONSTANTS.
+    private static final int MAX_BYTES = 300;
+    private static final int PACKET_SIZE = 100;
+
+    // Member variables.
+    private final GopCache cache = new GopCache(MAX_BYTES);
+    private final List<EncodedPacket> packets = new ArrayList<EncodedPacket>();
+
+    @After
+    public void tearDown() {
+        cache.release();
+        for (EncodedPacket packet : packets) {
+            packet.release();
+        }
+    }
+
+    @Test
+    public void ignoresPacketsBeforeTheFirstKeyFrame() {
+        cache.add(audio(1));
+        cache.add(video(false, 2));
+        assertTrue(cache.isEmpty());
+        cache.add(video(true, 3));
+        assertEquals(1, cache.size());
+        assertTrue(cache.get(0).keyFrame);
+    }
+
+    @Test
+    public void keepsCopiesBackToBack() {
+        cache.add(video(true, 1));
+        cache.add(audio(2));
+        EncodedPacket delta = video(false, 3);
+        cache.add(delta);
+        // The lane reuses its packet right away.
+        delta.data.put(0, (byte) 99);
+
+        assertEquals(3, cache.size());
+        for (int i = 0; i < 3; i++) {
+            EncodedPacket copy = cache.get(i);
+            assertEquals(i * PACKET_SIZE, copy.offset);
+            assertEquals(PACKET_SIZE, copy.size);
+            assertEquals(i + 1, copy.ptsUs);
+            assertEquals(i + 1, copy.data.get(copy.offset));
+            assertEquals(i + 1, copy.data.get(copy.offset + PACKET_SIZE - 1));
+        }
+        assertFalse(cache.get(1).video);
+    }
+
+    @Test
+    public void aKeyFrameStartsANewGop() {
+        cache.add(video(true, 1));
+        cache.add(video(false, 2));
+        cache.add(video(true, 3));
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.get(0).ptsUs);
+        assertEquals(0, cache.get(0).offset);
+    }
+
+    @Test
+    public void aGopTooLongIsDroppedUntilTheNextKeyFrame() {
+        cache.add(video(true, 1));
+        cache.add(video(false, 2));
+        cache.add(video(false, 3));
+        assertEquals(3, cache.size());
+        cache.add(video(false, 4));
+        assertTrue(cache.isEmpty());
+        cache.add(video(false, 5));
+        assertTrue(cache.isEmpty());
+        cache.add(video(true, 6));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void canBeReusedAfterRelease() {
+        cache.add(video(true, 1));
+        cache.release();
+        assertTrue(cache.isEmpty());
+        cache.add(video(false, 2));
+        assertTrue(cache.isEmpty());
+        cache.add(video(true, 3));
+        assertEquals(3, cache.get(0).data.get(0));
+    }
+
+    private EncodedPacket video(boolean keyFrame, int id) {
+        EncodedPacket packet = packet(true, id);
+        packet.keyFrame = keyFrame;
+        return packet;
+    }
+
+    private EncodedPacket audio(int id) {
+        return packet(false, id);
+    }
+
+    /**
+     * Returns a packet filled with its id, which is also its timestamp.
+     */
+    private EncodedPacket packet(boolean video, int id) {
+        EncodedPacket packet = new EncodedPacket(PACKET_SIZE, video);
+        for (int i = 0; i < PACKET_SIZE; i++) {
+            packet.data.put(i, (byte) id);
+        }
+        packet.size = PACKET_SIZE;
+        packet.ptsUs = id;
+        packets.add(packet);
+        return packet;
+    }
+}
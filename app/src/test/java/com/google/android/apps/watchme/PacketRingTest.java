@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRingTest {
+    // CONSTANTS.
+    private static final int MAX_BYTES = 1000;
+
+    // Member variables.
+    private final PacketRing ring = new PacketRing(MAX_BYTES);
+    private final EncodedPacket source = new EncodedPacket(MAX_BYTES, true);
+
+    @After
+    public void tearDown() {
+        ring.release();
+        source.release();
+    }
+
+    @Test
+    public void copiesBackToBack() {
+        EncodedPacket first = copy(400, 1);
+        EncodedPacket second = copy(400, 2);
+        assertEquals(0, first.offset);
+        assertEquals(400, second.offset);
+        assertPayload(first, 1);
+        assertPayload(second, 2);
+        assertNull(copy(400, 3));
+    }
+
+    @Test
+    public void wrapsAroundOnceTheOldestIsFreed() {
+        EncodedPacket first = copy(400, 1);
+        EncodedPacket second = copy(400, 2);
+        ring.free(first);
+        EncodedPacket third = copy(300, 3);
+        assertEquals(0, third.offset);
+        assertPayload(second, 2);
+        // The 200 bytes at the end are skipped, and 100 before the second copy are too few.
+        assertNull(copy(150, 4));
+    }
+
+    @Test
+    public void holdsSpaceFreedOutOfOrderUntilTheOlderCopiesGo() {
+        EncodedPacket first = copy(400, 1);
+        EncodedPacket second = copy(400, 2);
+        ring.free(second);
+        assertNull(copy(400, 3));
+        ring.free(first);
+        EncodedPacket third = copy(1000, 3);
+        assertNotNull(third);
+        assertEquals(0, third.offset);
+    }
+
+    @Test
+    public void reusesThePacketsDescribingCopies() {
+        EncodedPacket first = copy(100, 1);
+        ring.free(first);
+        assertTrue(copy(100, 2) == first);
+        assertFalse(copy(100, 3) == first);
+    }
+
+    @Test
+    public void copiesNeverOverlap() {
+        Random random = new Random(1);
+        ArrayDeque<EncodedPacket> live = new ArrayDeque<EncodedPacket>();
+        for (int i = 0; i < 20000; i++) {
+            EncodedPacket copy = copy(1 + random.nextInt(300), i);
+            if (copy != null) {
+                assertTrue(copy.offset + copy.size <= MAX_BYTES);
+                for (EncodedPacket other : live) {
+                    assertTrue(copy.offset >= other.offset + other.size
+                            || other.offset >= copy.offset + copy.size);
+                }
+                live.addLast(copy);
+            }
+            for (EncodedPacket other : live) {
+                assertPayload(other, (int) other.ptsUs);
+            }
+            if (!live.isEmpty() && random.nextInt(3) == 0) {
+                // Mostly in order, like a sender; sometimes from the middle, like shedding.
+                EncodedPacket freed;
+                if (live.size() < 3 || random.nextBoolean()) {
+                    freed = live.pollFirst();
+                } else {
+                    Iterator<EncodedPacket> iterator = live.iterator();
+                    iterator.next();
+                    freed = iterator.next();
+                    iterator.remove();
+                }
+                ring.free(freed);
+            }
+        }
+        while (!live.isEmpty()) {
+            ring.free(live.pollFirst());
+        }
+        assertEquals(0, copy(MAX_BYTES, 0).offset);
+    }
+
+    /**
+     * Copies a packet of the given size filled with its id, which is also its timestamp.
+     */
+    private EncodedPacket copy(int size, int id) {
+        for (int i = 0; i < size; i++) {
+            source.data.put(i, (byte) id);
+        }
+        source.size = size;
+        source.ptsUs = id;
+        return ring.copy(source);
+    }
+
+    private static void assertPayload(EncodedPacket copy, int id) {
+        for (int i = 0; i < copy.size; i++) {
+            assertEquals((byte) id, copy.data.get(copy.offset + i));
+        }
+    }
+}
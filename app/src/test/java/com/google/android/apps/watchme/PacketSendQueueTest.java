@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.RtmpStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills a copying {@link PacketSendQueue} before its sender starts, so shedding can be observed
+ * packet by packet, then lets it send what is left to a {@link RtmpStandInServer}. The queue runs
+ * on a fake clock that only the tests move.
+ */
+public class PacketSendQueueTest {
+    // CONSTANTS.
+    private static final int CAPACITY = 4;
+    private static final long MAX_LATENCY_MS = 60000;
+    private static final long TIMEOUT_MS = 5000;
+    private static final long STALL_TIMEOUT_MS = 20000;
+    private static final long STALL_LATENCY_MS = 200;
+    private static final int LARGE_PACKET_SIZE = 65536;
+    private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 1, 2,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    // Member variables.
+    private RtmpStandInServer server;
+    private RtmpOutput output;
+    private PacketSendQueue queue;
+    private final List<EncodedPacket> packets = new ArrayList<EncodedPacket>();
+    private final AtomicLong nowNanos = new AtomicLong();
+    private final PacketSendQueue.Clock clock = new PacketSendQueue.Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return nowNanos.get();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RtmpStandInServer(0);
+        server.start();
+        output = RtmpOutput.open(server.getUrl("live2", "key"), 640, 480, 44100, 1);
+        queue = new PacketSendQueue(output, null, null, CAPACITY, MAX_LATENCY_MS);
+        queue.setClock(clock);
+    }
+
+    @After
+    public void tearDown() {
+        queue.stop();
+        output.close();
+        server.stop();
+        for (EncodedPacket packet : packets) {
+            packet.release();
+        }
+    }
+
+    @Test
+    public void dropsDeltaFramesFirstAndTheirDependents() {
+        queue.offer(video(true, 0));
+        queue.offer(video(false, 33));
+        queue.offer(audio(0));
+        queue.offer(video(false, 66));
+        queue.offer(audio(23));
+        assertEquals(2, queue.getDroppedDeltaFrames());
+        assertEquals(3, queue.getDepth());
+
+        // Undecodable until the next key frame.
+        queue.offer(video(false, 100));
+        assertEquals(3, queue.getDroppedDeltaFrames());
+        queue.offer(video(true, 133));
+        assertEquals(4, queue.getDepth());
+        assertEquals(0, queue.getDroppedKeyFrames());
+        assertEquals(0, queue.getDroppedAudio());
+    }
+
+    @Test
+    public void dropsKeyFramesBeforeAudio() {
+        queue.offer(video(true, 0));
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(audio(i * 23));
+        }
+        assertEquals(1, queue.getDroppedKeyFrames());
+        assertEquals(0, queue.getDroppedAudio());
+
+        queue.offer(audio(CAPACITY * 23));
+        assertEquals(1, queue.getDroppedAudio());
+        assertEquals(CAPACITY, queue.getDepth());
+    }
+
+    @Test
+    public void neverDropsCodecConfig() {
+        EncodedPacket config = video(false, 0);
+        config.config = true;
+        queue.offer(config);
+        for (int i = 0; i < CAPACITY * 2; i++) {
+            queue.offer(audio(i * 23));
+        }
+        // The config keeps one of the places.
+        assertEquals(CAPACITY, queue.getDepth());
+        assertEquals(CAPACITY + 1, queue.getDroppedAudio());
+    }
+
+    @Test
+    public void dropsPacketsThatWaitedTooLong() {
+        queue.offer(video(true, 0));
+        queue.offer(audio(0));
+        advanceMs(MAX_LATENCY_MS + 1);
+        queue.offer(audio(MAX_LATENCY_MS));
+        assertEquals(1, queue.getDepth());
+        assertEquals(1, queue.getDroppedKeyFrames());
+        assertEquals(1, queue.getDroppedAudio());
+    }
+
+    @Test
+    public void countsFramesTheLanesDroppedAndWaitsForAKeyFrame() {
+        EncodeLane videoLane = new EncodeLane(true, 256, 0) {
+        };
+        EncodeLane audioLane = new EncodeLane(false, 256, 0) {
+        };
+        PacketSendQueue zeroCopy =
+                new PacketSendQueue(output, videoLane, audioLane, CAPACITY, MAX_LATENCY_MS);
+        zeroCopy.setClock(clock);
+        List<EncodedPacket> held = new ArrayList<EncodedPacket>();
+        try {
+            EncodedPacket packet;
+            while ((packet = videoLane.acquirePacket()) != null) {
+                held.add(packet);
+            }
+            // The last attempt found the pool empty, losing a delta frame. Then a key frame goes.
+            videoLane.acquirePacket(true);
+            while ((packet = audioLane.acquirePacket()) != null) {
+                held.add(packet);
+            }
+
+            EncodedPacket delta = held.remove(0);
+            delta.size = 100;
+            zeroCopy.offer(delta);
+            assertEquals(1, zeroCopy.getDroppedKeyFrames());
+            assertEquals(2, zeroCopy.getDroppedDeltaFrames());
+            assertEquals(1, zeroCopy.getDroppedAudio());
+            assertEquals(0, zeroCopy.getDepth());
+
+            EncodedPacket keyFrame = held.remove(0);
+            keyFrame.size = 100;
+            keyFrame.keyFrame = true;
+            zeroCopy.offer(keyFrame);
+            assertEquals(1, zeroCopy.getDepth());
+            assertEquals(2, zeroCopy.getDroppedDeltaFrames());
+            held.add(keyFrame);
+        } finally {
+            zeroCopy.stop();
+            for (EncodedPacket packet : held) {
+                packet.release();
+            }
+            videoLane.release();
+            audioLane.release();
+        }
+    }
+
+    @Test
+    public void retriesOnlyOnceTheBackoffHasPassed() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        PacketSendQueue reconnecting = new PacketSendQueue(null);
+        reconnecting.setClock(clock);
+        reconnecting.setOutputOpener(new PacketSendQueue.OutputOpener() {
+            @Override
+            public RtmpOutput openOutput() {
+                attempts.incrementAndGet();
+                return null;
+            }
+        });
+        reconnecting.start();
+        try {
+            // Without an output the first attempt is due at once.
+            awaitAttempts(attempts, 1);
+            Thread.sleep(100);
+            assertEquals(1, attempts.get());
+            advanceMs(ReconnectBackoff.DEFAULT_MAX_DELAY_MS);
+            awaitAttempts(attempts, 2);
+        } finally {
+            reconnecting.stop();
+        }
+    }
+
+    @Test
+    public void failsOverWhenAWriteStalls() throws Exception {
+        RtmpStandInServer backup = new RtmpStandInServer(0);
+        backup.start();
+        PacketSendQueue failover = new PacketSendQueue(output, null, null, CAPACITY,
+                STALL_LATENCY_MS);
+        failover.setOutputOpener(new FailoverOutputOpener(server.getUrl("live2", "key"),
+                backup.getUrl("live2", "key")) {
+            @Override
+            protected RtmpOutput open(String url) {
+                try {
+                    return RtmpOutput.open(url, 640, 480, 44100, 1);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        });
+        failover.setReconnectOnCongestion(true);
+        // The primary never reads again, so its writes block once the socket buffers are full.
+        server.setStalled(true);
+        failover.start();
+        try {
+            EncodedPacket packet = new EncodedPacket(LARGE_PACKET_SIZE, true);
+            packets.add(packet);
+            packet.size = LARGE_PACKET_SIZE;
+            packet.keyFrame = true;
+            long deadline = System.currentTimeMillis() + STALL_TIMEOUT_MS;
+            while (backup.getVideoMessages() == 0 && System.currentTimeMillis() < deadline) {
+                packet.ptsUs += 33333;
+                failover.offer(packet);
+                Thread.sleep(10);
+            }
+            assertTrue(failover.getAbortedWrites() > 0);
+            assertTrue(failover.getReconnects() > 0);
+            assertTrue(backup.getVideoMessages() > 0);
+        } finally {
+            failover.stop();
+            if (failover.getOutput() != null) {
+                failover.getOutput().close();
+            }
+            backup.stop();
+        }
+    }
+
+    @Test
+    public void resumesFromTheGopSentBeforeAShortOutage() throws Exception {
+        queue.setOutputOpener(new PacketSendQueue.OutputOpener() {
+            @Override
+            public RtmpOutput openOutput() {
+                try {
+                    return RtmpOutput.open(server.getUrl("live2", "key"), 640, 480, 44100, 1);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        });
+        queue.start();
+        queue.offer(video(true, 0));
+        queue.offer(video(false, 33));
+        awaitVideo(2);
+
+        // Lost before the next key frame, so only the cache can make the stream decodable again.
+        output.close();
+        queue.offer(video(false, 66));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (queue.getOutages() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        advanceMs(ReconnectBackoff.DEFAULT_MAX_DELAY_MS);
+        queue.offer(audio(70));
+
+        // The key frame and both delta frames go out again on the new connection.
+        awaitVideo(5);
+        assertEquals(1, queue.getReconnects());
+        assertEquals(2, server.getKeyFrames());
+    }
+
+    @Test
+    public void sendsWhatSurvivesInOrder() throws Exception {
+        EncodedPacket config = video(false, 0);
+        config.data.clear();
+        config.data.put(SPS_PPS);
+        config.data.clear();
+        config.size = SPS_PPS.length;
+        config.config = true;
+        queue.offer(config);
+        queue.offer(video(true, 0));
+        queue.offer(video(false, 33));
+        queue.offer(audio(10));
+        queue.offer(audio(33));
+        queue.offer(video(false, 66));
+        queue.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getVideoMessages() + server.getAudioMessages() < CAPACITY
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<RtmpStandInServer.Packet> received = server.getPackets();
+        // Metadata, sequence header, key frame and both audio packets; no delta frame made it.
+        assertEquals(5, received.size());
+        assertEquals(RtmpStandInServer.TYPE_DATA, received.get(0).type);
+        assertEquals(RtmpStandInServer.TYPE_VIDEO, received.get(1).type);
+        assertTrue(received.get(2).keyFrame);
+        assertEquals(0, received.get(2).timestampMs);
+        assertEquals(RtmpStandInServer.TYPE_AUDIO, received.get(3).type);
+        assertEquals(10, received.get(3).timestampMs);
+        assertEquals(33, received.get(4).timestampMs);
+        assertEquals(2, queue.getDroppedDeltaFrames());
+    }
+
+    private void advanceMs(long ms) {
+        nowNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    private void awaitVideo(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getVideoMessages() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, server.getVideoMessages());
+    }
+
+    private static void awaitAttempts(AtomicInteger attempts, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (attempts.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, attempts.get());
+    }
+
+    private EncodedPacket video(boolean keyFrame, long ptsMs) {
+        EncodedPacket packet = packet(true, ptsMs);
+        packet.keyFrame = keyFrame;
+        return packet;
+    }
+
+    private EncodedPacket audio(long ptsMs) {
+        return packet(false, ptsMs);
+    }
+
+    private EncodedPacket packet(boolean video, long ptsMs) {
+        EncodedPacket packet = new EncodedPacket(256, video);
+        packet.size = 100;
+        packet.ptsUs = ptsMs * 1000;
+        packets.add(packet);
+        return packet;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectBackoffTest {
+    // CONSTANTS.
+    private static final long INITIAL_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 4000;
+    // Every delay stays within 20% of the nominal one.
+    private static final double JITTER = 0.2;
+
+    private final ReconnectBackoff backoff = new ReconnectBackoff(INITIAL_DELAY_MS, MAX_DELAY_MS);
+
+    @Test
+    public void doublesUpToTheCeiling() {
+        long[] nominal = {500, 1000, 2000, 4000, 4000, 4000};
+        for (int i = 0; i < nominal.length; i++) {
+            assertNear(nominal[i], backoff.nextDelayMs());
+            assertEquals(i + 1, backoff.getAttempts());
+        }
+    }
+
+    @Test
+    public void resetStartsOver() {
+        backoff.nextDelayMs();
+        backoff.nextDelayMs();
+        backoff.nextDelayMs();
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertNear(INITIAL_DELAY_MS, backoff.nextDelayMs());
+    }
+
+    @Test
+    public void jittersTheDelays() {
+        long first = new ReconnectBackoff(INITIAL_DELAY_MS, MAX_DELAY_MS).nextDelayMs();
+        boolean varied = false;
+        for (int i = 0; i < 20 && !varied; i++) {
+            varied = new ReconnectBackoff(INITIAL_DELAY_MS, MAX_DELAY_MS).nextDelayMs() != first;
+        }
+        assertTrue(varied);
+    }
+
+    private static void assertNear(long nominalMs, long delayMs) {
+        assertTrue(delayMs + " ms is not near " + nominalMs + " ms",
+                Math.abs(delayMs - nominalMs) <= nominalMs * JITTER);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.RtmpStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes through {@link RtmpOutput} to a {@link RtmpStandInServer} on the loopback interface.
+ */
+public class RtmpOutputTest {
+    // CONSTANTS.
+    private static final long TIMEOUT_MS = 5000;
+    private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 1, 2,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};
+    private static final int FRAME_SIZE = 20000;
+    private static final int FRAMES = 30;
+    private static final int AUDIO_FRAMES = 20;
+
+    // Member variables.
+    private RtmpStandInServer server;
+    private RtmpOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RtmpStandInServer(0);
+        server.start();
+        output = RtmpOutput.open(server.getUrl("live2", "key"), 640, 480, 44100, 1);
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+        server.stop();
+    }
+
+    @Test
+    public void publishesToTheStreamKey() throws Exception {
+        assertTrue(server.awaitPublish(TIMEOUT_MS));
+        assertEquals("key", server.getStreamName());
+    }
+
+    @Test
+    public void publishesToABackupIngestUrl() throws Exception {
+        tearDown();
+        server = new RtmpStandInServer(0);
+        server.start();
+        // What YouTubeApi builds from a backup ingestion address.
+        output = RtmpOutput.open("rtmp://127.0.0.1:" + server.getPort() + "/live2?backup=1/key",
+                640, 480, 44100, 1);
+        assertTrue(server.awaitPublish(TIMEOUT_MS));
+        assertEquals("key", server.getStreamName());
+    }
+
+    @Test
+    public void sendsEveryPacketWithItsTimestamp() throws Exception {
+        EncodedPacket video = new EncodedPacket(FRAME_SIZE + 5, true);
+        fill(video, SPS_PPS, 0);
+        video.config = true;
+        output.write(video);
+        for (int i = 0; i < FRAMES; i++) {
+            fill(video, new byte[]{0, 0, 0, 1, (byte) (i == 0 ? 0x65 : 0x41)}, FRAME_SIZE);
+            video.config = false;
+            video.keyFrame = i == 0;
+            video.ptsUs = i * 33333L;
+            output.write(video);
+        }
+        EncodedPacket audio = new EncodedPacket(1024, false);
+        fill(audio, AUDIO_SPECIFIC_CONFIG, 0);
+        audio.config = true;
+        output.write(audio);
+        for (int i = 0; i < AUDIO_FRAMES; i++) {
+            fill(audio, new byte[0], 300);
+            audio.config = false;
+            audio.ptsUs = i * 23220L;
+            output.write(audio);
+        }
+
+        awaitMessages(1 + FRAMES, 1 + AUDIO_FRAMES);
+        assertNull(server.getSessionError());
+        // The sequence header and the first frame.
+        assertEquals(2, server.getKeyFrames());
+        List<RtmpStandInServer.Packet> packets = server.getPackets();
+        assertEquals(RtmpStandInServer.TYPE_DATA, packets.get(0).type);
+        long lastTimestampMs = -1;
+        for (RtmpStandInServer.Packet packet : packets) {
+            if (packet.type == RtmpStandInServer.TYPE_VIDEO) {
+                assertTrue(packet.timestampMs >= lastTimestampMs);
+                lastTimestampMs = packet.timestampMs;
+            }
+        }
+        assertEquals((FRAMES - 1) * 33333L / 1000, lastTimestampMs);
+        assertFalse(server.getChunkSizes().isEmpty());
+        assertEquals(RtmpOutput.CHUNK_SIZE, (int) server.getChunkSizes().get(0));
+    }
+
+    @Test
+    public void keepsOnlyTheLatestMessages() throws Exception {
+        tearDown();
+        server = new RtmpStandInServer(0, 4);
+        server.start();
+        output = RtmpOutput.open(server.getUrl("live2", "key"), 640, 480, 44100, 1);
+        EncodedPacket audio = new EncodedPacket(1024, false);
+        for (int i = 0; i < AUDIO_FRAMES; i++) {
+            fill(audio, new byte[0], 100);
+            audio.ptsUs = i * 23220L;
+            output.write(audio);
+        }
+
+        awaitMessages(0, AUDIO_FRAMES);
+        assertEquals(4, server.getPackets().size());
+    }
+
+    private static void fill(EncodedPacket packet, byte[] header, int padding) {
+        packet.data.clear();
+        packet.data.put(header);
+        packet.data.put(new byte[padding]);
+        packet.size = packet.data.position();
+        packet.data.clear();
+    }
+
+    private void awaitMessages(int video, int audio) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((server.getVideoMessages() < video || server.getAudioMessages() < audio)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(video, server.getVideoMessages());
+        assertEquals(audio, server.getAudioMessages());
+    }
+}
@@ -0,0 +1,816 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal RTMP ingest that stands in for YouTube in integration tests and throughput benchmarks.
+ * It accepts the handshake, connect, createStream and publish, then records the arrival time,
+ * RTMP timestamp, size and chunking of every audio, video and data message instead of forwarding
+ * it. Only the latest messages are kept; the statistics cover all of them, so a long run takes
+ * constant memory. Plays no media and checks no stream keys. Only uses java.net, so it runs on a
+ * plain JVM, and {@link #main(String[])} serves devices as well.
+ */
+public class RtmpStandInServer {
+    // CONSTANTS.
+    public static final int DEFAULT_PORT = 1935;
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+    public static final int DEFAULT_MAX_PACKETS_KEPT = 1000;
+    private static final long SUMMARY_INTERVAL_MS = 5000;
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int RTMP_VERSION = 3;
+    private static final int WINDOW_ACK_SIZE = 2500000;
+    private static final int EXTENDED_TIMESTAMP = 0xFFFFFF;
+    private static final int TYPE_SET_CHUNK_SIZE = 1;
+    private static final int TYPE_ACK = 3;
+    private static final int TYPE_WINDOW_ACK_SIZE = 5;
+    private static final int TYPE_SET_PEER_BANDWIDTH = 6;
+    public static final int TYPE_AUDIO = 8;
+    public static final int TYPE_VIDEO = 9;
+    public static final int TYPE_DATA = 18;
+    private static final int TYPE_COMMAND = 20;
+    private static final int CONTROL_CHUNK_STREAM = 2;
+    private static final int COMMAND_CHUNK_STREAM = 3;
+    private static final int PUBLISH_STREAM_ID = 1;
+    private static final int AMF_NUMBER = 0x00;
+    private static final int AMF_BOOLEAN = 0x01;
+    private static final int AMF_STRING = 0x02;
+    private static final int AMF_OBJECT = 0x03;
+    private static final int AMF_NULL = 0x05;
+    private static final int AMF_UNDEFINED = 0x06;
+    private static final int AMF_ECMA_ARRAY = 0x08;
+    private static final int AMF_OBJECT_END = 0x09;
+
+    // Member variables.
+    private final ServerSocket serverSocket;
+    private final List<Socket> clients = new ArrayList<Socket>();
+    private final int maxPacketsKept;
+    // Guarded by itself, as are chunkSizes and the message statistics.
+    private final ArrayDeque<Packet> packets = new ArrayDeque<Packet>();
+    private final List<Integer> chunkSizes = new ArrayList<Integer>();
+    private final CountDownLatch publishLatch = new CountDownLatch(1);
+    private volatile String streamName;
+    private volatile IOException sessionError;
+    private volatile boolean running;
+    // Guarded by clients.
+    private boolean stalled;
+    private Thread acceptThread;
+
+    // Statistics.
+    private volatile long bytesReceived;
+    private volatile long chunksReceived;
+    private int audioMessages;
+    private int videoMessages;
+    private int keyFrames;
+    private int largestMessage;
+    private long mediaBytes;
+    private Packet firstMedia;
+    private Packet lastMedia;
+    private long maxLagMs;
+
+    /**
+     * Binds to the loopback interface.
+     *
+     * @param port - Port to listen on, or 0 for any free port.
+     */
+    public RtmpStandInServer(int port) throws IOException {
+        this(port, DEFAULT_MAX_PACKETS_KEPT);
+    }
+
+    /**
+     * @param port           - Port to listen on, or 0 for any free port.
+     * @param maxPacketsKept - Most messages {@link #getPackets()} returns; older ones are only
+     *                       counted.
+     */
+    public RtmpStandInServer(int port, int maxPacketsKept) throws IOException {
+        this.maxPacketsKept = maxPacketsKept;
+        serverSocket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Serves until killed and prints what was received every few seconds, e.g. as the target of
+     * the app's bandwidth probe. It listens on loopback only: an emulator reaches it at 10.0.2.2,
+     * and a device at 127.0.0.1 after "adb reverse tcp:1935 tcp:1935". Either way the probe then
+     * measures that link, not the uplink.
+     *
+     * @param args - Optional port to listen on, {@link #DEFAULT_PORT} by default.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        RtmpStandInServer server = new RtmpStandInServer(port);
+        server.start();
+        System.out.println("Listening on " + server.getUrl("live2", "<key>"));
+        while (true) {
+            Thread.sleep(SUMMARY_INTERVAL_MS);
+            System.out.println(server.describe());
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the URL a publisher should stream to.
+     */
+    public String getUrl(String app, String key) {
+        return "rtmp://127.0.0.1:" + getPort() + "/" + app + "/" + key;
+    }
+
+    public void start() {
+        running = true;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "RtmpStandInServer");
+        acceptThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        setStalled(false);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+        synchronized (clients) {
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Already closed.
+                }
+            }
+            clients.clear();
+        }
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops or resumes reading from publishers, like an ingest whose link went quiet. Once the
+     * socket buffers are full, a stalled publisher's writes block.
+     */
+    public void setStalled(boolean stalled) {
+        synchronized (clients) {
+            this.stalled = stalled;
+            clients.notifyAll();
+        }
+    }
+
+    private void awaitUnstalled() throws IOException {
+        synchronized (clients) {
+            while (stalled && running) {
+                try {
+                    clients.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until a publisher sent its publish command.
+     *
+     * @return whether it did before the timeout.
+     */
+    public boolean awaitPublish(long timeoutMs) throws InterruptedException {
+        return publishLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the stream name the publisher published to, or null before it did.
+     */
+    public String getStreamName() {
+        return streamName;
+    }
+
+    /**
+     * Returns the error that ended the last publisher connection, other than a hang-up or a reset,
+     * or null. Protocol violations show up here.
+     */
+    public IOException getSessionError() {
+        return sessionError;
+    }
+
+    /**
+     * Returns the latest audio, video and data messages received, at most the number given to the
+     * constructor, in arrival order.
+     */
+    public List<Packet> getPackets() {
+        synchronized (packets) {
+            return new ArrayList<Packet>(packets);
+        }
+    }
+
+    /**
+     * Returns every chunk size the publisher switched to, in order.
+     */
+    public List<Integer> getChunkSizes() {
+        synchronized (packets) {
+            return new ArrayList<Integer>(chunkSizes);
+        }
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getChunksReceived() {
+        return chunksReceived;
+    }
+
+    public int getAudioMessages() {
+        synchronized (packets) {
+            return audioMessages;
+        }
+    }
+
+    public int getVideoMessages() {
+        synchronized (packets) {
+            return videoMessages;
+        }
+    }
+
+    public int getKeyFrames() {
+        synchronized (packets) {
+            return keyFrames;
+        }
+    }
+
+    /**
+     * Returns the audio and video payload rate between the first and the last media message.
+     */
+    public double getThroughputBitsPerSecond() {
+        synchronized (packets) {
+            if (firstMedia == null || lastMedia.arrivalNanos <= firstMedia.arrivalNanos) {
+                return 0;
+            }
+            return mediaBytes * 8.0 * TimeUnit.SECONDS.toNanos(1)
+                    / (lastMedia.arrivalNanos - firstMedia.arrivalNanos);
+        }
+    }
+
+    /**
+     * Returns how far, at worst, a media message arrived behind its RTMP timestamp, relative to
+     * the first media message. Growth means the publisher cannot keep up in real time.
+     */
+    public long getMaxLagMs() {
+        synchronized (packets) {
+            return maxLagMs;
+        }
+    }
+
+    /**
+     * Returns a one-line summary of what was received.
+     */
+    public String describe() {
+        synchronized (packets) {
+            return "stream " + streamName + ": " + videoMessages + " video (" + keyFrames
+                    + " key), " + audioMessages + " audio, " + bytesReceived + " bytes in "
+                    + chunksReceived + " chunks, chunk sizes " + chunkSizes
+                    + ", largest message " + largestMessage + " bytes, "
+                    + Math.round(getThroughputBitsPerSecond() / 1000) + " kbps, max lag "
+                    + maxLagMs + " ms";
+        }
+    }
+
+    private void record(Packet packet) {
+        synchronized (packets) {
+            packets.addLast(packet);
+            if (packets.size() > maxPacketsKept) {
+                packets.removeFirst();
+            }
+            largestMessage = Math.max(largestMessage, packet.size);
+            if (packet.type == TYPE_DATA) {
+                return;
+            }
+            if (packet.type == TYPE_AUDIO) {
+                audioMessages++;
+            } else {
+                videoMessages++;
+                if (packet.keyFrame) {
+                    keyFrames++;
+                }
+            }
+            if (firstMedia == null) {
+                firstMedia = packet;
+            }
+            lastMedia = packet;
+            mediaBytes += packet.size;
+            long arrivalMs = TimeUnit.NANOSECONDS.toMillis(packet.arrivalNanos
+                    - firstMedia.arrivalNanos);
+            maxLagMs = Math.max(maxLagMs,
+                    arrivalMs - (packet.timestampMs - firstMedia.timestampMs));
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (clients) {
+                clients.add(client);
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new Session(client).run();
+                    } catch (EOFException e) {
+                        // The publisher hung up.
+                    } catch (SocketException e) {
+                        // Closed by stop(), or reset by the publisher.
+                    } catch (IOException e) {
+                        sessionError = e;
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // Already closed.
+                        }
+                        synchronized (clients) {
+                            clients.remove(client);
+                        }
+                    }
+                }
+            }, "RtmpStandInSession").start();
+        }
+    }
+
+    /**
+     * One message received on a publishing connection.
+     */
+    public static class Packet {
+        /** {@link #TYPE_AUDIO}, {@link #TYPE_VIDEO} or {@link #TYPE_DATA}. */
+        public final int type;
+        public final long timestampMs;
+        public final int size;
+        public final boolean keyFrame;
+        /** Chunks the message was split into. */
+        public final int chunks;
+        /** Inbound chunk size when the message arrived. */
+        public final int chunkSize;
+        /** Arrival time of the last chunk, on the {@link System#nanoTime()} clock. */
+        public final long arrivalNanos;
+
+        public Packet(int type, long timestampMs, int size, boolean keyFrame, int chunks,
+                      int chunkSize, long arrivalNanos) {
+            this.type = type;
+            this.timestampMs = timestampMs;
+            this.size = size;
+            this.keyFrame = keyFrame;
+            this.chunks = chunks;
+            this.chunkSize = chunkSize;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    /**
+     * Reassembly state of one inbound chunk stream.
+     */
+    private static class ChunkStream {
+        long timestamp;
+        long timestampDelta;
+        boolean extendedTimestamp;
+        int length;
+        int type;
+        int streamId;
+        byte[] payload = new byte[0];
+        int read;
+        int chunks;
+    }
+
+    /**
+     * Serves one publisher connection on its own thread.
+     */
+    private class Session {
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Map<Integer, ChunkStream> chunkStreams = new HashMap<Integer, ChunkStream>();
+        private int chunkSize = DEFAULT_CHUNK_SIZE;
+        private long windowAckSize;
+        private long lastAck;
+        private long received;
+
+        Session(Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new CountingInputStream(
+                    new BufferedInputStream(socket.getInputStream())));
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void run() throws IOException {
+            handshake();
+            while (running) {
+                readChunk();
+                if (windowAckSize > 0 && received - lastAck >= windowAckSize) {
+                    lastAck = received;
+                    sendControl(TYPE_ACK, (int) received);
+                }
+            }
+        }
+
+        private void handshake() throws IOException {
+            byte[] c1 = new byte[HANDSHAKE_SIZE];
+            int version = in.readUnsignedByte();
+            if (version != RTMP_VERSION) {
+                throw new IOException("Unsupported RTMP version " + version);
+            }
+            in.readFully(c1);
+            out.write(RTMP_VERSION);
+            // S1: zero time, zero version and zero "random" bytes; clients do not check them.
+            out.write(new byte[HANDSHAKE_SIZE]);
+            // S2 echoes C1.
+            out.write(c1);
+            out.flush();
+            in.readFully(c1);
+        }
+
+        private void readChunk() throws IOException {
+            int basicHeader = in.readUnsignedByte();
+            int format = basicHeader >>> 6;
+            int chunkStreamId = basicHeader & 0x3f;
+            if (chunkStreamId == 0) {
+                chunkStreamId = 64 + in.readUnsignedByte();
+            } else if (chunkStreamId == 1) {
+                chunkStreamId = 64 + in.readUnsignedByte() + (in.readUnsignedByte() << 8);
+            }
+            ChunkStream stream = chunkStreams.get(chunkStreamId);
+            if (stream == null) {
+                stream = new ChunkStream();
+                chunkStreams.put(chunkStreamId, stream);
+            }
+            if (format <= 2) {
+                long timestamp = readUInt24();
+                if (format <= 1) {
+                    stream.length = (int) readUInt24();
+                    stream.type = in.readUnsignedByte();
+                }
+                if (format == 0) {
+                    stream.streamId = Integer.reverseBytes(in.readInt());
+                }
+                stream.extendedTimestamp = timestamp == EXTENDED_TIMESTAMP;
+                if (stream.extendedTimestamp) {
+                    timestamp = in.readInt() & 0xffffffffL;
+                }
+                if (format == 0) {
+                    stream.timestamp = timestamp;
+                }
+                // A type 3 chunk starting a message after a type 0 one takes the type 0
+                // timestamp as its delta.
+                stream.timestampDelta = timestamp;
+            } else if (stream.extendedTimestamp) {
+                in.readInt();
+            }
+            if (stream.read == 0) {
+                if (format != 0) {
+                    stream.timestamp += stream.timestampDelta;
+                }
+                stream.chunks = 0;
+                if (stream.payload.length < stream.length) {
+                    stream.payload = new byte[stream.length];
+                }
+            }
+            int length = Math.min(chunkSize, stream.length - stream.read);
+            in.readFully(stream.payload, stream.read, length);
+            stream.read += length;
+            stream.chunks++;
+            chunksReceived++;
+            if (stream.read == stream.length) {
+                stream.read = 0;
+                onMessage(stream);
+            }
+        }
+
+        private void onMessage(ChunkStream stream) throws IOException {
+            switch (stream.type) {
+                case TYPE_SET_CHUNK_SIZE:
+                    chunkSize = readInt(stream.payload, 0) & 0x7fffffff;
+                    synchronized (packets) {
+                        chunkSizes.add(chunkSize);
+                    }
+                    break;
+                case TYPE_WINDOW_ACK_SIZE:
+                    windowAckSize = readInt(stream.payload, 0) & 0xffffffffL;
+                    break;
+                case TYPE_COMMAND:
+                    onCommand(stream);
+                    break;
+                case TYPE_AUDIO:
+                case TYPE_VIDEO:
+                case TYPE_DATA:
+                    boolean keyFrame = stream.type == TYPE_VIDEO && stream.length > 0
+                            && (stream.payload[0] & 0xf0) == 0x10;
+                    Packet packet = new Packet(stream.type, stream.timestamp, stream.length,
+                            keyFrame, stream.chunks, chunkSize, System.nanoTime());
+                    record(packet);
+                    break;
+                default:
+                    // Acknowledgements, user control and aborts need no answer.
+                    break;
+            }
+        }
+
+        private void onCommand(ChunkStream stream) throws IOException {
+            AmfReader reader = new AmfReader(stream.payload, stream.length);
+            String name = reader.readString();
+            double transactionId = reader.readNumber();
+            if ("connect".equals(name)) {
+                sendControl(TYPE_WINDOW_ACK_SIZE, WINDOW_ACK_SIZE);
+                // Peer bandwidth takes a trailing limit type; 2 is dynamic.
+                ByteArrayOutputStream bandwidth = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(bandwidth);
+                data.writeInt(WINDOW_ACK_SIZE);
+                data.writeByte(2);
+                sendMessage(CONTROL_CHUNK_STREAM, TYPE_SET_PEER_BANDWIDTH, 0,
+                        bandwidth.toByteArray());
+                Map<String, Object> properties = new LinkedHashMap<String, Object>();
+                properties.put("fmsVer", "FMS/3,0,1,123");
+                properties.put("capabilities", 31.0);
+                Map<String, Object> information = new LinkedHashMap<String, Object>();
+                information.put("level", "status");
+                information.put("code", "NetConnection.Connect.Success");
+                information.put("description", "Connection succeeded.");
+                information.put("objectEncoding", 0.0);
+                sendCommand(0, "_result", transactionId, properties, information);
+            } else if ("createStream".equals(name)) {
+                sendCommand(0, "_result", transactionId, null, (double) PUBLISH_STREAM_ID);
+            } else if ("releaseStream".equals(name) || "FCPublish".equals(name)) {
+                sendCommand(0, "_result", transactionId, null, null);
+            } else if ("publish".equals(name)) {
+                reader.skipValue();
+                streamName = reader.readString();
+                Map<String, Object> information = new LinkedHashMap<String, Object>();
+                information.put("level", "status");
+                information.put("code", "NetStream.Publish.Start");
+                information.put("description", "Publishing " + streamName + ".");
+                sendCommand(stream.streamId, "onStatus", 0, null, information);
+                publishLatch.countDown();
+            }
+        }
+
+        private void sendControl(int type, int value) throws IOException {
+            byte[] payload = new byte[4];
+            payload[0] = (byte) (value >>> 24);
+            payload[1] = (byte) (value >>> 16);
+            payload[2] = (byte) (value >>> 8);
+            payload[3] = (byte) value;
+            sendMessage(CONTROL_CHUNK_STREAM, type, 0, payload);
+        }
+
+        private void sendCommand(int streamId, String name, double transactionId,
+                                 Object commandObject, Object argument) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(payload);
+            writeAmf(data, name);
+            writeAmf(data, transactionId);
+            writeAmf(data, commandObject);
+            writeAmf(data, argument);
+            sendMessage(COMMAND_CHUNK_STREAM, TYPE_COMMAND, streamId, payload.toByteArray());
+        }
+
+        /**
+         * Sends one message with a type 0 header, split at the default outbound chunk size.
+         */
+        private void sendMessage(int chunkStreamId, int type, int streamId, byte[] payload)
+                throws IOException {
+            out.write(chunkStreamId);
+            writeUInt24(0);
+            writeUInt24(payload.length);
+            out.write(type);
+            int littleEndian = Integer.reverseBytes(streamId);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write(littleEndian >>> shift);
+            }
+            for (int offset = 0; offset < payload.length; offset += DEFAULT_CHUNK_SIZE) {
+                if (offset > 0) {
+                    out.write(0xc0 | chunkStreamId);
+                }
+                out.write(payload, offset, Math.min(DEFAULT_CHUNK_SIZE, payload.length - offset));
+            }
+            out.flush();
+        }
+
+        private long readUInt24() throws IOException {
+            return (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                    | in.readUnsignedByte();
+        }
+
+        private void writeUInt24(int value) throws IOException {
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        /**
+         * Counts received bytes for acknowledgements and statistics, and holds reads while the
+         * server is stalled.
+         */
+        private class CountingInputStream extends InputStream {
+            private final InputStream source;
+
+            CountingInputStream(InputStream source) {
+                this.source = source;
+            }
+
+            @Override
+            public int read() throws IOException {
+                awaitUnstalled();
+                int value = source.read();
+                if (value >= 0) {
+                    received++;
+                    bytesReceived++;
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                awaitUnstalled();
+                int count = source.read(buffer, offset, length);
+                if (count > 0) {
+                    received += count;
+                    bytesReceived += count;
+                }
+                return count;
+            }
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    /**
+     * Writes a string, number, boolean, null or string-keyed object as AMF0.
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeAmf(DataOutputStream data, Object value) throws IOException {
+        if (value == null) {
+            data.writeByte(AMF_NULL);
+        } else if (value instanceof String) {
+            data.writeByte(AMF_STRING);
+            data.writeUTF((String) value);
+        } else if (value instanceof Number) {
+            data.writeByte(AMF_NUMBER);
+            data.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            data.writeByte(AMF_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            data.writeByte(AMF_OBJECT);
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                data.writeUTF(entry.getKey());
+                writeAmf(data, entry.getValue());
+            }
+            data.writeShort(0);
+            data.writeByte(AMF_OBJECT_END);
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + value.getClass());
+        }
+    }
+
+    /**
+     * Reads the few AMF0 values the commands of a publisher need.
+     */
+    private static class AmfReader {
+        private final byte[] buffer;
+        private final int length;
+        private int position;
+
+        AmfReader(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        String readString() throws IOException {
+            int marker = readByte();
+            if (marker != AMF_STRING) {
+                throw new IOException("Expected an AMF string, got marker " + marker);
+            }
+            return readUtf();
+        }
+
+        double readNumber() throws IOException {
+            int marker = readByte();
+            if (marker != AMF_NUMBER) {
+                throw new IOException("Expected an AMF number, got marker " + marker);
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        void skipValue() throws IOException {
+            int marker = readByte();
+            switch (marker) {
+                case AMF_NUMBER:
+                    skip(8);
+                    break;
+                case AMF_BOOLEAN:
+                    skip(1);
+                    break;
+                case AMF_STRING:
+                    readUtf();
+                    break;
+                case AMF_ECMA_ARRAY:
+                    skip(4);
+                    skipProperties();
+                    break;
+                case AMF_OBJECT:
+                    skipProperties();
+                    break;
+                case AMF_NULL:
+                case AMF_UNDEFINED:
+                    break;
+                default:
+                    throw new IOException("Unsupported AMF marker " + marker);
+            }
+        }
+
+        private void skipProperties() throws IOException {
+            while (true) {
+                String key = readUtf();
+                if (key.isEmpty() && position < length && buffer[position] == AMF_OBJECT_END) {
+                    position++;
+                    return;
+                }
+                skipValue();
+            }
+        }
+
+        private String readUtf() throws IOException {
+            int size = (readByte() << 8) | readByte();
+            if (position + size > length) {
+                throw new EOFException();
+            }
+            String value = new String(buffer, position, size, "UTF-8");
+            position += size;
+            return value;
+        }
+
+        private int readByte() throws IOException {
+            if (position >= length) {
+                throw new EOFException();
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        private void skip(int count) throws IOException {
+            if (position + count > length) {
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+}
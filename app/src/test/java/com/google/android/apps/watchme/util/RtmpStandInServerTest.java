@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how {@link RtmpStandInServer} reassembles hand-written chunks.
+ */
+public class RtmpStandInServerTest {
+    // CONSTANTS.
+    private static final long TIMEOUT_MS = 5000;
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int CHUNK_STREAM = 4;
+    private static final byte[] PAYLOAD = {(byte) 0xaf, 0x01};
+
+    // Member variables.
+    private RtmpStandInServer server;
+    private Socket socket;
+    private OutputStream out;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RtmpStandInServer(0);
+        server.start();
+        socket = new Socket("127.0.0.1", server.getPort());
+        out = socket.getOutputStream();
+        out.write(3);
+        out.write(new byte[HANDSHAKE_SIZE]);
+        out.flush();
+        new DataInputStream(socket.getInputStream()).readFully(new byte[1 + 2 * HANDSHAKE_SIZE]);
+        out.write(new byte[HANDSHAKE_SIZE]);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        server.stop();
+    }
+
+    @Test
+    public void type3AfterType0TakesTheType0TimestampAsDelta() throws Exception {
+        writeType0(1000);
+        writeType3();
+        writeType2(40);
+        writeType3();
+        out.flush();
+
+        List<RtmpStandInServer.Packet> packets = awaitPackets(4);
+        assertEquals(1000, packets.get(0).timestampMs);
+        assertEquals(2000, packets.get(1).timestampMs);
+        assertEquals(2040, packets.get(2).timestampMs);
+        assertEquals(2080, packets.get(3).timestampMs);
+    }
+
+    @Test
+    public void type0ResetsTheTimestamp() throws Exception {
+        writeType0(1000);
+        writeType2(40);
+        writeType0(500);
+        writeType3();
+        out.flush();
+
+        List<RtmpStandInServer.Packet> packets = awaitPackets(4);
+        assertEquals(1040, packets.get(1).timestampMs);
+        assertEquals(500, packets.get(2).timestampMs);
+        assertEquals(1000, packets.get(3).timestampMs);
+    }
+
+    private void writeType0(int timestamp) throws IOException {
+        out.write(CHUNK_STREAM);
+        writeUInt24(timestamp);
+        writeUInt24(PAYLOAD.length);
+        out.write(RtmpStandInServer.TYPE_AUDIO);
+        // Message stream 1, little endian.
+        out.write(new byte[]{1, 0, 0, 0});
+        out.write(PAYLOAD);
+    }
+
+    private void writeType2(int timestampDelta) throws IOException {
+        out.write(0x80 | CHUNK_STREAM);
+        writeUInt24(timestampDelta);
+        out.write(PAYLOAD);
+    }
+
+    private void writeType3() throws IOException {
+        out.write(0xc0 | CHUNK_STREAM);
+        out.write(PAYLOAD);
+    }
+
+    private void writeUInt24(int value) throws IOException {
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private List<RtmpStandInServer.Packet> awaitPackets(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getPackets().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<RtmpStandInServer.Packet> packets = server.getPackets();
+        assertEquals(count, packets.size());
+        return packets;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscQueueTest {
+    // CONSTANTS.
+    private static final int ELEMENTS = 100000;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new SpscQueue<Integer>(0);
+    }
+
+    @Test
+    public void isFifoAcrossWrapAround() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(3);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+            assertTrue(queue.offer(i + 100));
+            assertEquals(2, queue.size());
+            assertEquals(Integer.valueOf(i), queue.peek());
+            assertEquals(Integer.valueOf(i), queue.poll());
+            assertEquals(Integer.valueOf(i + 100), queue.poll());
+            assertNull(queue.poll());
+            assertNull(queue.peek());
+        }
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(2);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3));
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.capacity());
+    }
+
+    @Test
+    public void producerMayEvictTheOldest() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(2);
+        queue.offer(1);
+        queue.offer(2);
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(3));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+    }
+
+    @Test
+    public void handsOverEveryElementInOrder() throws Exception {
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(16);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int expected = 0;
+                while (expected < ELEMENTS) {
+                    Integer element = queue.poll();
+                    if (element == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (element != expected) {
+                        failure.set("Expected " + expected + ", got " + element);
+                        return;
+                    }
+                    expected++;
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < ELEMENTS; ) {
+            if (queue.offer(i)) {
+                i++;
+            } else {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+        assertNull(failure.get());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void evictingProducerAndConsumerNeverTakeTheSameElement() throws Exception {
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(4);
+        final boolean[] taken = new boolean[ELEMENTS];
+        final int[] consumed = new int[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Integer element = queue.poll();
+                    if (element != null) {
+                        taken[element] = true;
+                        consumed[0]++;
+                    }
+                }
+            }
+        });
+        consumer.start();
+        boolean[] evicted = new boolean[ELEMENTS];
+        int evictions = 0;
+        for (int i = 0; i < ELEMENTS; i++) {
+            while (!queue.offer(i)) {
+                Integer oldest = queue.poll();
+                if (oldest != null) {
+                    evicted[oldest] = true;
+                    evictions++;
+                }
+            }
+        }
+        while (queue.size() > 0) {
+            Thread.yield();
+        }
+        consumer.interrupt();
+        consumer.join();
+        for (int i = 0; i < ELEMENTS; i++) {
+            assertFalse("Element " + i + " taken twice", taken[i] && evicted[i]);
+        }
+        assertEquals(ELEMENTS, consumed[0] + evictions);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to regroup one AudioRecord chunk into AAC frames. A chunk of exactly one frame is passed
+ * through, other sizes are copied, and planar frames are deinterleaved while copying.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class AudioFrameAccumulatorBenchmark {
+    // CONSTANTS.
+    private static final int SAMPLE_RATE = 44100;
+
+    @Param({"1024", "960", "441"})
+    public int chunkSamples;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"false", "true"})
+    public boolean planar;
+
+    // Member variables.
+    private AudioFrameAccumulator accumulator;
+    private ByteBuffer chunk;
+    private long timestampNanos;
+    private long chunkNanos;
+    // Read from every frame so the copies cannot be optimized away.
+    private int checksum;
+
+    @Setup
+    public void setUp() {
+        accumulator = new AudioFrameAccumulator(AudioFrameAccumulator.AAC_FRAME_SAMPLES,
+                SAMPLE_RATE, channels, planar, new AudioFrameAccumulator.FrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer frame, int samples, long timestampNanos) {
+                        checksum += frame.getShort(samples * 2 - 2);
+                    }
+                });
+        chunk = ByteBuffer.allocateDirect(chunkSamples * channels * 2)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < chunkSamples * channels; i++) {
+            chunk.putShort(i * 2, (short) (i * 31));
+        }
+        chunkNanos = chunkSamples * 1000000000L / SAMPLE_RATE;
+    }
+
+    @TearDown
+    public void tearDown() {
+        accumulator.release();
+    }
+
+    @Benchmark
+    public int add() {
+        // The accumulator moves the chunk's position and limit.
+        chunk.clear();
+        accumulator.add(chunk, chunkSamples, timestampNanos);
+        timestampNanos += chunkNanos;
+        return checksum;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input samples per second that {@link AudioResampler} converts, i.e. how many times faster than
+ * real time it runs, for the capture rates devices report and the encoder rates we use.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class AudioResamplerBenchmark {
+    // CONSTANTS.
+    // Samples per channel in each chunk, what AudioRecord typically returns per read.
+    private static final int CHUNK_SAMPLES = 1024;
+
+    @Param({"48000:44100", "44100:48000", "16000:44100", "48000:48000"})
+    public String rates;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    // Member variables.
+    private AudioResampler resampler;
+    private ByteBuffer input;
+    private ByteBuffer output;
+    private long timestampNanos;
+    private long chunkNanos;
+
+    @Setup
+    public void setUp() {
+        int split = rates.indexOf(':');
+        int inputRate = Integer.parseInt(rates.substring(0, split));
+        int outputRate = Integer.parseInt(rates.substring(split + 1));
+        resampler = new AudioResampler(inputRate, outputRate, channels);
+        input = ByteBuffer.allocateDirect(CHUNK_SAMPLES * channels * 2)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < CHUNK_SAMPLES; i++) {
+            // A 1 kHz tone at half scale.
+            short sample = (short) (16384 * Math.sin(2 * Math.PI * 1000 * i / inputRate));
+            for (int c = 0; c < channels; c++) {
+                input.putShort((i * channels + c) * 2, sample);
+            }
+        }
+        output = ByteBuffer.allocateDirect(
+                resampler.getMaxOutputSamples(CHUNK_SAMPLES) * channels * 2)
+                .order(ByteOrder.nativeOrder());
+        chunkNanos = CHUNK_SAMPLES * 1000000000L / inputRate;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK_SAMPLES)
+    public int process() {
+        int produced = resampler.process(input, CHUNK_SAMPLES, timestampNanos, output);
+        timestampNanos += chunkNanos;
+        return produced;
+    }
+}
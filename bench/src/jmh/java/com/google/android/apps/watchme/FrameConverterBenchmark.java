@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to rotate and mirror one NV21 camera frame, which the software path does for every frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class FrameConverterBenchmark {
+    @Param({"640x480", "1280x720"})
+    public String size;
+
+    @Param({"0", "90", "180", "270"})
+    public int rotation;
+
+    @Param({"false", "true"})
+    public boolean mirror;
+
+    // Member variables.
+    private FrameConverter converter;
+    private ByteBuffer src;
+    private ByteBuffer dst;
+
+    @Setup
+    public void setUp() {
+        int split = size.indexOf('x');
+        int width = Integer.parseInt(size.substring(0, split));
+        int height = Integer.parseInt(size.substring(split + 1));
+        converter = new FrameConverter(width, height, rotation, mirror);
+        src = ByteBuffer.allocateDirect(width * height * 3 / 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) i);
+        }
+        dst = ByteBuffer.allocateDirect(converter.getOutputSize()).order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public ByteBuffer convert() {
+        converter.convert(src, dst);
+        return dst;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost on the muxer thread of offering a packet to a copying {@link PacketSendQueue}, as a
+ * {@link PacketFanOut} does once per destination: copying into the queue's ring, shedding and
+ * waking the sender. The queue has no output, so its sender recycles each packet right away and
+ * no network time is included. Every packet is a key frame, so none is skipped while the queue
+ * waits for one after shedding, and each offer pays for its copy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PacketSendQueueBenchmark {
+    @Param({"200", "4000", "40000"})
+    public int packetSize;
+
+    // Member variables.
+    private PacketSendQueue queue;
+    private EncodedPacket packet;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        queue = new PacketSendQueue(null);
+        queue.start();
+        packet = new EncodedPacket(packetSize, true);
+        packet.size = packetSize;
+        packet.keyFrame = true;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        queue.stop();
+        packet.release();
+    }
+
+    @Benchmark
+    public void offer() {
+        packet.ptsUs += 33333;
+        queue.offer(packet);
+    }
+}
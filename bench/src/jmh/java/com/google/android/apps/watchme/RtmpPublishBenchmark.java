@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import com.google.android.apps.watchme.util.RtmpStandInServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packets per second that {@link RtmpOutput} publishes to an in-process
+ * {@link RtmpStandInServer} over loopback, so it runs on machines with no network. Each packet is
+ * one video message, chunked and flushed like a real frame. After every iteration the latency
+ * from the start of each write to its arrival at the server, for the latest messages the server
+ * keeps, and the server's summary with the payload rate are printed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class RtmpPublishBenchmark {
+    // CONSTANTS.
+    // Send times kept for matching arrivals; more than the messages the server keeps.
+    private static final int SEND_TIMES = 2 * RtmpStandInServer.DEFAULT_MAX_PACKETS_KEPT;
+    private static final long DRAIN_TIMEOUT_MS = 10000;
+
+    @Param({"200", "4000", "40000"})
+    public int packetSize;
+
+    // Member variables.
+    private RtmpStandInServer server;
+    private RtmpOutput output;
+    private EncodedPacket packet;
+    private final long[] sendNanos = new long[SEND_TIMES];
+    private int sequence;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, InterruptedException {
+        server = new RtmpStandInServer(0);
+        server.start();
+        output = RtmpOutput.open(server.getUrl("live2", "bench"), 1280, 720, 44100, 1);
+        server.awaitPublish(DRAIN_TIMEOUT_MS);
+        packet = new EncodedPacket(packetSize, true);
+        packet.size = packetSize;
+        packet.keyFrame = true;
+        sequence = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (server.getVideoMessages() < sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        List<RtmpStandInServer.Packet> received = server.getPackets();
+        long[] latencies = new long[received.size()];
+        int count = 0;
+        for (RtmpStandInServer.Packet message : received) {
+            if (message.type == RtmpStandInServer.TYPE_VIDEO) {
+                // Timestamps are sequence numbers in milliseconds.
+                latencies[count++] = message.arrivalNanos
+                        - sendNanos[(int) (message.timestampMs % SEND_TIMES)];
+            }
+        }
+        Arrays.sort(latencies, 0, count);
+        if (count > 0) {
+            System.out.println("\nLatency over the last " + count + " messages p50/p99/max: "
+                    + micros(latencies[count / 2]) + "/" + micros(latencies[count * 99 / 100])
+                    + "/" + micros(latencies[count - 1]) + " us");
+        }
+        System.out.println(server.describe());
+        output.close();
+        server.stop();
+        packet.release();
+    }
+
+    @Benchmark
+    public void publish() throws IOException {
+        packet.ptsUs = sequence * 1000L;
+        sendNanos[sequence % SEND_TIMES] = System.nanoTime();
+        sequence++;
+        output.write(packet);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}